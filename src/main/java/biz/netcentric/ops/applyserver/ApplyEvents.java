@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+/** Events of the apply phases for the JDK Flight Recorder (to be analyzed in JDK Mission Control), e.g. to tell whether the network,
+ * decompression, filtering, disk writes or the script make an apply slow on a host.
+ *
+ * The events are only created if the JVM provides the JFR API (JDK 11+ and 8u262+, see {@link ApplyFlightRecorderEvents}), on other
+ * JVMs the calls do nothing. Without a running recording, an event is not committed. */
+final class ApplyEvents {
+
+    private static final boolean IS_FLIGHT_RECORDER_AVAILABLE = isFlightRecorderAvailable();
+
+    /** A request being handled. */
+    interface Request {
+        void end(String scriptName);
+    }
+
+    /** The extraction of an upload (including receiving and decompressing the request body). */
+    interface Upload {
+        void end(long bodyBytes, int files, long decompressionNanos, long filteringNanos);
+    }
+
+    /** One extracted entry (file) of an upload. */
+    interface Entry {
+        void end(long bytes, boolean filtered, int variablesReplaced, boolean changed);
+    }
+
+    /** The execution of a script. */
+    interface Script {
+        void end(int exitCode);
+    }
+
+    private static final Request NO_REQUEST = scriptName -> {
+    };
+    private static final Upload NO_UPLOAD = (bodyBytes, files, decompressionNanos, filteringNanos) -> {
+    };
+    private static final Entry NO_ENTRY = (bytes, filtered, variablesReplaced, changed) -> {
+    };
+    private static final Script NO_SCRIPT = exitCode -> {
+    };
+
+    private ApplyEvents() {
+    }
+
+    static Request beginRequest(String method, String path) {
+        return IS_FLIGHT_RECORDER_AVAILABLE ? ApplyFlightRecorderEvents.beginRequest(method, path) : NO_REQUEST;
+    }
+
+    static Upload beginUpload(String path, String format) {
+        return IS_FLIGHT_RECORDER_AVAILABLE ? ApplyFlightRecorderEvents.beginUpload(path, format) : NO_UPLOAD;
+    }
+
+    static Entry beginEntry(String entryName) {
+        return IS_FLIGHT_RECORDER_AVAILABLE ? ApplyFlightRecorderEvents.beginEntry(entryName) : NO_ENTRY;
+    }
+
+    static Script beginScript(String scriptName) {
+        return IS_FLIGHT_RECORDER_AVAILABLE ? ApplyFlightRecorderEvents.beginScript(scriptName) : NO_SCRIPT;
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            // the event classes must not be loaded if the API is missing (they extend jdk.jfr.Event)
+            Class.forName("jdk.jfr.Event", false, ApplyEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/** The JFR event types behind {@link ApplyEvents}, only loaded if the JVM provides the JFR API. The values are only set if the event
+ * is committed (i.e. a recording is running and the duration exceeds the threshold of the recording). */
+final class ApplyFlightRecorderEvents {
+
+    private static final String CATEGORY = "Apply Server";
+
+    private ApplyFlightRecorderEvents() {
+    }
+
+    static ApplyEvents.Request beginRequest(String method, String path) {
+        RequestEvent event = new RequestEvent();
+        event.method = method;
+        event.path = path;
+        event.begin();
+        return event;
+    }
+
+    static ApplyEvents.Upload beginUpload(String path, String format) {
+        UploadEvent event = new UploadEvent();
+        event.path = path;
+        event.format = format;
+        event.begin();
+        return event;
+    }
+
+    static ApplyEvents.Entry beginEntry(String entryName) {
+        EntryEvent event = new EntryEvent();
+        event.entryName = entryName;
+        event.begin();
+        return event;
+    }
+
+    static ApplyEvents.Script beginScript(String scriptName) {
+        ScriptEvent event = new ScriptEvent();
+        event.scriptName = scriptName;
+        event.begin();
+        return event;
+    }
+
+    @Name("biz.netcentric.ops.applyserver.Request")
+    @Label("Request")
+    @Category(CATEGORY)
+    @Description("A request handled by the apply server")
+    static class RequestEvent extends Event implements ApplyEvents.Request {
+        @Label("Method")
+        String method;
+        @Label("Path")
+        String path;
+        @Label("Script")
+        String scriptName;
+
+        @Override
+        public void end(String scriptName) {
+            end();
+            if (shouldCommit()) {
+                this.scriptName = scriptName;
+                commit();
+            }
+        }
+    }
+
+    @Name("biz.netcentric.ops.applyserver.Upload")
+    @Label("Upload")
+    @Category(CATEGORY)
+    @Description("Extraction of an upload, including receiving and decompressing the request body")
+    static class UploadEvent extends Event implements ApplyEvents.Upload {
+        @Label("Path")
+        String path;
+        @Label("Format")
+        String format;
+        @Label("Body Size")
+        @DataAmount
+        long bodyBytes;
+        @Label("Files")
+        int files;
+        @Label("Decompression Time")
+        @Description("Time spent reading entries from the archive (decompressing and receiving the request body)")
+        @Timespan(Timespan.NANOSECONDS)
+        long decompressionTime;
+        @Label("Filtering Time")
+        @Description("Time spent filtering placeholders, summed over the extraction workers")
+        @Timespan(Timespan.NANOSECONDS)
+        long filteringTime;
+
+        @Override
+        public void end(long bodyBytes, int files, long decompressionNanos, long filteringNanos) {
+            end();
+            if (shouldCommit()) {
+                this.bodyBytes = bodyBytes;
+                this.files = files;
+                this.decompressionTime = decompressionNanos;
+                this.filteringTime = filteringNanos;
+                commit();
+            }
+        }
+    }
+
+    @Name("biz.netcentric.ops.applyserver.Entry")
+    @Label("Extracted Entry")
+    @Category(CATEGORY)
+    @Description("A file extracted from an upload (filtered and written to disk)")
+    static class EntryEvent extends Event implements ApplyEvents.Entry {
+        @Label("Entry")
+        String entryName;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+        @Label("Filtered")
+        boolean filtered;
+        @Label("Variables Replaced")
+        int variablesReplaced;
+        @Label("Changed")
+        @Description("False if the file was left untouched as the content did not change")
+        boolean changed;
+
+        @Override
+        public void end(long bytes, boolean filtered, int variablesReplaced, boolean changed) {
+            end();
+            if (shouldCommit()) {
+                this.bytes = bytes;
+                this.filtered = filtered;
+                this.variablesReplaced = variablesReplaced;
+                this.changed = changed;
+                commit();
+            }
+        }
+    }
+
+    @Name("biz.netcentric.ops.applyserver.Script")
+    @Label("Script Execution")
+    @Category(CATEGORY)
+    static class ScriptEvent extends Event implements ApplyEvents.Script {
+        @Label("Script")
+        String scriptName;
+        @Label("Exit Code")
+        int exitCode;
+
+        @Override
+        public void end(int exitCode) {
+            end();
+            if (shouldCommit()) {
+                this.exitCode = exitCode;
+                commit();
+            }
+        }
+    }
+}
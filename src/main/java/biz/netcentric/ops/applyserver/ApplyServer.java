@@ -18,8 +18,10 @@ import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.Executors;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
@@ -40,7 +42,10 @@ public class ApplyServer {
 
     ApplyServerConfig config;
 
-    Map<String, String> properties = new TreeMap<>();
+    // properties may be reloaded while requests are processed
+    Map<String, String> properties = new ConcurrentSkipListMap<>();
+
+    private ApplyServerHttpHandler handler;
 
     private ApplyServer(String[] args) throws IOException {
         config = new ApplyServerConfig(args);
@@ -54,7 +59,11 @@ public class ApplyServer {
         if (!config.isFiltering()) {
             return;
         }
+        properties.putAll(loadProperties());
+    }
 
+    private Map<String, String> loadProperties() throws IOException, FileNotFoundException {
+        Map<String, String> loadedProperties = new TreeMap<>();
         String propertiesFilename = config.getPropertiesFilename();
         File propertiesFile = propertiesFilename != null ? getFile(config.getDestination(), propertiesFilename) : null;
         if (propertiesFile != null) {
@@ -67,7 +76,7 @@ public class ApplyServer {
             }
             for (Object key : props.keySet()) {
                 String keyStr = key.toString();
-                properties.put(keyStr, props.getProperty(keyStr));
+                loadedProperties.put(keyStr, props.getProperty(keyStr));
             }
             System.out.println("Loaded " + props.size() + " properties from " + propertiesFile);
         }
@@ -78,8 +87,39 @@ public class ApplyServer {
                 continue;
             }
             String value = systemEnv.get(key);
-            properties.put(key.replace("_", "."), value);
+            loadedProperties.put(key.replace("_", "."), value);
+        }
+        return loadedProperties;
+    }
+
+    private void reloadProperties() {
+        Map<String, String> reloadedProperties;
+        try {
+            reloadedProperties = loadProperties();
+        } catch (IOException | IllegalStateException e) {
+            System.out.println("Could not reload properties: " + e.getMessage());
+            return;
+        }
+
+        Set<String> changedKeys = new TreeSet<>();
+        for (Map.Entry<String, String> property : reloadedProperties.entrySet()) {
+            if (!property.getValue().equals(properties.get(property.getKey()))) {
+                changedKeys.add(property.getKey());
+            }
+        }
+        for (String key : properties.keySet()) {
+            if (!reloadedProperties.containsKey(key)) {
+                changedKeys.add(key);
+            }
+        }
+        if (changedKeys.isEmpty()) {
+            return;
         }
+
+        properties.putAll(reloadedProperties);
+        properties.keySet().retainAll(reloadedProperties.keySet());
+        System.out.println("Properties changed: " + StringUtils.join(changedKeys, ", "));
+        handler.handlePropertiesChange(changedKeys);
     }
 
     private void startServer() throws IOException {
@@ -112,10 +152,15 @@ public class ApplyServer {
                 + (!config.isDisableUpload() ? " to update location " + config.getDestination() + " with " : " to execute ")
                 + config.getScript());
 
+        handler = new ApplyServerHttpHandler(config, properties);
+        if (config.isWatchProperties()) {
+            new PropertiesFileWatcher(getFile(config.getDestination(), config.getPropertiesFilename()), this::reloadProperties).start();
+        }
+
         HttpServer server = HttpServer.create(new InetSocketAddress(config.getServerPort()), 0);
-        server.createContext("/", new ApplyServerHttpHandler(config, properties));
-        server.setExecutor(Executors.newFixedThreadPool(10)); // max 10 requests in parallel, but we decline parallel script executions
-                                                              // further down
+        // the server's dispatcher thread only hands the requests over to the executor of their route
+        server.createContext("/", handler.routeExecutors.dispatchTo(handler));
+        server.setExecutor(null);
         server.start();
     }
 
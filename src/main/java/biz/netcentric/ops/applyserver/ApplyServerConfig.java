@@ -8,6 +8,9 @@
  */
 package biz.netcentric.ops.applyserver;
 
+import java.io.File;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.regex.Pattern;
@@ -19,6 +22,7 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.commons.net.util.SubnetUtils;
 import org.apache.commons.net.util.SubnetUtils.SubnetInfo;
 
@@ -30,6 +34,8 @@ public class ApplyServerConfig {
             .compile("((^|/)(bin|logs|modules|htdocs|apps|docs|include|lib|man|examples?|licenses?))|.*\\.(pid|jar|zip|log)");
 
     public static final String APPLY_SCRIPT_DEFAULT = "_apply.sh";
+    static final String STATE_DIR_DEFAULT = ".apply-server";
+    static final int DOWNLOAD_BLOCK_SIZE_DEFAULT = 1024 * 1024;
 
     private int serverPort;
     private String destination;
@@ -46,11 +52,42 @@ public class ApplyServerConfig {
 
     private boolean enableDownload = false;
     private Pattern excludeFromDownloadPattern = EXCLUDE_FROM_DOWNLOAD_PATTERN_DEFAULT;
+    private int downloadBlockSize = DOWNLOAD_BLOCK_SIZE_DEFAULT;
+    private int downloadThreads = Runtime.getRuntime().availableProcessors();
 
     private boolean streamResponse = false;
 
+    private long maxBodySize = 0;
+    private long maxEntrySize = 0;
+    private int maxEntryCount = 0;
+    private int maxCompressionRatio = 0;
+    private int maxBufferedBytes = ZipDeflater.MAX_BUFFERED_BYTES_DEFAULT;
+
+    private boolean stagedExtraction = false;
+    private Durability durability = Durability.NONE;
+
+    private String stateDir;
+    private boolean keepSource = false;
+
+    private boolean watchProperties = false;
+    private String propertiesChangedScript;
+
     private String propertiesFilename;
 
+    private Map<RouteExecutors.Route, Integer> executorThreads = new EnumMap<>(RouteExecutors.Route.class);
+    private Map<RouteExecutors.Route, Integer> executorQueueSizes = new EnumMap<>(RouteExecutors.Route.class);
+    private boolean virtualThreads = false;
+
+    private int historySize = RunHistory.CAPACITY_DEFAULT;
+    private boolean persistRuns = false;
+    private int runRetentionRuns = RunStore.MAX_RUNS_DEFAULT;
+    private int runRetentionDays = RunStore.MAX_AGE_IN_DAYS_DEFAULT;
+    private int runRetentionSizeInMb = RunStore.MAX_SIZE_IN_MB_DEFAULT;
+
+    // keyed by script
+    private Map<String, ScriptQueue.Policy> concurrencyPolicies = new HashMap<>();
+    private Map<String, Integer> concurrencyMaxWaits = new HashMap<>();
+
     private Map<String, String> commands = new TreeMap<>();
 
     private boolean isValid;
@@ -96,12 +133,79 @@ public class ApplyServerConfig {
                 "enables download of the current files at destination via URL /download.tar.gz");
         options.addOption("ed", "exclude-from-download", true,
                 "Regex for files to be excluded from download");
+        options.addOption("db", "download-block-size", true,
+                "the size in KB of the blocks that are gzip compressed in parallel for downloads - defaults to "
+                        + (DOWNLOAD_BLOCK_SIZE_DEFAULT / 1024));
+        options.addOption("dt", "download-threads", true,
+                "the number of threads used to gzip compress downloads - defaults to the number of processors, 1 disables parallel"
+                        + " compression");
 
         options.addOption("sr", "stream-response", false,
                 "Instead of sending the response back in one chunk after script execution, it will stream back the response while the script is running."
                 + " The http response code will always be 200 for this mode and the script's"
                 + " exit code is returned as last line of the response. Can also be controlled via request header 'Stream-Response: true'.");
 
+        options.addOption("mb", "max-body-size", true,
+                "the maximum size in MB of an upload (request body) - unlimited by default");
+        options.addOption("me", "max-entry-size", true,
+                "the maximum size in MB of a single extracted file - unlimited by default");
+        options.addOption("mc", "max-entry-count", true,
+                "the maximum number of entries in an upload - unlimited by default");
+        options.addOption("mr", "max-compression-ratio", true,
+                "the maximum ratio of extracted bytes to uploaded bytes (protects against zip bombs, e.g. 100) - unlimited by default");
+        options.addOption("mm", "max-buffered-memory", true,
+                "the memory in MB that may be used for buffering entries during extraction, shared by all uploads - defaults to "
+                        + (ZipDeflater.MAX_BUFFERED_BYTES_DEFAULT / 1024 / 1024)
+                        + ". Uploads wait for memory to become available and fail after a while.");
+
+        options.addOption("se", "staged-extraction", false,
+                "extracts uploads into a new release directory next to the destination that is switched live (by replacing the destination"
+                + " with a symbolic link) right before the script is run. A failed upload leaves the live files untouched. The"
+                + " destination is moved to '<destination>" + StagedDestination.RELEASES_DIR_SUFFIX + "' upon the first upload,"
+                + " the live and the previous release are kept.");
+
+        options.addOption("dur", "durability", true,
+                "when extracted files are synced to disk: 'none' (default, left to the OS), 'batch' (all files and directories are"
+                + " synced at once after extraction, before the script is run) or 'strict' (every file is synced when written)");
+
+        options.addOption("sd", "state-dir", true,
+                "the directory for files kept by the server between requests - defaults to '<destination>/" + STATE_DIR_DEFAULT
+                        + "' (or '<destination>" + STATE_DIR_DEFAULT + "' for staged extraction)");
+        options.addOption("ks", "keep-source", false,
+                "keeps the unfiltered files of uploads in the state dir and provides a manifest of them via URL /manifest. Allows delta"
+                + " uploads (request parameter 'delta') that only contain changed/added files and the file '"
+                + SourceCache.DELETIONS_ENTRY_NAME + "' listing files to delete.");
+
+        options.addOption("wp", "watch-properties", false,
+                "watches the properties file and filters the files that reference changed properties again (from the unfiltered files"
+                + " kept as with --keep-source). With --staged-extraction, the properties file has to be outside of the destination");
+        options.addOption("pc", "properties-changed-script", true,
+                "the script to run after files were filtered again due to changed properties (requires --watch-properties)");
+
+        options.addOption(new Option("ex", "executor", true,
+                "the threads and queue size per route class as route=threads[:queue] where route is 'script' (POST requests, defaults to "
+                        + describeExecutorDefault(RouteExecutors.Route.SCRIPT) + "), 'download' (defaults to "
+                        + describeExecutorDefault(RouteExecutors.Route.DOWNLOAD) + "), 'tail' (/run/{id}/tail, defaults to "
+                        + describeExecutorDefault(RouteExecutors.Route.TAIL) + ") or 'read' (other GET requests, defaults to "
+                        + describeExecutorDefault(RouteExecutors.Route.READ) + "). Requests exceeding the queue are rejected with"
+                        + " 503. Multiple -ex options can be provided."));
+        options.addOption("vt", "virtual-threads", false,
+                "handles requests on virtual threads (requires Java 21, platform threads are used otherwise), the number of requests"
+                        + " running in parallel per route class is still limited by --executor");
+        options.addOption("hs", "history-size", true, "the number of runs kept in the history (with their output, output beyond "
+                + RunOutput.SPILL_THRESHOLD / 1024 + "KB per run is kept in the state dir if runs are persisted) - defaults to "
+                + RunHistory.CAPACITY_DEFAULT);
+        options.addOption("rr", "run-retention", true, "the retention of runs kept in the state dir across restarts as comma separated"
+                + " list of runs=<number>, days=<number> and mb=<total size> - defaults to runs=" + RunStore.MAX_RUNS_DEFAULT + ",days="
+                + RunStore.MAX_AGE_IN_DAYS_DEFAULT + ",mb=" + RunStore.MAX_SIZE_IN_MB_DEFAULT
+                + ". Runs (including their output) are only persisted if this option or --state-dir is given.");
+        options.addOption(new Option("cp", "concurrency-policy", true,
+                "what happens to requests for a command that arrive while its script is running as path=policy[:maxWaitSeconds] where"
+                        + " path is the path of a command (or / for the default script) and policy is 'reject' (default, responds with"
+                        + " 400), 'queue' (runs the requests one after the other) or 'coalesce' (runs the script once more for all"
+                        + " waiting requests, using the payload of the newest one, asynchronous requests are queued). Requests wait up to "
+                        + ScriptQueue.MAX_WAIT_DEFAULT_IN_SEC + "s by default. Multiple -cp options can be provided."));
+
         try {
             // parse the command line arguments
             CommandLine line = parser.parse(options, args);
@@ -191,11 +295,98 @@ public class ApplyServerConfig {
             if (line.hasOption("exclude-from-download")) {
                 excludeFromDownloadPattern = getRegExPatternFromCommandLineOption(line, "exclude-from-download");
             }
+            if (line.hasOption("download-block-size")) {
+                int downloadBlockSizeInKb = getPositiveIntFromCommandLineOption(line, "download-block-size");
+                if (downloadBlockSizeInKb > 64 * 1024) {
+                    throw new IllegalArgumentException("Parameter download-block-size must not exceed 64MB");
+                }
+                downloadBlockSize = downloadBlockSizeInKb * 1024;
+            }
+            if (line.hasOption("download-threads")) {
+                downloadThreads = getPositiveIntFromCommandLineOption(line, "download-threads");
+            }
 
             if (line.hasOption("stream-response")) {
                 streamResponse = true;
             }
+            if (line.hasOption("max-body-size")) {
+                maxBodySize = getPositiveIntFromCommandLineOption(line, "max-body-size") * 1024L * 1024L;
+            }
+            if (line.hasOption("max-entry-size")) {
+                maxEntrySize = getPositiveIntFromCommandLineOption(line, "max-entry-size") * 1024L * 1024L;
+            }
+            if (line.hasOption("max-entry-count")) {
+                maxEntryCount = getPositiveIntFromCommandLineOption(line, "max-entry-count");
+            }
+            if (line.hasOption("max-compression-ratio")) {
+                maxCompressionRatio = getPositiveIntFromCommandLineOption(line, "max-compression-ratio");
+            }
+            if (line.hasOption("max-buffered-memory")) {
+                int maxBufferedMemoryInMb = getPositiveIntFromCommandLineOption(line, "max-buffered-memory");
+                if (maxBufferedMemoryInMb > 1024) {
+                    throw new IllegalArgumentException("Parameter max-buffered-memory must not exceed 1024MB");
+                }
+                maxBufferedBytes = maxBufferedMemoryInMb * 1024 * 1024;
+            }
+            if (line.hasOption("staged-extraction")) {
+                stagedExtraction = true;
+            }
+            if (line.hasOption("durability")) {
+                durability = Durability.fromOptionValue(line.getOptionValue("durability"));
+            }
+            if (line.hasOption("state-dir")) {
+                stateDir = line.getOptionValue("state-dir");
+                persistRuns = true;
+            } else if (stagedExtraction) {
+                // a state dir within the destination would be copied for every release
+                stateDir = new File(destination).getAbsolutePath() + STATE_DIR_DEFAULT;
+            } else {
+                stateDir = new File(destination, STATE_DIR_DEFAULT).getPath();
+            }
+            if (line.hasOption("keep-source")) {
+                keepSource = true;
+            }
+            if (line.hasOption("watch-properties")) {
+                if (propertiesFilename == null || !filtering) {
+                    throw new IllegalArgumentException("Parameter --watch-properties requires --properties and filtering to be enabled");
+                }
+                if (stagedExtraction && isWithinDestination(propertiesFilename)) {
+                    // the watched directory would be the release that is live at start time, it is deleted by later activations
+                    throw new IllegalArgumentException("Parameter --watch-properties requires the properties file to be outside of the"
+                            + " destination with --staged-extraction");
+                }
+                watchProperties = true;
+                // the unfiltered files are required to filter them again
+                keepSource = true;
+            }
+            if (line.hasOption("properties-changed-script")) {
+                if (!watchProperties) {
+                    throw new IllegalArgumentException("Parameter --properties-changed-script requires --watch-properties");
+                }
+                propertiesChangedScript = line.getOptionValue("properties-changed-script");
+            }
             
+            if (line.hasOption("executor")) {
+                for (String optionValue : line.getOptionValues("executor")) {
+                    parseExecutorOptionValue(optionValue);
+                }
+            }
+            if (line.hasOption("virtual-threads")) {
+                virtualThreads = true;
+            }
+            if (line.hasOption("history-size")) {
+                historySize = getPositiveIntFromCommandLineOption(line, "history-size");
+            }
+            if (line.hasOption("run-retention")) {
+                parseRunRetentionOptionValue(line.getOptionValue("run-retention"));
+                persistRuns = true;
+            }
+            if (line.hasOption("concurrency-policy")) {
+                for (String optionValue : line.getOptionValues("concurrency-policy")) {
+                    parseConcurrencyPolicyOptionValue(optionValue);
+                }
+            }
+
             isValid = true;
 
         } catch (Exception e) {
@@ -215,6 +406,99 @@ public class ApplyServerConfig {
         }
     }
 
+    private void parseExecutorOptionValue(String optionValue) {
+        String[] bits = optionValue.split("[=:]");
+        if (bits.length < 2 || bits.length > 3) {
+            throw new IllegalArgumentException(
+                    "Invalid value for --executor: " + optionValue + " (it needs to follow the syntax download=4:20)");
+        }
+        RouteExecutors.Route route = RouteExecutors.Route.fromOptionValue(bits[0]);
+        try {
+            int threads = Integer.parseInt(bits[1]);
+            int queueSize = bits.length > 2 ? Integer.parseInt(bits[2]) : route.getDefaultQueueSize();
+            if (threads <= 0 || queueSize < 0) {
+                throw new NumberFormatException();
+            }
+            executorThreads.put(route, threads);
+            executorQueueSizes.put(route, queueSize);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for --executor: " + optionValue
+                    + " (threads must be a positive number, the queue size must not be negative)");
+        }
+    }
+
+    private boolean isWithinDestination(String path) {
+        File file = new File(path).isAbsolute() ? new File(path) : new File(destination, path);
+        return file.toPath().toAbsolutePath().normalize().startsWith(new File(destination).toPath().toAbsolutePath().normalize());
+    }
+
+    private void parseRunRetentionOptionValue(String optionValue) {
+        for (String limit : optionValue.split(",")) {
+            String[] bits = limit.trim().split("=");
+            int value = bits.length == 2 ? NumberUtils.toInt(bits[1], -1) : -1;
+            if (value <= 0) {
+                throw new IllegalArgumentException(
+                        "Invalid value for --run-retention: " + optionValue + " (it needs to follow the syntax runs=1000,days=30,mb=100)");
+            }
+            switch (bits[0]) {
+            case "runs":
+                runRetentionRuns = value;
+                break;
+            case "days":
+                runRetentionDays = value;
+                break;
+            case "mb":
+                runRetentionSizeInMb = value;
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid limit '" + bits[0] + "' for --run-retention (valid are runs, days and mb)");
+            }
+        }
+    }
+
+    private void parseConcurrencyPolicyOptionValue(String optionValue) {
+        String[] bits = optionValue.split("[=:]");
+        if (bits.length < 2 || bits.length > 3) {
+            throw new IllegalArgumentException(
+                    "Invalid value for --concurrency-policy: " + optionValue + " (it needs to follow the syntax /myscript=queue:60)");
+        }
+        String path = bits[0].startsWith("/") ? bits[0] : "/" + bits[0];
+        String scriptForPath = path.equals("/") ? script : commands.get(path);
+        if (scriptForPath == null) {
+            throw new IllegalArgumentException("Invalid value for --concurrency-policy: " + optionValue + " (no command for path " + path
+                    + ")");
+        }
+        ScriptQueue.Policy policy = ScriptQueue.Policy.fromOptionValue(bits[1]);
+        try {
+            int maxWaitInSec = bits.length > 2 ? Integer.parseInt(bits[2]) : ScriptQueue.MAX_WAIT_DEFAULT_IN_SEC;
+            if (maxWaitInSec <= 0) {
+                throw new NumberFormatException();
+            }
+            concurrencyPolicies.put(scriptForPath, policy);
+            concurrencyMaxWaits.put(scriptForPath, maxWaitInSec);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    "Invalid value for --concurrency-policy: " + optionValue + " (the maximum wait must be a positive number of seconds)");
+        }
+    }
+
+    private static String describeExecutorDefault(RouteExecutors.Route route) {
+        return route.getDefaultThreads() + ":" + route.getDefaultQueueSize();
+    }
+
+    private int getPositiveIntFromCommandLineOption(CommandLine line, String parameterName) {
+        String value = line.getOptionValue(parameterName);
+        try {
+            int intValue = Integer.parseInt(value);
+            if (intValue > 0) {
+                return intValue;
+            }
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        throw new IllegalArgumentException("Parameter " + parameterName + " has to be a positive number: " + value);
+    }
+
     public boolean isValid() {
         return isValid;
     }
@@ -267,6 +551,14 @@ public class ApplyServerConfig {
         return excludeFromDownloadPattern;
     }
 
+    public int getDownloadBlockSize() {
+        return downloadBlockSize;
+    }
+
+    public int getDownloadThreads() {
+        return downloadThreads;
+    }
+
     public String getPropertiesFilename() {
         return propertiesFilename;
     }
@@ -278,4 +570,90 @@ public class ApplyServerConfig {
     public boolean isStreamResponse() {
         return streamResponse;
     }
+
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    public long getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    public int getMaxEntryCount() {
+        return maxEntryCount;
+    }
+
+    public int getMaxCompressionRatio() {
+        return maxCompressionRatio;
+    }
+
+    public int getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    public boolean isStagedExtraction() {
+        return stagedExtraction;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public int getExecutorThreads(RouteExecutors.Route route) {
+        return executorThreads.getOrDefault(route, route.getDefaultThreads());
+    }
+
+    public int getExecutorQueueSize(RouteExecutors.Route route) {
+        return executorQueueSizes.getOrDefault(route, route.getDefaultQueueSize());
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    /** @return true if the output of runs is written to the state dir (and runs are kept across restarts), as the output may
+     *         contain secrets this requires an explicit --state-dir or --run-retention */
+    public boolean isPersistRuns() {
+        return persistRuns;
+    }
+
+    public int getRunRetentionRuns() {
+        return runRetentionRuns;
+    }
+
+    public int getRunRetentionDays() {
+        return runRetentionDays;
+    }
+
+    public int getRunRetentionSizeInMb() {
+        return runRetentionSizeInMb;
+    }
+
+    public ScriptQueue.Policy getConcurrencyPolicy(String script) {
+        return concurrencyPolicies.getOrDefault(script, ScriptQueue.Policy.REJECT);
+    }
+
+    public int getConcurrencyMaxWait(String script) {
+        return concurrencyMaxWaits.getOrDefault(script, ScriptQueue.MAX_WAIT_DEFAULT_IN_SEC);
+    }
+
+    public String getStateDir() {
+        return stateDir;
+    }
+
+    public boolean isKeepSource() {
+        return keepSource;
+    }
+
+    public boolean isWatchProperties() {
+        return watchProperties;
+    }
+
+    public String getPropertiesChangedScript() {
+        return propertiesChangedScript;
+    }
 }
@@ -8,6 +8,7 @@
  */
 package biz.netcentric.ops.applyserver;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -15,32 +16,41 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
+import java.nio.file.Files;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Deque;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.IntStream;
 
-import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.compress.utils.IOUtils;
 import org.apache.commons.exec.DefaultExecutor;
 import org.apache.commons.exec.ExecuteException;
 import org.apache.commons.exec.PumpStreamHandler;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.output.ProxyOutputStream;
 import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
@@ -52,17 +62,52 @@ class ApplyServerHttpHandler implements HttpHandler {
     static final String HEADER_LOCATION = "Location";
     static final String HEADER_CONTENT_TYPE = "Content-Type";
     static final String CONTENT_TYPE_HTML = "text/html";
+    static final String CONTENT_TYPE_TEXT = "text/plain; charset=utf-8";
 
     static final String HEADER_APIKEY = "apikey";
     static final String APPLY_LOGFILE_DEFAULT = ".apply.log";
 
     static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    // thread-safe, shared by all requests
+    static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern(DATE_FORMAT).withZone(ZoneId.systemDefault());
     static final String HEADER_STREAM_RESPONSE = "Stream-Response";
+    static final String HEADER_ETAG = "ETag";
+    static final String HEADER_IF_MATCH = "If-Match";
+    static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    static final String HEADER_RANGE = "Range";
+    static final String HEADER_IF_RANGE = "If-Range";
+    static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+    static final String HEADER_CONTENT_RANGE = "Content-Range";
+    static final String HEADER_CONTENT_DISPOSITION = "Content-Disposition";
+    static final String HEADER_SNAPSHOT_TOKEN = "Snapshot-Token";
+    static final String HEADER_PREFER = "Prefer";
+    static final String HEADER_RUN_ID = "Run-Id";
+
+    static final String JOBS_URL_PREFIX = "/jobs/";
+    static final String RUN_URL_PREFIX = "/run/";
+    static final String RUN_TAIL_URL_SUFFIX = "/tail";
+    static final String RUNS_URL = "/runs";
+    static final int RUNS_LIMIT_DEFAULT = 20;
+    static final int RUNS_LIMIT_MAX = 1000;
+    private static final String RESULT_ACCEPTED = "accepted";
+    private static final String RUN_OUTPUT_DIR = "runs";
+    private static final String RUN_STORE_DIR = "run-store";
+    private static final int MAX_JOB_WAIT_IN_SEC = 300;
+
+    private static final Pattern RANGE_REGEX = Pattern.compile("bytes=(\\d*)-(\\d*)");
 
     private final ApplyServerConfig config;
 
-    private CopyOnWriteArrayList<ScriptResult> lastResults = new CopyOnWriteArrayList<>();
-    private Map<String, Lock> scriptLocks = new ConcurrentHashMap<>();
+    private final RunHistory runHistory;
+    // null if the store could not be opened
+    private RunStore runStore;
+    // for the output of runs exceeding the in-memory threshold
+    private final File runOutputDir;
+    private final AtomicInteger lastRunId;
+    // runs in progress by id, removed once finished
+    private final Map<Integer, RunOutput> runningOutputs = new ConcurrentHashMap<>();
+    private Map<String, ScriptQueue> scriptQueues = new ConcurrentHashMap<>();
 
     private Map<String, String> properties;
 
@@ -70,34 +115,284 @@ class ApplyServerHttpHandler implements HttpHandler {
 
     ZipInflater zipInflater;
     ZipDeflater zipDeflater;
+    StagedDestination stagedDestination;
+    SourceCache sourceCache;
+    UploadLimits uploadLimits;
+    DownloadCache downloadCache;
+    SnapshotStore snapshotStore;
+    RouteExecutors routeExecutors;
+    Jobs jobs;
+    Metrics metrics;
 
     ApplyServerHttpHandler(ApplyServerConfig config, Map<String, String> properties) {
 
         this.config = config;
         this.properties = properties;
 
-        zipInflater = new ZipInflater();
+        zipInflater = new ZipInflater(config.getDownloadBlockSize(), config.getDownloadThreads());
+        downloadCache = new DownloadCache(zipInflater, config.getDestination(), config.getExcludeFromDownloadPattern(),
+                new File(config.getStateDir()));
+        snapshotStore = new SnapshotStore(zipInflater, config.getDestination(), config.getExcludeFromDownloadPattern(),
+                new File(config.getStateDir()));
         zipDeflater = new ZipDeflater(config.getDestination(), this.config.isFiltering(), this.config.getExcludeFromFilteringRegex(),
-                properties);
+                properties, config.getMaxBufferedBytes(), config.getDurability());
+        uploadLimits = new UploadLimits(config.getMaxBodySize(), config.getMaxEntrySize(), config.getMaxEntryCount(),
+                config.getMaxCompressionRatio());
+        if (config.isStagedExtraction()) {
+            stagedDestination = new StagedDestination(config.getDestination(),
+                    config.getDurability() != Durability.NONE ? zipDeflater.getExtractionExecutor() : null);
+        }
+        if (config.isKeepSource()) {
+            sourceCache = new SourceCache(new File(config.getStateDir()));
+        }
+
+        runHistory = new RunHistory(config.getHistorySize());
+        if (config.isPersistRuns()) {
+            runOutputDir = new File(config.getStateDir(), RUN_OUTPUT_DIR);
+            // spilled output of the previous process (the store keeps a copy)
+            FileUtils.deleteQuietly(runOutputDir);
+            try {
+                runStore = new RunStore(new File(config.getStateDir(), RUN_STORE_DIR), config.getRunRetentionRuns(),
+                        config.getRunRetentionDays(), config.getRunRetentionSizeInMb());
+            } catch (IOException e) {
+                System.out.println("Could not open run store, runs are only kept in memory: " + e);
+            }
+        } else {
+            // the output is kept in memory only
+            runOutputDir = null;
+        }
+        lastRunId = new AtomicInteger(runStore != null ? runStore.getLastRunId() : 0);
 
-        initScriptLocks(config);
+        initScriptQueues(config);
+        routeExecutors = new RouteExecutors(config);
+        jobs = new Jobs();
+        metrics = new Metrics();
+        registerMetrics();
 
-        upSinceMessage = "Up since " + new SimpleDateFormat(DATE_FORMAT).format(new Date());
+        upSinceMessage = "Up since " + DATE_FORMATTER.format(new Date().toInstant());
     }
 
-    private void initScriptLocks(ApplyServerConfig config) {
-        scriptLocks.put(config.getScript(), new ReentrantLock());
+    private void registerMetrics() {
+        metrics.register("executor_queue_depth", "gauge", "Requests waiting for a thread of the executor of their route", () -> {
+            Map<String, Integer> samples = new HashMap<>();
+            for (RouteExecutors.Route route : RouteExecutors.Route.values()) {
+                samples.put(Metrics.labels("route", route.toOptionValue()), routeExecutors.getBulkhead(route).getQueueDepth());
+            }
+            return samples;
+        });
+        metrics.register("executor_active_threads", "gauge", "Requests being handled by the executor of their route", () -> {
+            Map<String, Integer> samples = new HashMap<>();
+            for (RouteExecutors.Route route : RouteExecutors.Route.values()) {
+                samples.put(Metrics.labels("route", route.toOptionValue()), routeExecutors.getBulkhead(route).getActiveCount());
+            }
+            return samples;
+        });
+        metrics.register("active_runs", "gauge", "Runs in progress (including asynchronous jobs)",
+                () -> Collections.singletonMap("", runningOutputs.size()));
+        metrics.register("lock_rejections_total", "counter",
+                "Requests rejected as their script was running (or not run within the maximum wait of the concurrency policy)", () -> {
+                    Map<String, Long> samples = new HashMap<>();
+                    for (Map.Entry<String, ScriptQueue> scriptQueue : scriptQueues.entrySet()) {
+                        samples.put(Metrics.labels("script", scriptQueue.getKey()), scriptQueue.getValue().getRejectedCount());
+                    }
+                    return samples;
+                });
+    }
+
+    private void initScriptQueues(ApplyServerConfig config) {
+        initScriptQueue(config.getScript());
         for (String command : config.getCommands().values()) {
-            scriptLocks.put(command, new ReentrantLock());
+            initScriptQueue(command);
+        }
+        if (config.getPropertiesChangedScript() != null) {
+            initScriptQueue(config.getPropertiesChangedScript());
+        }
+    }
+
+    private void initScriptQueue(String script) {
+        scriptQueues.putIfAbsent(script,
+                new ScriptQueue(script, config.getConcurrencyPolicy(script), config.getConcurrencyMaxWait(script)));
+    }
+
+    /** Filters the files referencing the given properties again and runs the script configured for property changes (if any). */
+    void handlePropertiesChange(Set<String> changedKeys) {
+        RunOutput resultLog = newRunOutput();
+        startRun(resultLog);
+        PrintWriter resultLogWriter = new PrintWriter(resultLog);
+        String scriptToRun = config.getPropertiesChangedScript();
+        String resultName = scriptToRun != null ? scriptToRun : "properties reload";
+        long startTime = System.currentTimeMillis();
+        try {
+            resultLogWriter.println("Properties changed at " + DATE_FORMATTER.format(new Date().toInstant()) + ": "
+                    + StringUtils.join(changedKeys, ", "));
+            int filesWritten = refilterFiles(changedKeys, resultLogWriter);
+            downloadCache.invalidate();
+
+            int exitValue = 0;
+            if (scriptToRun != null && filesWritten > 0) {
+                // other than for requests, the script is not skipped if running already
+                Semaphore lock = this.scriptQueues.get(scriptToRun).getLock();
+                lock.acquireUninterruptibly();
+                try {
+                    exitValue = runApplyScript(resultLogWriter, resultLog, scriptToRun);
+                } finally {
+                    lock.release();
+                }
+            }
+            resultLogWriter.println("Finished after " + (System.currentTimeMillis() - startTime) + "ms");
+            resultLogWriter.flush();
+            addResult(resultLog, resultName, exitValue == 0 ? "success" : "failed", exitValue == 0 ? 200 : 500);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace(resultLogWriter);
+            resultLogWriter.flush();
+            addResult(resultLog, resultName, "failed", 500);
+        } finally {
+            finishRun(resultLog);
+        }
+        System.out.print(resultLog.toString());
+    }
+
+    private RunOutput newRunOutput() {
+        return new RunOutput(runOutputDir);
+    }
+
+    /** Assigns the next run id to the given output (unless assigned already), the output can be tailed until the run is finished.
+     *
+     * @return the run id */
+    private int startRun(RunOutput runOutput) {
+        if (runOutput.getRunId() == 0) {
+            runOutput.setRunId(lastRunId.incrementAndGet());
+            runOutput.enableTail();
+            runningOutputs.put(runOutput.getRunId(), runOutput);
+        }
+        return runOutput.getRunId();
+    }
+
+    private void finishRun(RunOutput runOutput) {
+        runOutput.finish();
+        runningOutputs.remove(runOutput.getRunId(), runOutput);
+    }
+
+    private ScriptResult addResult(RunOutput runOutput, String scriptName, String result, int resultCode) {
+        startRun(runOutput);
+        ScriptResult scriptResult = new ScriptResult(scriptName, result, resultCode, runOutput);
+        metrics.countResult(scriptName, resultCode);
+        runHistory.add(scriptResult);
+        if (runStore != null) {
+            try {
+                runStore.add(scriptResult);
+            } catch (IOException e) {
+                System.out.println("Could not store run " + scriptResult.getRunId() + ": " + e);
+            }
+        }
+        return scriptResult;
+    }
+
+    /** @return the result of the given run from the history or the store or null if it does not exist (anymore) */
+    private ScriptResult getResult(int runId) {
+        ScriptResult result = runHistory.get(runId);
+        if (result == null && runStore != null) {
+            try {
+                result = runStore.get(runId);
+            } catch (IOException e) {
+                System.out.println("Could not read run " + runId + " from store: " + e);
+            }
+        }
+        return result;
+    }
+
+    /** Looks up a page of results, the newest first: from the history and, beyond the history (e.g. after a restart), from the store.
+     *
+     * @param scriptName only results of this script or null for all
+     * @param status only results with this result (e.g. success) or null for all
+     * @return up to limit results after skipping offset matching results */
+    private List<ScriptResult> findResults(int offset, int limit, String scriptName, String status) {
+        List<ScriptResult> results = new ArrayList<>(Math.min(limit, RUNS_LIMIT_DEFAULT));
+        int skipped = 0;
+        int oldestRunId = lastRunId.get() + 1;
+        List<ScriptResult> candidates = runHistory.getLatest();
+        while (true) {
+            for (ScriptResult result : candidates) {
+                oldestRunId = Math.min(oldestRunId, result.getRunId());
+                if ((scriptName != null && !scriptName.equals(result.getScriptName()))
+                        || (status != null && !status.equals(result.getResult()))) {
+                    continue;
+                }
+                if (skipped < offset) {
+                    skipped++;
+                } else {
+                    results.add(result);
+                    if (results.size() == limit) {
+                        return results;
+                    }
+                }
+            }
+            if (runStore == null) {
+                break;
+            }
+            try {
+                candidates = runStore.getLatest(oldestRunId, RUNS_LIMIT_DEFAULT);
+            } catch (IOException e) {
+                System.out.println("Could not read runs from store: " + e);
+                break;
+            }
+            if (candidates.isEmpty()) {
+                break;
+            }
+        }
+        return results;
+    }
+
+    /** @return the number of files written */
+    private int refilterFiles(Set<String> changedKeys, PrintWriter resultLogWriter) throws IOException {
+        Set<String> paths = sourceCache.getPathsUsingProperties(changedKeys);
+        if (paths.isEmpty()) {
+            resultLogWriter.println("No files reference the changed properties");
+            return 0;
+        }
+
+        File stagingRelease = stagedDestination != null ? stagedDestination.createStaging(resultLogWriter) : null;
+        ZipDeflater refilteringZipDeflater = (stagingRelease != null ? zipDeflater.withDestination(stagingRelease.getPath()) : zipDeflater)
+                .withSyncBatch();
+        SourceCache.Update sourceCacheUpdate = null;
+        int filesWritten = 0;
+        boolean success = false;
+        try {
+            // an empty update to not interfere with uploads
+            sourceCacheUpdate = sourceCache.beginUpdate(true, null);
+            for (String path : paths) {
+                if (refilteringZipDeflater.refilter(path, sourceCache.getSourceFile(path), resultLogWriter, new TreeMap<>())) {
+                    filesWritten++;
+                }
+            }
+            refilteringZipDeflater.syncWrittenFiles(resultLogWriter);
+            sourceCacheUpdate.commit();
+            success = true;
+        } finally {
+            if (sourceCacheUpdate != null) {
+                sourceCacheUpdate.abort();
+            }
+            if (stagingRelease != null) {
+                if (success && filesWritten > 0) {
+                    stagedDestination.activate(stagingRelease, resultLogWriter);
+                } else {
+                    stagedDestination.discard(stagingRelease, resultLogWriter);
+                }
+            }
         }
+        resultLogWriter.println(filesWritten + " files written, " + (paths.size() - filesWritten) + " unchanged");
+        return filesWritten;
     }
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
 
-        ByteArrayOutputStream resultLog = new ByteArrayOutputStream();
+        ApplyEvents.Request requestEvent = ApplyEvents.beginRequest(exchange.getRequestMethod(), exchange.getRequestURI().getPath());
+        RunOutput resultLog = newRunOutput();
         PrintWriter resultLogWriter = new PrintWriter(resultLog);
         String scriptToRun = null;
+        boolean isResponseDeferred = false;
+        boolean isRunContinuedByJob = false;
         try {
 
             String apiKey = this.config.getApiKey();
@@ -119,7 +414,7 @@ class ApplyServerHttpHandler implements HttpHandler {
             Map<String, String> requestParams = readParameters(requestUri);
 
             if ("GET".equals(method)) {
-                handleGet(exchange, requestPath);
+                isResponseDeferred = handleGet(exchange, requestPath, requestParams);
             } else if ("POST".equals(method)) {
             
                 // IP range is only checked for post requests
@@ -130,72 +425,180 @@ class ApplyServerHttpHandler implements HttpHandler {
                     }
                 }
                 
+                startRun(resultLog);
                 resultLogWriter
                         .println("Request from " + exchange.getRemoteAddress() + " at "
-                                + new SimpleDateFormat(DATE_FORMAT).format(new Date()));
+                                + DATE_FORMATTER.format(new Date().toInstant()));
 
                 scriptToRun = getScriptToRun(requestPath);
-                handlePostSynchronized(exchange, resultLog, resultLogWriter, scriptToRun, requestPath, requestParams);
+                isRunContinuedByJob = handlePostSynchronized(exchange, resultLog, resultLogWriter, scriptToRun, requestPath,
+                        requestParams);
             } else {
                 throw new IllegalArgumentException("Only http method GET and POST is supported");
             }
 
+        } catch (LimitExceededException e) {
+            sendShortResult(exchange, e.getResponseCode(), e.getMessage(), resultLogWriter, resultLog);
+            addResult(resultLog, scriptToRun, "failed", e.getResponseCode());
         } catch (IllegalArgumentException e) {
             sendShortResult(exchange, 400, e.getMessage(), resultLogWriter, resultLog);
-            this.lastResults.add(new ScriptResult(scriptToRun, "failed", 400, resultLog.toString()));
+            addResult(resultLog, scriptToRun, "failed", 400);
         } catch (Exception e) {
             PrintWriter writer = new PrintWriter(resultLog);
             e.printStackTrace(writer);
             writer.flush();
             sendShortResult(exchange, 500, "Unexpected error: " + e.getMessage(), resultLogWriter, resultLog);
-            this.lastResults.add(new ScriptResult(scriptToRun, "failed", 500, resultLog.toString()));
+            addResult(resultLog, scriptToRun, "failed", 500);
         } finally {
             if (resultLogWriter != null) {
                 resultLogWriter.close();
             }
-            exchange.close();
+            if (!isRunContinuedByJob) {
+                finishRun(resultLog);
+            }
+            if (!isResponseDeferred) {
+                exchange.close();
+            }
+            requestEvent.end(scriptToRun);
         }
 
     }
 
-    private void handleGet(HttpExchange exchange, String path) throws IOException {
-        String runUrlPrefix = "/run/";
+    /** @return true if the response is sent later (the exchange is closed then) */
+    private boolean handleGet(HttpExchange exchange, String path, Map<String, String> requestParams) throws IOException {
+        String downloadUrlPrefix = "/download.";
         String downloadUrl = "/download.tar.gz";
-        if (path.startsWith(runUrlPrefix)) {
-            String urlIndex = StringUtils.substringAfter(path, runUrlPrefix);
-            try {
-                int index = Integer.parseInt(urlIndex) - 1;
-                if (index < this.lastResults.size()) {
-                    sendShortResult(exchange, 200, this.lastResults.get(index).getScriptOutput());
-                } else {
-                    throw new IllegalArgumentException();
+        String manifestUrl = "/manifest";
+        String metricsUrl = "/metrics";
+        PayloadFormat downloadFormat = path.startsWith(downloadUrlPrefix)
+                ? PayloadFormat.fromExtension(StringUtils.substringAfter(path, downloadUrlPrefix))
+                : null;
+        if (path.startsWith(RUN_URL_PREFIX) && path.endsWith(RUN_TAIL_URL_SUFFIX)) {
+            sendRunTail(exchange, StringUtils.substringBetween(path, RUN_URL_PREFIX, RUN_TAIL_URL_SUFFIX));
+        } else if (path.startsWith(RUN_URL_PREFIX)) {
+            String urlIndex = StringUtils.substringAfter(path, RUN_URL_PREFIX);
+            ScriptResult result = getResult(NumberUtils.toInt(urlIndex));
+            if (result != null) {
+                exchange.getResponseHeaders().add(HEADER_CONTENT_TYPE, CONTENT_TYPE_TEXT);
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    result.writeScriptOutputTo(os);
                 }
-            } catch (IllegalArgumentException e) { // NumberFormatException is also an IllegalArgumentException
+            } else {
                 exchange.getResponseHeaders().add(HEADER_LOCATION, "/");
                 sendShortResult(exchange, 302, "Invalid index '" + urlIndex+"'");
             }
-        } else if (path.equals(downloadUrl)) {
-            streamDownload(exchange);
+        } else if (downloadFormat != null) {
+            streamDownload(exchange, downloadFormat, requestParams);
+        } else if (path.equals(manifestUrl)) {
+            sendManifest(exchange);
+        } else if (path.equals(metricsUrl)) {
+            sendMetrics(exchange);
+        } else if (path.startsWith(JOBS_URL_PREFIX)) {
+            return sendJob(exchange, StringUtils.substringAfter(path, JOBS_URL_PREFIX), requestParams);
+        } else if (path.equals(RUNS_URL)) {
+            sendRuns(exchange, requestParams);
         } else {
-            exchange.getResponseHeaders().add(HEADER_CONTENT_TYPE, CONTENT_TYPE_HTML);
-            Deque<String> htmlLinks = new LinkedList<String>();
-            for (int i = 0; i < this.lastResults.size(); i++) {
-                ScriptResult scriptResult = this.lastResults.get(i);
-                htmlLinks.addFirst(
-                        "<a href=\"" + runUrlPrefix + (i + 1) + "\">" + new SimpleDateFormat(DATE_FORMAT).format(scriptResult.getTime()) + " "
-                                + scriptResult.getScriptName() + ": <strong>" + scriptResult.getResult() + "</strong> (" + scriptResult.getResultCode()
-                                + ")</a>");
+            int offset = getOffsetParam(requestParams);
+            int limit = getLimitParam(requestParams);
+            // one more to know whether there is an older page
+            List<ScriptResult> results = findResults(offset, limit + 1, null, null);
+            StringBuilder htmlLinks = new StringBuilder();
+            for (ScriptResult scriptResult : results.subList(0, Math.min(limit, results.size()))) {
+                htmlLinks.append("<a href=\"").append(RUN_URL_PREFIX).append(scriptResult.getRunId()).append("\">")
+                        .append(DATE_FORMATTER.format(scriptResult.getTime().toInstant())).append(" ").append(scriptResult.getScriptName())
+                        .append(": <strong>").append(scriptResult.getResult()).append("</strong> (").append(scriptResult.getResultCode())
+                        .append(")</a><br>\n");
+            }
+            List<String> pagingLinks = new ArrayList<>();
+            if (offset > 0) {
+                pagingLinks.add("<a href=\"/?offset=" + Math.max(0, offset - limit) + "&limit=" + limit + "\">&laquo; newer</a>");
             }
+            if (results.size() > limit) {
+                pagingLinks.add("<a href=\"/?offset=" + (offset + limit) + "&limit=" + limit + "\">older &raquo;</a>");
+            }
+            exchange.getResponseHeaders().add(HEADER_CONTENT_TYPE, CONTENT_TYPE_HTML);
             sendShortResult(exchange, 200,
                     "<html><head><title>Apply Server</title></head>\n<body><h1>Apply Server</h1>\n<div>" + upSinceMessage
                             + (this.config.isEnableDownload()
                                     ? " | <a href=\"" + downloadUrl + "\">Download files</a> from destination as tar.gz"
                                     : "")
-                            + "</div><br/>\n\n"
-                            + (!htmlLinks.isEmpty() ? StringUtils.join(htmlLinks, "<br>\n") : "<i>no script executions</i>")
-                            + "<br/>\n<br/>\n"
+                            + "</div>\n<div>Requests: " + getExecutorsSummary() + "</div>\n"
+                            + (!runningOutputs.isEmpty() ? "<div>Running: " + getRunningRunsLinks() + "</div>\n" : "") + "<br/>\n\n"
+                            + (htmlLinks.length() > 0 ? htmlLinks : "<i>no script executions</i><br>\n")
+                            + (!pagingLinks.isEmpty() ? "<br/>\n" + StringUtils.join(pagingLinks, " | ") + "<br/>\n" : "")
+                            + "<br/>\n"
                             + "\n\n</body></html>");
         }
+        return false;
+    }
+
+    /** Sends a page of results as JSON (without the output, see /run/{id}), the newest first. */
+    private void sendRuns(HttpExchange exchange, Map<String, String> requestParams) throws IOException {
+        int offset = getOffsetParam(requestParams);
+        int limit = getLimitParam(requestParams);
+        String scriptName = requestParams.get("script");
+        String status = requestParams.get("status");
+        List<ScriptResult> results = findResults(offset, limit + 1, scriptName, status);
+        boolean hasMore = results.size() > limit;
+
+        StringBuilder json = new StringBuilder(64 + Math.min(limit, results.size()) * 128);
+        json.append("{\"offset\": ").append(offset).append(", \"limit\": ").append(limit).append(", \"hasMore\": ").append(hasMore)
+                .append(", \"runs\": [");
+        for (int i = 0; i < results.size() && i < limit; i++) {
+            json.append(i > 0 ? ", " : "").append(results.get(i).toJson());
+        }
+        json.append("]}\n");
+        sendJson(exchange, json.toString());
+    }
+
+    private static int getOffsetParam(Map<String, String> requestParams) {
+        int offset = requestParams.containsKey("offset") ? Integer.parseInt(requestParams.get("offset")) : 0;
+        if (offset < 0) {
+            throw new IllegalArgumentException("Parameter offset cannot be negative");
+        }
+        return offset;
+    }
+
+    private static int getLimitParam(Map<String, String> requestParams) {
+        int limit = requestParams.containsKey("limit") ? Integer.parseInt(requestParams.get("limit")) : RUNS_LIMIT_DEFAULT;
+        if (limit < 1 || limit > RUNS_LIMIT_MAX) {
+            throw new IllegalArgumentException("Parameter limit has to be between 1 and " + RUNS_LIMIT_MAX);
+        }
+        return limit;
+    }
+
+    private String getRunningRunsLinks() {
+        List<String> links = new ArrayList<>();
+        for (Integer runId : new TreeMap<>(runningOutputs).keySet()) {
+            links.add("<a href=\"" + RUN_URL_PREFIX + runId + RUN_TAIL_URL_SUFFIX + "\">#" + runId + "</a>");
+        }
+        return StringUtils.join(links, " ");
+    }
+
+    /** Streams the output of a run, for a run in progress the buffered backlog and then the output as it is written. */
+    private void sendRunTail(HttpExchange exchange, String runIdParam) throws IOException {
+        int runId = NumberUtils.toInt(runIdParam);
+        RunOutput runOutput = runningOutputs.get(runId);
+        ScriptResult result = runOutput == null ? getResult(runId) : null;
+        if (runOutput == null && result == null) {
+            sendShortResult(exchange, 404, "Run " + runIdParam + " does not exist (anymore)");
+            return;
+        }
+        exchange.getResponseHeaders().add(HEADER_CONTENT_TYPE, CONTENT_TYPE_TEXT);
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream os = exchange.getResponseBody()) {
+            if (runOutput != null) {
+                runOutput.tail(os);
+            } else {
+                result.writeScriptOutputTo(os);
+            }
+        } catch (IOException e) {
+            // the client went away
+            System.out.println("Stopped tailing run " + runId + ": " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     private String getScriptToRun(String requestPath) {
@@ -207,37 +610,94 @@ class ApplyServerHttpHandler implements HttpHandler {
         return scriptToRun;
     }
 
-    private void handlePostSynchronized(HttpExchange exchange, ByteArrayOutputStream resultLog, PrintWriter resultLogWriter,
+    /** @return true if the script is run by a job (that finishes the run) */
+    private boolean handlePostSynchronized(HttpExchange exchange, RunOutput resultLog, PrintWriter resultLogWriter,
             String scriptToRun,
             String requestPath, Map<String, String> requestParams) throws ExecuteException, IOException, FileNotFoundException {
-        Lock lock = this.scriptLocks.get(scriptToRun);
+        ScriptQueue scriptQueue = this.scriptQueues.get(scriptToRun);
+        // asynchronous requests are not coalesced, the batch would be finished (with the response 202) before the job
+        if (scriptQueue.getPolicy() != ScriptQueue.Policy.COALESCE || isAsync(exchange, requestParams)) {
+            ScriptResult result = handlePostLocked(exchange, resultLog, resultLogWriter, scriptToRun, requestPath, requestParams,
+                    scriptQueue);
+            return RESULT_ACCEPTED.equals(result.getResult());
+        }
 
-        if (lock.tryLock()) {
-            try {
-                handlePost(exchange, resultLog, resultLogWriter, requestPath, requestParams, scriptToRun);
-            } finally {
-                lock.unlock();
-            }
-        } else {
+        ScriptQueue.Ticket ticket = scriptQueue.join();
+        if (!ticket.isLeader()) {
+            sendCoalescedResult(exchange, ticket.awaitResult(), resultLog, resultLogWriter);
+            return false;
+        }
+        if (ticket.getCoalescedCount() > 0) {
+            resultLogWriter.println("Run covers " + ticket.getCoalescedCount()
+                    + " older request(s) that arrived while the script was running");
+        }
+        ScriptResult result = null;
+        try {
+            result = handlePostLocked(exchange, resultLog, resultLogWriter, scriptToRun, requestPath, requestParams, scriptQueue);
+        } catch (IOException | RuntimeException e) {
+            int responseCode = e instanceof LimitExceededException ? ((LimitExceededException) e).getResponseCode()
+                    : e instanceof IllegalArgumentException ? 400 : 500;
+            result = new ScriptResult(resultLog.getRunId(), scriptToRun, "failed", responseCode,
+                    resultLog.toString() + e.getMessage() + "\n");
+            throw e;
+        } finally {
+            // the other requests of the batch would wait forever otherwise
+            ticket.complete(result != null ? result
+                    : new ScriptResult(resultLog.getRunId(), scriptToRun, "failed", 500, resultLog.toString()));
+        }
+        return RESULT_ACCEPTED.equals(result.getResult());
+    }
+
+    /** Runs the script once the lock for it could be acquired as per policy of the script queue.
+     *
+     * @return the result sent to the client */
+    private ScriptResult handlePostLocked(HttpExchange exchange, RunOutput resultLog, PrintWriter resultLogWriter,
+            String scriptToRun, String requestPath, Map<String, String> requestParams, ScriptQueue scriptQueue)
+            throws ExecuteException, IOException, FileNotFoundException {
+        if (!scriptQueue.acquireForRequest()) {
             sendShortResult(exchange, 400, "Script " + scriptToRun + " is already running - skipped request.", resultLogWriter,
                     resultLog);
-            this.lastResults.add(new ScriptResult(scriptToRun, "failed", 400, resultLog.toString()));
+            return addResult(resultLog, scriptToRun, "failed", 400);
+        }
+
+        Semaphore lock = scriptQueue.getLock();
+        boolean isLockPassedToJob = false;
+        try {
+            if (isAsync(exchange, requestParams)) {
+                Jobs.Job job = startJob(exchange, resultLog, resultLogWriter, requestPath, requestParams, scriptToRun, lock);
+                isLockPassedToJob = true;
+                sendJobAccepted(exchange, job, resultLog, resultLogWriter);
+                return new ScriptResult(resultLog.getRunId(), scriptToRun, RESULT_ACCEPTED, 202, resultLog.toString());
+            } else {
+                return handlePost(exchange, resultLog, resultLogWriter, requestPath, requestParams, scriptToRun);
+            }
+        } finally {
+            if (!isLockPassedToJob) {
+                lock.release();
+            }
+        }
+    }
+
+    /** Responds to a request that was covered by the run for a newer request (its own payload is not used). */
+    private void sendCoalescedResult(HttpExchange exchange, ScriptResult result, RunOutput resultLog,
+            PrintWriter resultLogWriter) throws IOException {
+        resultLogWriter.println("--- Request was coalesced into the run of script " + result.getScriptName()
+                + " for a newer request (the payload of this request was not applied):");
+        resultLogWriter.flush();
+        result.writeScriptOutputTo(resultLog);
+        try (OutputStream os = exchange.getResponseBody()) {
+            exchange.sendResponseHeaders(result.getResultCode(), resultLog.size());
+            resultLog.writeTo(os);
         }
+        addResult(resultLog, result.getScriptName(), result.getResult(), result.getResultCode());
     }
 
-    private void handlePost(HttpExchange exchange, ByteArrayOutputStream resultLog, PrintWriter resultLogWriter,
+    private ScriptResult handlePost(HttpExchange exchange, RunOutput resultLog, PrintWriter resultLogWriter,
             String requestPath, Map<String, String> requestParams, String scriptToRun)
             throws ExecuteException, IOException, FileNotFoundException {
 
         long startTime = System.currentTimeMillis();
-        boolean debug = Boolean.valueOf(requestParams.get("debug"));
-
-        if (!this.config.isDisableUpload()) {
-            resultLogWriter.println("Processing entity " + requestPath);
-            handleUpload(exchange, resultLogWriter, requestPath, requestParams, debug);
-        } else {
-            resultLogWriter.println("Processing request " + requestPath);
-        }
+        placeFiles(exchange, resultLogWriter, requestPath, requestParams);
 
         boolean scriptSuccess = true;
         int responseCode = 200;
@@ -261,7 +721,7 @@ class ApplyServerHttpHandler implements HttpHandler {
                 
                 // flush(=stream) existing log also into http response and log file
                 resultLogWriter.flush();
-                additionalStreamingOutputs.write(resultLog.toByteArray());
+                resultLog.writeTo(additionalStreamingOutputs);
 
                 scriptResultLog  = new TeeOutputStream(resultLog, additionalStreamingOutputs);
                 scriptResultLogWriter = new PrintWriter(scriptResultLog);
@@ -285,7 +745,7 @@ class ApplyServerHttpHandler implements HttpHandler {
                 scriptResultLogWriter.flush();
             } else {
                 exchange.sendResponseHeaders(responseCode, resultLog.size());
-                responseBodyOutputStream.write(resultLog.toByteArray());
+                resultLog.writeTo(responseBodyOutputStream);
             }
         } catch(IOException|RuntimeException e) {
             responseCode = 500;
@@ -306,28 +766,175 @@ class ApplyServerHttpHandler implements HttpHandler {
             } else {
                 // write file
                 try (OutputStream fileOs = getApplyServerLogFileOutputStream()) {
-                    fileOs.write(resultLog.toByteArray());
+                    resultLog.writeTo(fileOs);
                 }
             }
 
         }
         
+        // the script may have changed files as well
+        downloadCache.invalidate();
+
         // add to last results
-        this.lastResults.add(new ScriptResult(scriptToRun, scriptSuccess ? "success": "failed" , responseCode, resultLog.toString()));
+        return addResult(resultLog, scriptToRun, scriptSuccess ? "success" : "failed", responseCode);
+    }
+
+    private void placeFiles(HttpExchange exchange, PrintWriter resultLogWriter, String requestPath, Map<String, String> requestParams)
+            throws IOException {
+        boolean debug = Boolean.valueOf(requestParams.get("debug"));
+        if (!this.config.isDisableUpload()) {
+            resultLogWriter.println("Processing entity " + requestPath);
+            if (stagedDestination != null) {
+                handleStagedUpload(exchange, resultLogWriter, requestPath, requestParams, debug);
+            } else {
+                handleUpload(exchange, resultLogWriter, requestPath, requestParams, debug, zipDeflater);
+            }
+            downloadCache.invalidate();
+        } else {
+            resultLogWriter.println("Processing request " + requestPath);
+        }
+    }
+
+    private boolean isAsync(HttpExchange exchange, Map<String, String> requestParams) {
+        String prefer = exchange.getRequestHeaders().getFirst(HEADER_PREFER);
+        return Boolean.valueOf(requestParams.get("async")) || StringUtils.contains(prefer, "respond-async");
+    }
+
+    /** Places the files and starts a job for the script that releases the given lock once finished. */
+    private Jobs.Job startJob(HttpExchange exchange, RunOutput resultLog, PrintWriter resultLogWriter,
+            String requestPath, Map<String, String> requestParams, String scriptToRun, Semaphore lock) throws IOException {
+        long startTime = System.currentTimeMillis();
+        placeFiles(exchange, resultLogWriter, requestPath, requestParams);
+        resultLogWriter.flush();
+
+        // the job continues the run (and its output) of the request
+        Jobs.Job job = jobs.start(scriptToRun, resultLog, startedJob -> {
+            RunOutput jobOutput = resultLog;
+            PrintWriter jobOutputWriter = new PrintWriter(new OutputStreamWriter(jobOutput, StandardCharsets.UTF_8), true);
+            int exitValue = 1;
+            try {
+                exitValue = runApplyScript(jobOutputWriter, jobOutput, scriptToRun);
+                jobOutputWriter.println("Finished after " + (System.currentTimeMillis() - startTime) + "ms");
+                return exitValue;
+            } catch (IOException | RuntimeException e) {
+                jobOutputWriter.println("Could not run script: " + e.getMessage());
+                throw e;
+            } finally {
+                lock.release();
+                jobOutputWriter.flush();
+                downloadCache.invalidate();
+                try (OutputStream fileOs = getApplyServerLogFileOutputStream()) {
+                    jobOutput.writeTo(fileOs);
+                }
+                addResult(jobOutput, scriptToRun, exitValue == 0 ? "success" : "failed", exitValue == 0 ? 200 : 500);
+                finishRun(jobOutput);
+            }
+        });
+        return job;
+    }
+
+    private void sendJobAccepted(HttpExchange exchange, Jobs.Job job, RunOutput resultLog, PrintWriter resultLogWriter)
+            throws IOException {
+        String jobUrl = JOBS_URL_PREFIX + job.getId();
+        resultLogWriter.println("--- Running script " + job.getScriptName() + " as job " + job.getId() + ", see " + jobUrl);
+        resultLogWriter.flush();
+        exchange.getResponseHeaders().add(HEADER_LOCATION, jobUrl);
+        exchange.getResponseHeaders().add(HEADER_RUN_ID, String.valueOf(resultLog.getRunId()));
+        // the job is writing to the output already
+        byte[] response = resultLog.toByteArray();
+        try (OutputStream os = exchange.getResponseBody()) {
+            exchange.sendResponseHeaders(202, response.length);
+            os.write(response);
+        }
+    }
+
+    /** @return true if the response is sent once the job has finished (or the wait time has elapsed) */
+    private boolean sendJob(HttpExchange exchange, String jobId, Map<String, String> requestParams) throws IOException {
+        Jobs.Job job = jobs.get(jobId);
+        if (job == null) {
+            sendShortResult(exchange, 404, "Job " + jobId + " does not exist (anymore)");
+            return false;
+        }
+        int waitInSec = requestParams.containsKey("wait") ? Integer.parseInt(requestParams.get("wait")) : 0;
+        if (waitInSec < 0 || waitInSec > MAX_JOB_WAIT_IN_SEC) {
+            throw new IllegalArgumentException("Parameter wait has to be between 0 and " + MAX_JOB_WAIT_IN_SEC + " seconds");
+        }
+        if (waitInSec == 0 || job.getStatus() != Jobs.Status.RUNNING) {
+            sendJson(exchange, job.toJson());
+            return false;
+        }
+        // the request thread is not blocked while waiting
+        jobs.awaitFinished(job, waitInSec).thenAccept(finishedJob -> {
+            try {
+                sendJson(exchange, finishedJob.toJson());
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Could not send status of job " + jobId + ": " + e);
+            } finally {
+                exchange.close();
+            }
+        });
+        return true;
+    }
+
+    private void sendMetrics(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        metrics.writeTo(new PrintWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8)));
+        exchange.getResponseHeaders().add(HEADER_CONTENT_TYPE, Metrics.CONTENT_TYPE);
+        try (OutputStream os = exchange.getResponseBody()) {
+            exchange.sendResponseHeaders(200, bytes.size());
+            bytes.writeTo(os);
+        }
+    }
+
+    private void sendJson(HttpExchange exchange, String json) throws IOException {
+        byte[] jsonBytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add(HEADER_CONTENT_TYPE, Json.CONTENT_TYPE);
+        try (OutputStream os = exchange.getResponseBody()) {
+            exchange.sendResponseHeaders(200, jsonBytes.length);
+            os.write(jsonBytes);
+        }
     }
 
     private FileOutputStream getApplyServerLogFileOutputStream() throws FileNotFoundException, IOException {
-        return new FileOutputStream(getApplyServerLogFile());
+        File applyServerLogFile = getApplyServerLogFile();
+        // with staged extraction the file may be a hard link shared with the previous release
+        Files.deleteIfExists(applyServerLogFile.toPath());
+        return new FileOutputStream(applyServerLogFile);
     }
 
     private File getApplyServerLogFile() throws IOException {
         return ApplyServer.getFile(this.config.getDestination(), APPLY_LOGFILE_DEFAULT);
     }
 
-    private void handleUpload(HttpExchange exchange, PrintWriter resultLogWriter, String requestPath,
-            Map<String, String> requestParams, boolean debug) {
+    private void handleStagedUpload(HttpExchange exchange, PrintWriter resultLogWriter, String requestPath,
+            Map<String, String> requestParams, boolean debug) throws IOException {
+        File stagingRelease = stagedDestination.createStaging(resultLogWriter);
+        boolean filesExtracted;
+        try {
+            filesExtracted = handleUpload(exchange, resultLogWriter, requestPath, requestParams, debug,
+                    zipDeflater.withDestination(stagingRelease.getPath()));
+        } catch (RuntimeException e) {
+            stagedDestination.discard(stagingRelease, resultLogWriter);
+            throw e;
+        }
+        if (filesExtracted) {
+            stagedDestination.activate(stagingRelease, resultLogWriter);
+        } else {
+            stagedDestination.discard(stagingRelease, resultLogWriter);
+        }
+    }
+
+    /** @return true if files were extracted */
+    private boolean handleUpload(HttpExchange exchange, PrintWriter resultLogWriter, String requestPath,
+            Map<String, String> requestParams, boolean debug, ZipDeflater zipDeflater) throws IOException {
         String extension = null;
-        try (InputStream is = exchange.getRequestBody()) {
+        SourceCache.Update sourceCacheUpdate = null;
+        String contentLength = exchange.getRequestHeaders().getFirst(HEADER_CONTENT_LENGTH);
+        uploadLimits.checkContentLength(NumberUtils.toLong(contentLength, -1));
+        UploadLimits.Upload upload = uploadLimits.startUpload();
+        Metrics.UploadTimings uploadTimings = new Metrics.UploadTimings();
+        zipDeflater = zipDeflater.withUpload(upload).withUploadTimings(uploadTimings).withSyncBatch();
+        try (InputStream is = upload.guardBody(exchange.getRequestBody())) {
 
             resultLogWriter.println("--- Placing files:");
             if (this.config.isFiltering()) {
@@ -341,43 +948,74 @@ class ApplyServerHttpHandler implements HttpHandler {
             int count = 0;
             if (requestParams.containsKey("format")) {
                 extension = requestParams.get("format");
-            } else if (requestPath.contains(".")) {
-                String filename = StringUtils.substringAfterLast(requestPath, "/");
-                String[] bits = filename.split("\\.");
-                extension = bits[bits.length - 1];
-                if (extension.equals("gz") && bits.length > 2) {
-                    extension = bits[bits.length - 2] + "." + extension;
+            } else {
+                extension = PayloadFormat.getExtension(StringUtils.substringAfterLast(requestPath, "/"));
+            }
+
+            // the magic bytes of the payload take precedence over the extension
+            BufferedInputStream bufferedIs = new BufferedInputStream(is);
+            PayloadFormat format = PayloadFormat.detect(bufferedIs);
+            if (format != null) {
+                if (extension != null && PayloadFormat.fromExtension(extension) != format) {
+                    resultLogWriter.println("Detected format " + format.getExtension() + " from payload (extension " + extension + " ignored)");
+                }
+                extension = format.getExtension();
+            } else if (extension != null) {
+                format = PayloadFormat.fromExtension(extension);
+                if (format == null) {
+                    throw new IllegalArgumentException("Unsupported format " + extension
+                            + " - provide format either as extension in request path or as parameter 'format' in request). Request: "
+                            + requestPath);
                 }
             } else {
                 
-                if(!this.config.isOptionalPayload() || is.available() > 0) {
+                if(!this.config.isOptionalPayload() || bufferedIs.available() > 0) {
                     throw new IllegalArgumentException(
-                            "Filename needs to be given as path of request or request parameter 'format' has to be used (actual: '"
-                                    + requestPath  + "')");                    
+                            "Format could not be detected from payload, filename needs to be given as path of request or request parameter"
+                                    + " 'format' has to be used (actual: '" + requestPath  + "')");                    
                 } else {
                     resultLogWriter.println("No payload given (payload is optional)");
-                    return;
+                    return false;
                 }
 
             }
-            boolean isZippedTar = extension.equals("tar.gz") || extension.equals("tgz");
-            boolean isTar = extension.equals("tar");
-            if (isZippedTar || isTar) {
-                InputStream tarIs = is;
-                if (isZippedTar) {
-                    tarIs = new GzipCompressorInputStream(tarIs);
+            boolean isDelta = Boolean.valueOf(requestParams.get("delta"));
+            if (sourceCache != null) {
+                sourceCacheUpdate = sourceCache.beginUpdate(isDelta, exchange.getRequestHeaders().getFirst(HEADER_IF_MATCH));
+                zipDeflater = zipDeflater.withSourceCacheUpdate(sourceCacheUpdate);
+                if (isDelta) {
+                    resultLogWriter.println("Applying delta to previous upload");
                 }
-                count = zipDeflater.extractTar(tarIs, resultLogWriter, propertiesUsed);
-            } else if (extension.equals("zip")) {
-                count = zipDeflater.extractZip(is, resultLogWriter, propertiesUsed);
+            } else if (isDelta) {
+                throw new IllegalArgumentException("Delta uploads require the server to be started with --keep-source");
+            }
+
+            long extractionStartTime = System.nanoTime();
+            ApplyEvents.Upload uploadEvent = ApplyEvents.beginUpload(requestPath, extension);
+            if (format.isTar()) {
+                count = zipDeflater.extractTar(format.openTarStream(bufferedIs), resultLogWriter, propertiesUsed);
             } else {
-                throw new IllegalArgumentException("Unsupported format " + extension
-                        + " - provide format either as extension in request path or as parameter 'format' in request). Request: "
-                        + requestPath);
+                count = zipDeflater.extractZip(bufferedIs, resultLogWriter, propertiesUsed);
             }
-            if (count == 0) {
+            // a delta upload may only delete files
+            if (count == 0 && (sourceCacheUpdate == null || sourceCacheUpdate.getDeletions().isEmpty())) {
                 throw new NoFilesInRequestBodyException("Request body for " + requestPath + " did not contain any files.");
             }
+            if (sourceCacheUpdate != null) {
+                for (String path : sourceCacheUpdate.getDeletions()) {
+                    zipDeflater.delete(path, resultLogWriter);
+                }
+            }
+            // the files have to be on disk before the script relies on them
+            zipDeflater.syncWrittenFiles(resultLogWriter);
+            long extractionNanos = System.nanoTime() - extractionStartTime;
+            metrics.observeUpload(upload.getBodyBytes(), extractionNanos, uploadTimings);
+            uploadEvent.end(upload.getBodyBytes(), count, uploadTimings.getDecompressionNanos(), uploadTimings.getFilteringNanos());
+            resultLogWriter.println("Extraction took " + TimeUnit.NANOSECONDS.toMillis(extractionNanos) + "ms (durability "
+                    + zipDeflater.getDurability().toOptionValue() + ")");
+            if (sourceCacheUpdate != null) {
+                sourceCacheUpdate.commit();
+            }
 
             // log filtering only if a count was found
             if (this.config.isFiltering()) {
@@ -399,6 +1037,7 @@ class ApplyServerHttpHandler implements HttpHandler {
                     resultLogWriter.println("   " + key + "=" + propertiesUsed.get(key));
                 }
             }
+            return true;
 
         } catch (NoFilesInRequestBodyException | IOException e) {
             resultLogWriter.println("No http entity payload was sent OR the payload sent was not in expected format " + extension);
@@ -407,6 +1046,11 @@ class ApplyServerHttpHandler implements HttpHandler {
                         "No http entity payload was given in request OR the payload sent was not in expected format " + extension
                                 + " (use e.g. --data-binary for curl or start server with --optional-payload)");
             }
+            return false;
+        } finally {
+            if (sourceCacheUpdate != null) {
+                sourceCacheUpdate.abort();
+            }
         }
     }
 
@@ -459,7 +1103,15 @@ class ApplyServerHttpHandler implements HttpHandler {
 
         executor.setStreamHandler( new PumpStreamHandler(os));
         executor.setExitValues(IntStream.range(0, 100).toArray());
-        int exitValue = executor.execute(cmdLine);
+        long startTime = System.nanoTime();
+        ApplyEvents.Script scriptEvent = ApplyEvents.beginScript(scriptToRun);
+        int exitValue = -1;
+        try {
+            exitValue = executor.execute(cmdLine);
+        } finally {
+            metrics.observeScript(scriptToRun, System.nanoTime() - startTime);
+            scriptEvent.end(exitValue);
+        }
         resultLogWriter.println("--- Apply script '" + scriptToRun + "' returned " + exitValue);
 
         return exitValue;
@@ -470,11 +1122,11 @@ class ApplyServerHttpHandler implements HttpHandler {
     }
 
     private void sendShortResult(HttpExchange exchange, int code, String rawMessage, PrintWriter resultLogWriter,
-            ByteArrayOutputStream resultLog) throws IOException {
+            RunOutput resultLog) throws IOException {
 
         String responseMessage = rawMessage;
         if (resultLog != null && resultLog.size() > 0) {
-            responseMessage = "An error occured - logs up to this point:\n" + resultLog.toString(StandardCharsets.UTF_8.toString())
+            responseMessage = "An error occured - logs up to this point:\n" + resultLog.toString()
                     + "\n\nERROR: "
                     + responseMessage + "\n\n";
         } else {
@@ -484,6 +1136,7 @@ class ApplyServerHttpHandler implements HttpHandler {
         if (resultLogWriter != null) {
             // also make sure the the response log contains the error message (for subsequent GET requests)
             resultLogWriter.println(rawMessage);
+            resultLogWriter.flush();
         }
 
         try (OutputStream os = exchange.getResponseBody()) {
@@ -493,12 +1146,145 @@ class ApplyServerHttpHandler implements HttpHandler {
         }
     }
 
-    private void streamDownload(HttpExchange exchange) throws FileNotFoundException, IOException {
+    private String getExecutorsSummary() {
+        List<String> bulkheads = new ArrayList<>();
+        for (RouteExecutors.Route route : RouteExecutors.Route.values()) {
+            bulkheads.add(routeExecutors.getBulkhead(route).toString());
+        }
+        return StringUtils.join(bulkheads, " | ");
+    }
+
+    private void streamDownload(HttpExchange exchange, PayloadFormat urlFormat, Map<String, String> requestParams)
+            throws FileNotFoundException, IOException {
+        PayloadFormat format = urlFormat;
+        if (requestParams.containsKey("format")) {
+            format = PayloadFormat.fromExtension(requestParams.get("format"));
+            if (format == null) {
+                throw new IllegalArgumentException("Unsupported format '" + requestParams.get("format") + "'");
+            }
+        }
+        int level = requestParams.containsKey("level") ? Integer.parseInt(requestParams.get("level")) : ZipInflater.DEFAULT_LEVEL;
+        // the response is started before the archive is created
+        ZipInflater.checkFormatAndLevel(format, level);
+        DownloadSelection selection = DownloadSelection.create(requestParams.get("path"), requestParams.get("include"),
+                requestParams.get("exclude"));
+        Headers responseHeaders = exchange.getResponseHeaders();
+
+        if (requestParams.containsKey("since")) {
+            if (!selection.isAll()) {
+                throw new IllegalArgumentException("Parameter since cannot be combined with path, include or exclude");
+            }
+            String since = requestParams.get("since");
+            SnapshotStore.Snapshot snapshot = since.isEmpty() ? SnapshotStore.EMPTY : snapshotStore.getSnapshot(since);
+            if (snapshot == null) {
+                sendShortResult(exchange, 410, "Snapshot '" + since + "' is not available anymore, download with an empty since= parameter"
+                        + " to start over");
+                return;
+            }
+            SnapshotStore.Snapshot currentSnapshot = snapshotStore.createSnapshot();
+            responseHeaders.add(HEADER_SNAPSHOT_TOKEN, currentSnapshot.getToken());
+            selection = DownloadSelection.changedSince(snapshot, currentSnapshot);
+        }
+
+        if (format == PayloadFormat.TAR_GZ && level == ZipInflater.DEFAULT_LEVEL && selection.isAll()) {
+            sendCachedDownload(exchange);
+            return;
+        }
+
+        if (!new File(config.getDestination(), selection.getSubPath()).exists()) {
+            sendShortResult(exchange, 404, "Path '" + selection.getSubPath() + "' does not exist in destination");
+            return;
+        }
+        // selections are streamed as they are created, the archive size is not known upfront
+        responseHeaders.add(HEADER_CONTENT_TYPE, getContentType(format));
+        responseHeaders.add(HEADER_CONTENT_DISPOSITION, "attachment; filename=\"download." + format.getExtension() + "\"");
+        exchange.sendResponseHeaders(200, 0);
         try (OutputStream os = exchange.getResponseBody()) {
-            exchange.getResponseHeaders().add(HEADER_CONTENT_TYPE, "application/gzip");
-            exchange.sendResponseHeaders(200, 0);
-            zipInflater.createTarGz(this.config.getDestination(), os, this.config.getExcludeFromDownloadPattern());
-            os.flush();
+            zipInflater.createArchive(config.getDestination(), metrics.countDownloadBytes(os), format, level, config.getExcludeFromDownloadPattern(),
+                    new File(config.getStateDir()), selection);
+        }
+    }
+
+    private String getContentType(PayloadFormat format) {
+        switch (format) {
+        case ZIP:
+            return "application/zip";
+        case TAR:
+            return "application/x-tar";
+        default:
+            return "application/gzip";
+        }
+    }
+
+    private void sendCachedDownload(HttpExchange exchange) throws FileNotFoundException, IOException {
+        try (DownloadCache.CachedArchive archive = downloadCache.open()) {
+            Headers requestHeaders = exchange.getRequestHeaders();
+            Headers responseHeaders = exchange.getResponseHeaders();
+            String eTag = archive.getETag();
+            responseHeaders.add(HEADER_ETAG, eTag);
+            responseHeaders.add(HEADER_ACCEPT_RANGES, "bytes");
+
+            String ifNoneMatch = StringUtils.trim(requestHeaders.getFirst(HEADER_IF_NONE_MATCH));
+            if (ifNoneMatch != null && (ifNoneMatch.equals("*") || Arrays.asList(ifNoneMatch.split("\\s*,\\s*")).contains(eTag))) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            long size = archive.getSize();
+            long start = 0;
+            long end = size - 1;
+            int responseCode = 200;
+            String range = requestHeaders.getFirst(HEADER_RANGE);
+            String ifRange = requestHeaders.getFirst(HEADER_IF_RANGE);
+            // a range for an outdated archive would be useless, the full archive is sent in that case
+            Matcher rangeMatcher = RANGE_REGEX.matcher(StringUtils.defaultString(range).trim());
+            boolean isRangeApplicable = ifRange == null || ifRange.equals(eTag);
+            // multiple ranges are not supported, the full archive is sent for those (as allowed by RFC 7233)
+            if (isRangeApplicable && rangeMatcher.matches() && !(rangeMatcher.group(1).isEmpty() && rangeMatcher.group(2).isEmpty())) {
+                if (rangeMatcher.group(1).isEmpty()) {
+                    // suffix range with the number of bytes at the end
+                    start = Math.max(0, size - NumberUtils.toLong(rangeMatcher.group(2), Long.MAX_VALUE));
+                } else {
+                    start = NumberUtils.toLong(rangeMatcher.group(1), Long.MAX_VALUE);
+                    if (!rangeMatcher.group(2).isEmpty()) {
+                        end = Math.min(end, NumberUtils.toLong(rangeMatcher.group(2), Long.MAX_VALUE));
+                    }
+                }
+                if (start >= size || start > end) {
+                    responseHeaders.add(HEADER_CONTENT_RANGE, "bytes */" + size);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                responseHeaders.add(HEADER_CONTENT_RANGE, "bytes " + start + "-" + end + "/" + size);
+                responseCode = 206;
+            }
+
+            responseHeaders.add(HEADER_CONTENT_TYPE, "application/gzip");
+            long length = end - start + 1;
+            exchange.sendResponseHeaders(responseCode, length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                WritableByteChannel responseChannel = Channels.newChannel(metrics.countDownloadBytes(os));
+                long position = start;
+                while (position <= end) {
+                    position += archive.getChannel().transferTo(position, end + 1 - position, responseChannel);
+                }
+            }
+        }
+    }
+
+    private void sendManifest(HttpExchange exchange) throws IOException {
+        String manifest = sourceCache != null ? sourceCache.getManifest() : null;
+        if (manifest == null) {
+            sendShortResult(exchange, 404, sourceCache != null ? "No manifest available, a full upload is required"
+                    : "Manifest is only available if the server is started with --keep-source");
+            return;
+        }
+        byte[] manifestBytes = manifest.getBytes(StandardCharsets.UTF_8);
+        try (OutputStream os = exchange.getResponseBody()) {
+            exchange.getResponseHeaders().add(HEADER_CONTENT_TYPE, "text/tab-separated-values; charset=utf-8");
+            exchange.getResponseHeaders().add(HEADER_ETAG, sourceCache.getETag());
+            exchange.sendResponseHeaders(200, manifestBytes.length == 0 ? -1 : manifestBytes.length);
+            os.write(manifestBytes);
         }
     }
 
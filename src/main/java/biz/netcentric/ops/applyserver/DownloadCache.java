@@ -0,0 +1,217 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+
+/** Keeps the archive of the destination served via /download.tar.gz in the state dir, so it is only built again once files changed.
+ *
+ * Changes are detected via a fingerprint of paths, sizes and modification times (which only requires to list the files) and via
+ * {@link #invalidate()} for changes made by the server itself. Requests arriving while the archive is built wait for that build
+ * instead of starting their own. Archives are stored and tagged by the hash of their content, as the fingerprint does not change
+ * for a rewrite with the same size within the same second. */
+class DownloadCache {
+
+    private static final String ARCHIVE_PREFIX = "download-";
+    private static final String ARCHIVE_SUFFIX = ".tar.gz";
+    private static final int MAX_OPEN_ATTEMPTS = 3;
+
+    private final ZipInflater zipInflater;
+    private final String destination;
+    private final Pattern excludePattern;
+    private final File excludedDir;
+    private final File cacheDir;
+
+    // guarded by this
+    private String archiveFingerprint;
+    private String archiveHash;
+    private String buildFingerprint;
+    // completed with the content hash of the built archive
+    private CompletableFuture<String> build;
+    private long generation = 0;
+
+    DownloadCache(ZipInflater zipInflater, String destination, Pattern excludePattern, File stateDir) {
+        this.zipInflater = zipInflater;
+        this.destination = destination;
+        this.excludePattern = excludePattern;
+        this.excludedDir = stateDir;
+        this.cacheDir = new File(stateDir, "download");
+    }
+
+    /** Forgets the current archive (e.g. after files were extracted), the next request builds it again. */
+    synchronized void invalidate() {
+        archiveFingerprint = null;
+        archiveHash = null;
+        generation++;
+    }
+
+    /** @return the up to date archive, opened for reading (to be closed by the caller) */
+    CachedArchive open() throws IOException {
+        for (int attempt = 1;; attempt++) {
+            String fingerprint = zipInflater.fingerprint(destination, excludePattern, excludedDir);
+            try {
+                return open(fingerprint);
+            } catch (FileNotFoundException e) {
+                // the archive was replaced by a newer one in the meantime
+                if (attempt == MAX_OPEN_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private CachedArchive open(String fingerprint) throws IOException {
+        CompletableFuture<String> currentBuild;
+        long buildGeneration;
+        boolean isBuilder = false;
+        synchronized (this) {
+            if (fingerprint.equals(archiveFingerprint)) {
+                return openArchive(archiveHash);
+            }
+            if (build == null || !fingerprint.equals(buildFingerprint)) {
+                build = new CompletableFuture<>();
+                buildFingerprint = fingerprint;
+                isBuilder = true;
+            }
+            currentBuild = build;
+            buildGeneration = generation;
+        }
+
+        String hash;
+        if (isBuilder) {
+            try {
+                hash = buildArchive(fingerprint);
+                synchronized (this) {
+                    // a build that was superseded (by a build for newer files) must not replace the archive of that build
+                    if (build == currentBuild) {
+                        build = null;
+                        if (generation == buildGeneration) {
+                            archiveFingerprint = fingerprint;
+                            archiveHash = hash;
+                        }
+                        deleteOutdatedArchives(hash);
+                    }
+                }
+                currentBuild.complete(hash);
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    if (build == currentBuild) {
+                        build = null;
+                    }
+                }
+                currentBuild.completeExceptionally(e);
+                throw e;
+            }
+        } else {
+            try {
+                hash = currentBuild.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for download archive");
+            } catch (ExecutionException e) {
+                throw new IOException("Could not create download archive: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+
+        synchronized (this) {
+            return openArchive(hash);
+        }
+    }
+
+    /** @return the content hash of the built archive */
+    private String buildArchive(String fingerprint) throws IOException {
+        Files.createDirectories(cacheDir.toPath());
+        File tempArchive = new File(cacheDir, "." + ARCHIVE_PREFIX + fingerprint + ARCHIVE_SUFFIX + ".tmp");
+        long startTime = System.currentTimeMillis();
+        MessageDigest digest = SourceCache.newSha256();
+        try (OutputStream out = new DigestOutputStream(Files.newOutputStream(tempArchive.toPath()), digest)) {
+            zipInflater.createTarGz(destination, out, excludePattern, excludedDir);
+        } catch (IOException | RuntimeException e) {
+            FileUtils.deleteQuietly(tempArchive);
+            throw e;
+        }
+        String hash = SourceCache.toHex(digest.digest());
+        Files.move(tempArchive.toPath(), getArchive(hash).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        long archiveSize = getArchive(hash).length();
+        System.out.println("Created download archive of " + FileUtils.byteCountToDisplaySize(archiveSize) + " in "
+                + (System.currentTimeMillis() - startTime) + "ms");
+        return hash;
+    }
+
+    /** To be called with the lock held, as archives are only deleted with the lock held. */
+    private CachedArchive openArchive(String hash) throws IOException {
+        File archive = getArchive(hash);
+        if (!archive.isFile()) {
+            throw new FileNotFoundException(archive.getPath());
+        }
+        FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+        return new CachedArchive(channel, "\"" + hash + "\"");
+    }
+
+    private void deleteOutdatedArchives(String currentHash) {
+        File[] archives = cacheDir.listFiles((dir, name) -> name.startsWith(ARCHIVE_PREFIX) && name.endsWith(ARCHIVE_SUFFIX));
+        if (archives == null) {
+            return;
+        }
+        for (File archive : archives) {
+            if (!archive.equals(getArchive(currentHash))) {
+                // requests still reading it keep their open file handle
+                FileUtils.deleteQuietly(archive);
+            }
+        }
+    }
+
+    private File getArchive(String hash) {
+        return new File(cacheDir, ARCHIVE_PREFIX + hash + ARCHIVE_SUFFIX);
+    }
+
+    /** An archive opened for reading. */
+    static class CachedArchive implements AutoCloseable {
+        private final FileChannel channel;
+        private final String eTag;
+
+        CachedArchive(FileChannel channel, String eTag) {
+            this.channel = channel;
+            this.eTag = eTag;
+        }
+
+        FileChannel getChannel() {
+            return channel;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        long getSize() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
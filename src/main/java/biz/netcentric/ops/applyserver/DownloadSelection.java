@@ -0,0 +1,173 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.lang3.StringUtils;
+
+/** The part of the destination to download: a sub path and include/exclude globs or the files changed since a snapshot.
+ *
+ * Globs are matched against the path relative to the destination (e.g. <code>conf/**.xml</code>). A directory matching an exclude
+ * glob is skipped with all its content, include globs only select files (directories are then created implicitly on extraction). */
+class DownloadSelection {
+
+    static final DownloadSelection ALL = new DownloadSelection("", Collections.emptyList(), Collections.emptyList(), null, null);
+
+    private final String subPath;
+    private final List<PathMatcher> includes;
+    private final List<PathMatcher> excludes;
+
+    // for incremental downloads only
+    private final Set<String> unchangedFiles;
+    private final List<String> deletions;
+
+    private DownloadSelection(String subPath, List<PathMatcher> includes, List<PathMatcher> excludes, Set<String> unchangedFiles,
+            List<String> deletions) {
+        this.subPath = subPath;
+        this.includes = includes;
+        this.excludes = excludes;
+        this.unchangedFiles = unchangedFiles;
+        this.deletions = deletions;
+    }
+
+    /** @param subPath path relative to the destination or null for the whole destination
+     * @param includeGlobs comma separated globs or null to include all files
+     * @param excludeGlobs comma separated globs or null */
+    static DownloadSelection create(String subPath, String includeGlobs, String excludeGlobs) {
+        String normalizedSubPath = normalizeSubPath(subPath);
+        List<PathMatcher> includes = createMatchers(includeGlobs);
+        List<PathMatcher> excludes = createMatchers(excludeGlobs);
+        if (normalizedSubPath.isEmpty() && includes.isEmpty() && excludes.isEmpty()) {
+            return ALL;
+        }
+        return new DownloadSelection(normalizedSubPath, includes, excludes, null, null);
+    }
+
+    /** Selects the files that were added or changed since the given snapshot, files missing in the current snapshot are listed as
+     * deletions (files created after the current snapshot are included as well). */
+    static DownloadSelection changedSince(SnapshotStore.Snapshot snapshot, SnapshotStore.Snapshot currentSnapshot) {
+        Set<String> unchangedFiles = new HashSet<>();
+        List<String> deletions = new ArrayList<>();
+        Map<String, SnapshotStore.IndexEntry> currentEntries = currentSnapshot.getEntries();
+        for (Map.Entry<String, SnapshotStore.IndexEntry> entry : snapshot.getEntries().entrySet()) {
+            SnapshotStore.IndexEntry currentEntry = currentEntries.get(entry.getKey());
+            if (currentEntry == null) {
+                deletions.add(entry.getKey());
+            } else if (currentEntry.sha256.equals(entry.getValue().sha256)) {
+                unchangedFiles.add(entry.getKey());
+            }
+        }
+        return new DownloadSelection("", Collections.emptyList(), Collections.emptyList(), unchangedFiles, deletions);
+    }
+
+    /** @return the sub path with "/" as separator or an empty string for the whole destination */
+    String getSubPath() {
+        return subPath;
+    }
+
+    boolean isAll() {
+        return this == ALL;
+    }
+
+    /** @return the paths to list as deletions or null if the download is not incremental */
+    List<String> getDeletions() {
+        return deletions;
+    }
+
+    /** @return true if the file or directory is to be skipped (including the content of a directory) */
+    boolean isExcluded(String entryName) {
+        return !excludes.isEmpty() && matchesAny(excludes, entryName);
+    }
+
+    /** @return true if the entry is to be added to the archive (directories are only added if there are no include globs) */
+    boolean isIncluded(String entryName, boolean isDirectory) {
+        if (unchangedFiles != null) {
+            return !isDirectory && !unchangedFiles.contains(entryName);
+        }
+        if (includes.isEmpty()) {
+            return true;
+        }
+        return !isDirectory && matchesAny(includes, entryName);
+    }
+
+    private static boolean matchesAny(List<PathMatcher> matchers, String entryName) {
+        Path path = Paths.get(entryName);
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String normalizeSubPath(String subPath) {
+        if (StringUtils.isBlank(subPath)) {
+            return "";
+        }
+        Path path;
+        try {
+            path = Paths.get(StringUtils.strip(subPath, "/")).normalize();
+        } catch (InvalidPathException e) {
+            throw new IllegalArgumentException("Invalid path '" + subPath + "'");
+        }
+        if (path.isAbsolute() || path.startsWith("..")) {
+            throw new IllegalArgumentException("Path '" + subPath + "' is not within the destination");
+        }
+        return path.toString().replace(path.getFileSystem().getSeparator(), "/");
+    }
+
+    private static List<PathMatcher> createMatchers(String globs) {
+        List<PathMatcher> matchers = new ArrayList<>();
+        for (String glob : splitGlobs(globs)) {
+            try {
+                matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid glob '" + glob + "': " + e.getDescription());
+            }
+        }
+        return matchers;
+    }
+
+    /** Splits at commas that are not part of a {a,b} group. */
+    private static List<String> splitGlobs(String globs) {
+        List<String> result = new ArrayList<>();
+        if (StringUtils.isBlank(globs)) {
+            return result;
+        }
+        int groupDepth = 0;
+        int start = 0;
+        for (int i = 0; i <= globs.length(); i++) {
+            char c = i < globs.length() ? globs.charAt(i) : ',';
+            if (c == '{') {
+                groupDepth++;
+            } else if (c == '}' && groupDepth > 0) {
+                groupDepth--;
+            } else if (c == ',' && (groupDepth == 0 || i == globs.length())) {
+                String glob = globs.substring(start, i).trim();
+                if (!glob.isEmpty()) {
+                    result.add(glob);
+                }
+                start = i + 1;
+            }
+        }
+        return result;
+    }
+}
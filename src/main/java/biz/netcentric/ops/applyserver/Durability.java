@@ -0,0 +1,35 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+/** Defines when extracted files are synced to disk (fsync), i.e. whether a crash right after a successful upload may lose files. */
+enum Durability {
+
+    /** Files are left to the page cache of the OS. */
+    NONE,
+
+    /** All written files and their directories are synced at once (in parallel) after extraction, before the script is run. */
+    BATCH,
+
+    /** Every file is synced as part of writing it. */
+    STRICT;
+
+    static Durability fromOptionValue(String value) {
+        for (Durability durability : values()) {
+            if (durability.toOptionValue().equals(value)) {
+                return durability;
+            }
+        }
+        throw new IllegalArgumentException("Invalid durability '" + value + "' (supported: none, batch, strict)");
+    }
+
+    String toOptionValue() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/** Processes the entries of an archive on a worker pool while the archive is read sequentially by the calling thread.
+ *
+ * Entries are either handed over with their content already read into memory (bounded by a budget of buffered bytes that is shared by
+ * all uploads of the server) or, if the
+ * archive allows random access, with a task that reads the content itself. The result log of every entry is buffered and written to
+ * the result log in archive order, hence the log is the same as if all entries were processed sequentially. */
+class ExtractionPipeline {
+
+    /** Extracts one entry, the log and properties used are specific to the entry. */
+    interface EntryTask {
+        /** @return false if the file was left untouched as it was already up to date */
+        boolean process(PrintWriter entryLogWriter, Map<String, String> entryPropertiesUsed) throws IOException;
+    }
+
+    // an upload waiting longer than this for the buffered bytes budget fails instead of piling up requests
+    private static final long BUFFER_WAIT_TIMEOUT_IN_SEC = 60;
+
+    private final ExecutorService executor;
+    private final PrintWriter resultLogWriter;
+    private final Map<String, String> propertiesUsed;
+
+    private final Semaphore bufferedBytesBudget;
+    private final int maxBufferedBytes;
+    private final Semaphore inFlightEntries;
+
+    private final Deque<Future<EntryResult>> results = new ArrayDeque<>();
+    private final Set<String> entryNames = new HashSet<>();
+    private int count = 0;
+    private int unchangedCount = 0;
+    private volatile boolean cancelled = false;
+
+    /** @param bufferedBytesBudget the budget of bytes that may be buffered in memory, with maxBufferedBytes permits in total */
+    ExtractionPipeline(ExecutorService executor, int parallelism, Semaphore bufferedBytesBudget, int maxBufferedBytes,
+            PrintWriter resultLogWriter, Map<String, String> propertiesUsed) {
+        this.executor = executor;
+        this.resultLogWriter = resultLogWriter;
+        this.propertiesUsed = propertiesUsed;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.bufferedBytesBudget = bufferedBytesBudget;
+        this.inFlightEntries = new Semaphore(parallelism * 4);
+    }
+
+    /** @return true if an entry with the given size may be buffered in memory to be processed by a worker */
+    boolean isBufferable(long size) {
+        return size >= 0 && size <= getMaxBufferableSize();
+    }
+
+    int getMaxBufferableSize() {
+        return maxBufferedBytes / 4;
+    }
+
+    /** Blocks until the given amount of bytes may be buffered, to be passed to {@link #submit(String, int, EntryTask)} afterwards.
+     *
+     * @throws LimitExceededException if the budget is exhausted by other uploads for too long */
+    void reserveBufferedBytes(int bytes) throws IOException {
+        try {
+            if (!bufferedBytesBudget.tryAcquire(bytes, BUFFER_WAIT_TIMEOUT_IN_SEC, TimeUnit.SECONDS)) {
+                throw new LimitExceededException("Server is busy extracting other uploads, memory for buffering entries was not"
+                        + " available within " + BUFFER_WAIT_TIMEOUT_IN_SEC + "s", LimitExceededException.SERVICE_UNAVAILABLE);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for extraction buffer");
+        }
+    }
+
+    /** Returns bytes reserved via {@link #reserveBufferedBytes(int)} that are not passed on to a task. */
+    void releaseBufferedBytes(int bytes) {
+        bufferedBytesBudget.release(bytes);
+    }
+
+    /** Processes the entry on the worker pool.
+     *
+     * @param reservedBytes bytes reserved via {@link #reserveBufferedBytes(int)} before, released once the entry is processed */
+    void submit(String entryName, int reservedBytes, EntryTask task) throws IOException {
+        try {
+            waitForDuplicate(entryName);
+            inFlightEntries.acquire();
+        } catch (InterruptedException e) {
+            bufferedBytesBudget.release(reservedBytes);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for extraction worker");
+        } catch (IOException | RuntimeException e) {
+            // the budget is shared by all uploads and must not leak
+            bufferedBytesBudget.release(reservedBytes);
+            throw e;
+        }
+        CompletableFuture<EntryResult> result = CompletableFuture.supplyAsync(() -> {
+            try {
+                return runTask(task);
+            } finally {
+                inFlightEntries.release();
+                bufferedBytesBudget.release(reservedBytes);
+            }
+        }, executor);
+        results.add(result);
+        count++;
+        writeCompletedResults();
+    }
+
+    /** Processes the entry on the calling thread (e.g. for large entries that are streamed directly from the archive). */
+    void runInline(String entryName, EntryTask task) throws IOException {
+        runInline(entryName, task, true);
+    }
+
+    /** Processes an entry that is no file of the destination (e.g. the list of deletions) on the calling thread, it is not counted. */
+    void runUncounted(String entryName, EntryTask task) throws IOException {
+        runInline(entryName, task, false);
+    }
+
+    private void runInline(String entryName, EntryTask task, boolean isCounted) throws IOException {
+        waitForDuplicate(entryName);
+        EntryResult result = runTask(task);
+        if (result.exception != null) {
+            // reading the archive cannot continue
+            cancel();
+            throw result.exception;
+        }
+        result.isCounted = isCounted;
+        results.add(CompletableFuture.completedFuture(result));
+        if (isCounted) {
+            count++;
+        }
+        writeCompletedResults();
+    }
+
+    /** Processes the entry on the calling thread once all previously submitted entries are processed (e.g. for symbolic links that
+     * may affect paths of other entries). */
+    void runExclusively(String entryName, EntryTask task) throws IOException {
+        awaitAll();
+        runInline(entryName, task);
+    }
+
+    /** Waits for all entries to be processed and writes the remaining logs.
+     *
+     * @return the number of entries processed */
+    int finish() throws IOException {
+        awaitAll();
+        return count;
+    }
+
+    /** @return the number of entries that were already up to date (valid after {@link #finish()}) */
+    int getUnchangedCount() {
+        return unchangedCount;
+    }
+
+    /** Skips entries that are not yet processed and waits for the ones currently being processed (to be used if reading the archive
+     * failed). */
+    void cancel() {
+        cancelled = true;
+        while (!results.isEmpty()) {
+            try {
+                results.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // failure is reported for the first failed entry only
+            }
+        }
+    }
+
+    private void waitForDuplicate(String entryName) throws IOException {
+        if (!entryNames.add(entryName)) {
+            // the last entry with the same name has to win as with sequential extraction
+            awaitAll();
+        }
+    }
+
+    private void awaitAll() throws IOException {
+        while (!results.isEmpty()) {
+            writeResult(results.poll());
+        }
+    }
+
+    private void writeCompletedResults() throws IOException {
+        while (!results.isEmpty() && results.peek().isDone()) {
+            writeResult(results.poll());
+        }
+    }
+
+    private void writeResult(Future<EntryResult> resultFuture) throws IOException {
+        EntryResult result;
+        try {
+            result = resultFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for extraction of entry");
+        } catch (ExecutionException e) {
+            cancel();
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+        if (result.exception != null) {
+            cancel();
+            throw result.exception;
+        }
+        resultLogWriter.print(result.log);
+        if (result.isCounted && !result.changed) {
+            unchangedCount++;
+        }
+        propertiesUsed.putAll(result.propertiesUsed);
+    }
+
+    private EntryResult runTask(EntryTask task) {
+        EntryResult result = new EntryResult();
+        if (cancelled) {
+            result.log = "";
+            return result;
+        }
+        StringWriter log = new StringWriter();
+        try (PrintWriter entryLogWriter = new PrintWriter(log)) {
+            result.changed = task.process(entryLogWriter, result.propertiesUsed);
+        } catch (IOException e) {
+            result.exception = e;
+        }
+        result.log = log.toString();
+        return result;
+    }
+
+    private static class EntryResult {
+        private String log;
+        private boolean changed = true;
+        private boolean isCounted = true;
+        private final Map<String, String> propertiesUsed = new TreeMap<>();
+        private IOException exception;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/** Collects the files written by an extraction to sync them (and their directories) to disk at once.
+ *
+ * Syncing in parallel lets the file system combine the journal commits, which is a lot faster than syncing file by file. */
+class FileSyncBatch {
+
+    private final Set<Path> files = ConcurrentHashMap.newKeySet();
+    private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+
+    /** Adds a written file, its directory is synced as well (for the rename that replaced it). */
+    void addFile(Path file) {
+        files.add(file);
+        directories.add(file.toAbsolutePath().getParent());
+    }
+
+    /** Adds a directory with changed entries (e.g. deleted files or created links). */
+    void addDirectory(Path directory) {
+        directories.add(directory.toAbsolutePath());
+    }
+
+    /** Syncs the files first and the directories afterwards, each on the given executor. */
+    void sync(ExecutorService executor, PrintWriter resultLogWriter) throws IOException {
+        long startTime = System.currentTimeMillis();
+        syncAll(executor, files, false);
+        syncAll(executor, directories, true);
+        resultLogWriter.println("Synced " + files.size() + " files and " + directories.size() + " directories to disk in "
+                + (System.currentTimeMillis() - startTime) + "ms");
+        files.clear();
+        directories.clear();
+    }
+
+    private static void syncAll(ExecutorService executor, Collection<Path> paths, boolean isDirectory) throws IOException {
+        List<Future<Void>> results = new ArrayList<>();
+        for (Path path : paths) {
+            results.add(executor.submit(() -> {
+                if (isDirectory) {
+                    syncDirectory(path);
+                } else {
+                    syncFile(path);
+                }
+                return null;
+            }));
+        }
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while syncing files to disk");
+            } catch (ExecutionException e) {
+                throw new IOException("Could not sync to disk: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+    }
+
+    static void syncFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories cannot be opened on all platforms (e.g. Windows), renames are durable there without it
+        }
+    }
+}
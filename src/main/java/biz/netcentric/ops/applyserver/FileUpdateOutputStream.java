@@ -0,0 +1,321 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+/** Writes the content of a file, but leaves the existing file untouched if the content is the same.
+ *
+ * The written bytes are compared to the existing file while writing. Only once they differ, a temp file next to the target is created
+ * (with the identical prefix copied over) that replaces the file on {@link #close()}. A replaced file hence gets a new inode, hard links
+ * to the previous file keep the previous content. A known size that differs from the existing file
+ * skips the comparison altogether.
+ *
+ * The temp file is written via a file channel from pooled direct buffers, so the heap used per file is independent of its size. */
+class FileUpdateOutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final AtomicLong TEMP_FILE_COUNTER = new AtomicLong();
+
+    // direct buffers are expensive to allocate, there is one per extraction worker in use at most
+    private static final BlockingQueue<ByteBuffer> BUFFER_POOL = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors() * 2);
+
+    private final Path target;
+    private final boolean sync;
+
+    private InputStream existingIs;
+    private final byte[] compareBuffer = new byte[BUFFER_SIZE];
+    private long matchedBytes = 0;
+    private long size = 0;
+
+    private Path tempFile;
+    private FileChannel tempChannel;
+    private ByteBuffer tempBuffer;
+
+    private boolean closed = false;
+    private boolean changed = false;
+
+    /** @param expectedSize the size of the content to be written or -1 if not known */
+    FileUpdateOutputStream(File file, long expectedSize) throws IOException {
+        this(file, expectedSize, false);
+    }
+
+    /** @param sync whether a replaced file is synced to disk (including the directory) before {@link #close()} returns */
+    FileUpdateOutputStream(File file, long expectedSize, boolean sync) throws IOException {
+        this.sync = sync;
+        Path path = file.toPath();
+        // as with writing to the file directly, an existing symbolic link is written through
+        this.target = Files.isSymbolicLink(path) && Files.exists(path) ? path.toRealPath() : path;
+
+        if (Files.isRegularFile(target) && (expectedSize < 0 || Files.size(target) == expectedSize)) {
+            existingIs = new FileInputStream(target.toFile());
+        } else {
+            diverge();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        size += len;
+        if (tempChannel != null) {
+            writeToTempFile(b, off, len);
+            return;
+        }
+
+        int compared = 0;
+        while (compared < len) {
+            int chunkLength = Math.min(len - compared, compareBuffer.length);
+            int readLength = IOUtils.read(existingIs, compareBuffer, 0, chunkLength);
+            int matchLength = 0;
+            while (matchLength < readLength && compareBuffer[matchLength] == b[off + compared + matchLength]) {
+                matchLength++;
+            }
+            matchedBytes += matchLength;
+            compared += matchLength;
+            if (matchLength < chunkLength) {
+                diverge();
+                writeToTempFile(b, off + compared, len - compared);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (tempChannel != null) {
+            flushTempBuffer();
+        }
+    }
+
+    /** Replaces the file if the content changed. */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (tempChannel == null) {
+            boolean existingFileFullyMatched = existingIs.read() == -1;
+            if (existingFileFullyMatched) {
+                existingIs.close();
+                closed = true;
+                return;
+            }
+            // the new content is a prefix of the existing file
+            diverge();
+        }
+        if (sync) {
+            flushTempBuffer();
+            tempChannel.force(true);
+        }
+        closeTempChannel();
+        closed = true;
+
+        copyAttributes();
+        try {
+            try {
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            // abort() is a no-op by now, the temp file must not stay in the destination
+            deleteTempFile();
+            throw e;
+        }
+        if (sync) {
+            FileSyncBatch.syncDirectory(target.toAbsolutePath().getParent());
+        }
+        changed = true;
+    }
+
+    /** Discards what was written and leaves the file untouched, no-op after {@link #close()}. */
+    void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (existingIs != null) {
+            try {
+                existingIs.close();
+            } catch (IOException e) {
+                // best effort
+            }
+        }
+        if (tempChannel != null) {
+            try {
+                tempChannel.close();
+            } catch (IOException e) {
+                // best effort
+            }
+        }
+        releaseTempBuffer();
+        deleteTempFile();
+    }
+
+    private void deleteTempFile() {
+        if (tempFile != null) {
+            try {
+                Files.deleteIfExists(tempFile);
+            } catch (IOException e) {
+                // best effort
+            }
+        }
+    }
+
+    /** Starts over writing the file from the beginning.
+     *
+     * @return the content written so far (to be consumed while the new content is written) */
+    InputStream restart() throws IOException {
+        InputStream writtenContentIs;
+        if (tempChannel != null) {
+            closeTempChannel();
+            writtenContentIs = Files.newInputStream(tempFile, StandardOpenOption.DELETE_ON_CLOSE);
+            tempFile = null;
+        } else {
+            existingIs.close();
+            writtenContentIs = new BoundedInputStream(new FileInputStream(target.toFile()), matchedBytes);
+        }
+        matchedBytes = 0;
+        if (Files.isRegularFile(target)) {
+            existingIs = new FileInputStream(target.toFile());
+        } else {
+            diverge();
+        }
+        return writtenContentIs;
+    }
+
+    /** @return the file that is written (the target of a symbolic link) */
+    Path getPath() {
+        return target;
+    }
+
+    /** @return the number of bytes written */
+    long getSize() {
+        return size;
+    }
+
+    /** @return true if the file was replaced, only valid after {@link #close()} */
+    boolean isChanged() {
+        return changed;
+    }
+
+    private void diverge() throws IOException {
+        tempFile = target.resolveSibling("." + target.getFileName() + "." + TEMP_FILE_COUNTER.incrementAndGet() + ".tmp");
+        tempChannel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        tempBuffer = acquireBuffer();
+        if (existingIs != null) {
+            existingIs.close();
+            existingIs = null;
+        }
+        if (matchedBytes > 0) {
+            // the prefix is copied within the kernel, writing continues after it
+            try (FileChannel existingChannel = FileChannel.open(target, StandardOpenOption.READ)) {
+                long position = 0;
+                while (position < matchedBytes) {
+                    position += existingChannel.transferTo(position, matchedBytes - position, tempChannel);
+                }
+            }
+        }
+    }
+
+    private void writeToTempFile(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int chunkLength = Math.min(len, tempBuffer.remaining());
+            tempBuffer.put(b, off, chunkLength);
+            off += chunkLength;
+            len -= chunkLength;
+            if (!tempBuffer.hasRemaining()) {
+                flushTempBuffer();
+            }
+        }
+    }
+
+    private void flushTempBuffer() throws IOException {
+        tempBuffer.flip();
+        while (tempBuffer.hasRemaining()) {
+            tempChannel.write(tempBuffer);
+        }
+        tempBuffer.clear();
+    }
+
+    private void closeTempChannel() throws IOException {
+        try {
+            flushTempBuffer();
+            tempChannel.close();
+        } finally {
+            tempChannel = null;
+            releaseTempBuffer();
+        }
+    }
+
+    private void releaseTempBuffer() {
+        if (tempBuffer != null) {
+            tempBuffer.clear();
+            BUFFER_POOL.offer(tempBuffer);
+            tempBuffer = null;
+        }
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = BUFFER_POOL.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /** Copies permissions, owner and group of the replaced file (ACLs and extended attributes are not copied). */
+    private void copyAttributes() {
+        if (!Files.isRegularFile(target)) {
+            return;
+        }
+        try {
+            Files.setPosixFilePermissions(tempFile, Files.getPosixFilePermissions(target));
+        } catch (UnsupportedOperationException | IOException e) {
+            // non-posix file systems keep the default permissions
+        }
+        PosixFileAttributeView tempFileView = Files.getFileAttributeView(tempFile, PosixFileAttributeView.class);
+        if (tempFileView == null) {
+            return;
+        }
+        try {
+            PosixFileAttributes targetAttributes = Files.readAttributes(target, PosixFileAttributes.class);
+            if (!targetAttributes.group().equals(Files.readAttributes(tempFile, PosixFileAttributes.class).group())) {
+                tempFileView.setGroup(targetAttributes.group());
+            }
+            if (!targetAttributes.owner().equals(Files.getOwner(tempFile))) {
+                tempFileView.setOwner(targetAttributes.owner());
+            }
+        } catch (IOException e) {
+            // only possible for groups the user is a member of (and for other owners as root), the defaults are kept otherwise
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Scripts that run asynchronously (POST requests with parameter async), the status and output of a job can be retrieved via
+ * /jobs/{id} while it is running and for a while after it finished. */
+class Jobs {
+
+    private static final int MAX_FINISHED_JOBS = 100;
+
+    enum Status {
+        RUNNING, SUCCEEDED, FAILED;
+
+        String toJsonValue() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+
+    // guarded by itself, in order of creation
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+
+    Jobs() {
+        AtomicInteger threadCount = new AtomicInteger();
+        // scripts do not run in parallel with themselves, hence the number of threads is bound by the number of scripts
+        executor = Executors.newCachedThreadPool(runnable -> new Thread(runnable, "apply-server-job-" + threadCount.incrementAndGet()));
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "apply-server-job-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Registers a new job and runs the given task for it on the job executor.
+     *
+     * @param output the stream the task writes the output to */
+    Job start(String scriptName, RunOutput output, JobTask task) {
+        Job job = new Job(UUID.randomUUID().toString(), scriptName, output);
+        synchronized (jobs) {
+            jobs.put(job.id, job);
+            evictFinishedJobs();
+        }
+        executor.execute(() -> {
+            try {
+                job.finish(task.run(job));
+            } catch (Exception e) {
+                job.fail();
+            }
+        });
+        return job;
+    }
+
+    /** @return the job or null if it is unknown (or evicted) */
+    Job get(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    /** @return a future that completes with the job once it finished or the given time has elapsed, whatever comes first */
+    CompletableFuture<Job> awaitFinished(Job job, long timeoutInSec) {
+        CompletableFuture<Job> result = new CompletableFuture<>();
+        job.finished.thenAccept(result::complete);
+        if (!result.isDone()) {
+            timer.schedule(() -> result.complete(job), timeoutInSec, TimeUnit.SECONDS);
+        }
+        return result;
+    }
+
+    private void evictFinishedJobs() {
+        int finishedJobs = 0;
+        for (Job job : jobs.values()) {
+            if (job.finished.isDone()) {
+                finishedJobs++;
+            }
+        }
+        for (Iterator<Job> it = jobs.values().iterator(); it.hasNext() && finishedJobs > MAX_FINISHED_JOBS;) {
+            if (it.next().finished.isDone()) {
+                it.remove();
+                finishedJobs--;
+            }
+        }
+    }
+
+    interface JobTask {
+        /** Writes the output to {@link Job#getOutput()}, an exception marks the job as failed (the task is expected to log it).
+         *
+         * @return the exit code of the script */
+        int run(Job job) throws Exception;
+    }
+
+    /** One asynchronous script run. */
+    static class Job {
+        private final String id;
+        private final String scriptName;
+        private final RunOutput output;
+        private final CompletableFuture<Job> finished = new CompletableFuture<>();
+        private volatile Status status = Status.RUNNING;
+        private volatile Integer exitCode;
+
+        private Job(String id, String scriptName, RunOutput output) {
+            this.id = id;
+            this.scriptName = scriptName;
+            this.output = output;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        String getScriptName() {
+            return scriptName;
+        }
+
+        Status getStatus() {
+            return status;
+        }
+
+        /** @return the exit code or null while running (or if the script could not be run) */
+        Integer getExitCode() {
+            return exitCode;
+        }
+
+        /** @return the stream for the output of the job (can be read while it is written) */
+        RunOutput getOutput() {
+            return output;
+        }
+
+        String getOutputAsString() {
+            return output.toString();
+        }
+
+        private void finish(int exitCode) {
+            this.exitCode = exitCode;
+            this.status = exitCode == 0 ? Status.SUCCEEDED : Status.FAILED;
+            finished.complete(this);
+        }
+
+        private void fail() {
+            this.status = Status.FAILED;
+            finished.complete(this);
+        }
+
+        String toJson() {
+            return "{\"id\": " + Json.quote(id) + ", \"script\": " + Json.quote(scriptName) + ", \"status\": "
+                    + Json.quote(status.toJsonValue()) + ", \"exitCode\": " + exitCode + ", \"output\": "
+                    + Json.quote(getOutputAsString()) + "}\n";
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+/** Thrown if an upload exceeds one of the configured {@link UploadLimits}. */
+class LimitExceededException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    static final int PAYLOAD_TOO_LARGE = 413;
+    static final int SERVICE_UNAVAILABLE = 503;
+
+    private final int responseCode;
+
+    public LimitExceededException(String s) {
+        this(s, PAYLOAD_TOO_LARGE);
+    }
+
+    public LimitExceededException(String s, int responseCode) {
+        super(s);
+        this.responseCode = responseCode;
+    }
+
+    int getResponseCode() {
+        return responseCode;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.output.ProxyOutputStream;
+
+/** Metrics of the apply pipeline in the Prometheus text exposition format (served via /metrics), without a dependency on a metrics
+ * library. Recording only updates striped adders (no locks on the request threads), the values are collected when scraped. Values
+ * of other components (e.g. executor queue depths) are registered as suppliers and read when scraped. */
+class Metrics {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String PREFIX = "apply_server_";
+    private static final double[] BYTES_BUCKETS = { 1024, 16 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024, 16 * 1024 * 1024,
+            64 * 1024 * 1024, 256 * 1024 * 1024, 1024 * 1024 * 1024 };
+    private static final double[] SECONDS_BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600 };
+
+    private final Histogram uploadBytes = new Histogram(BYTES_BUCKETS);
+    private final Histogram decompressionSeconds = new Histogram(SECONDS_BUCKETS);
+    private final Histogram extractionSeconds = new Histogram(SECONDS_BUCKETS);
+    private final Histogram filteringSeconds = new Histogram(SECONDS_BUCKETS);
+    // by rendered labels
+    private final Map<String, Histogram> scriptSeconds = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> results = new ConcurrentHashMap<>();
+    private final LongAdder downloadBytes = new LongAdder();
+
+    private final List<Registered> registered = new ArrayList<>();
+
+    /** Registers values of another component, read when scraped.
+     *
+     * @param type counter or gauge
+     * @param samples the values by rendered labels (see {@link #labels(String...)}) */
+    void register(String name, String type, String help, Supplier<Map<String, ? extends Number>> samples) {
+        registered.add(new Registered(PREFIX + name, type, help, samples));
+    }
+
+    /** Records the body size and the extraction times of an upload. */
+    void observeUpload(long bodyBytes, long extractionNanos, UploadTimings timings) {
+        uploadBytes.observe(bodyBytes);
+        extractionSeconds.observe(toSeconds(extractionNanos));
+        decompressionSeconds.observe(toSeconds(timings.getDecompressionNanos()));
+        filteringSeconds.observe(toSeconds(timings.getFilteringNanos()));
+    }
+
+    void observeScript(String scriptName, long nanos) {
+        getOrCreate(scriptSeconds, labels("script", scriptName), () -> new Histogram(SECONDS_BUCKETS)).observe(toSeconds(nanos));
+    }
+
+    void countResult(String scriptName, int resultCode) {
+        getOrCreate(results, labels("script", scriptName, "code", String.valueOf(resultCode)), LongAdder::new).increment();
+    }
+
+    /** @return the stream that counts the bytes written as downloaded */
+    OutputStream countDownloadBytes(OutputStream os) {
+        return new ProxyOutputStream(os) {
+            @Override
+            protected void afterWrite(int n) {
+                downloadBytes.add(n);
+            }
+        };
+    }
+
+    private static <T> T getOrCreate(Map<String, T> series, String labels, Supplier<T> factory) {
+        // get() does not lock, computeIfAbsent() only for a new series
+        T value = series.get(labels);
+        return value != null ? value : series.computeIfAbsent(labels, key -> factory.get());
+    }
+
+    void writeTo(PrintWriter out) {
+        writeHistogram(out, "upload_bytes", "Size of the request bodies of extracted uploads", "", uploadBytes);
+        writeHistogram(out, "decompression_seconds",
+                "Time spent reading entries from the archive per upload (decompressing and receiving the request body)", "",
+                decompressionSeconds);
+        writeHistogram(out, "extraction_seconds", "Time to extract an upload (including decompression and filtering)", "",
+                extractionSeconds);
+        writeHistogram(out, "filtering_seconds", "Time spent filtering placeholders per upload (summed over extraction workers)", "",
+                filteringSeconds);
+
+        writeHeader(out, "script_duration_seconds", "histogram", "Duration of script executions");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(scriptSeconds).entrySet()) {
+            entry.getValue().writeSamples(out, PREFIX + "script_duration_seconds", entry.getKey());
+        }
+
+        writeHeader(out, "results_total", "counter", "Results of requests by script and response code");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(results).entrySet()) {
+            writeSample(out, PREFIX + "results_total", entry.getKey(), entry.getValue().sum());
+        }
+
+        writeHeader(out, "download_bytes_total", "counter", "Bytes sent for downloads of the destination");
+        writeSample(out, PREFIX + "download_bytes_total", "", downloadBytes.sum());
+
+        for (Registered series : registered) {
+            out.println("# HELP " + series.name + " " + series.help);
+            out.println("# TYPE " + series.name + " " + series.type);
+            for (Map.Entry<String, ? extends Number> sample : new TreeMap<>(series.samples.get()).entrySet()) {
+                writeSample(out, series.name, sample.getKey(), sample.getValue().doubleValue());
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeHistogram(PrintWriter out, String name, String help, String labels, Histogram histogram) {
+        writeHeader(out, name, "histogram", help);
+        histogram.writeSamples(out, PREFIX + name, labels);
+    }
+
+    private static void writeHeader(PrintWriter out, String name, String type, String help) {
+        out.println("# HELP " + PREFIX + name + " " + help);
+        out.println("# TYPE " + PREFIX + name + " " + type);
+    }
+
+    private static void writeSample(PrintWriter out, String name, String labels, double value) {
+        out.println(name + (labels.isEmpty() ? "" : "{" + labels + "}") + " " + formatValue(value));
+    }
+
+    private static String formatValue(double value) {
+        if (value == Double.POSITIVE_INFINITY) {
+            return "+Inf";
+        }
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+    private static double toSeconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /** @return the given label names and values rendered for the exposition format */
+    static String labels(String... namesAndValues) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            String value = namesAndValues[i + 1] != null ? namesAndValues[i + 1] : "";
+            sb.append(i > 0 ? "," : "").append(namesAndValues[i]).append("=\"")
+                    .append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return sb.toString();
+    }
+
+    /** Buckets with the observations up to their bound (not cumulative until written). */
+    private static class Histogram {
+        private final double[] bounds;
+        // the last bucket is +Inf
+        private final LongAdder[] buckets;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void observe(double value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sum.add(value);
+        }
+
+        private void writeSamples(PrintWriter out, String name, String labels) {
+            String labelsPrefix = labels.isEmpty() ? "" : labels + ",";
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                count += buckets[i].sum();
+                String bound = i < bounds.length ? formatValue(bounds[i]) : "+Inf";
+                writeSample(out, name + "_bucket", labelsPrefix + "le=\"" + bound + "\"", count);
+            }
+            writeSample(out, name + "_sum", labels, sum.sum());
+            writeSample(out, name + "_count", labels, count);
+        }
+    }
+
+    private static class Registered {
+        private final String name;
+        private final String type;
+        private final String help;
+        private final Supplier<Map<String, ? extends Number>> samples;
+
+        private Registered(String name, String type, String help, Supplier<Map<String, ? extends Number>> samples) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.samples = samples;
+        }
+    }
+
+    /** The time spent in the phases of one upload, summed over the threads extracting it. */
+    static class UploadTimings {
+        private final LongAdder decompressionNanos = new LongAdder();
+        private final LongAdder filteringNanos = new LongAdder();
+
+        /** @return the stream that records the time spent in reads as decompression time */
+        InputStream timeReads(InputStream archiveIs) {
+            return new ProxyInputStream(archiveIs) {
+                private long readStartTime;
+
+                @Override
+                protected void beforeRead(int n) {
+                    readStartTime = System.nanoTime();
+                }
+
+                @Override
+                protected void afterRead(int n) {
+                    decompressionNanos.add(System.nanoTime() - readStartTime);
+                }
+
+                @Override
+                protected void handleIOException(IOException e) throws IOException {
+                    decompressionNanos.add(System.nanoTime() - readStartTime);
+                    super.handleIOException(e);
+                }
+            };
+        }
+
+        void addFilteringNanos(long nanos) {
+            filteringNanos.add(nanos);
+        }
+
+        long getDecompressionNanos() {
+            return decompressionNanos.sum();
+        }
+
+        long getFilteringNanos() {
+            return filteringNanos.sum();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/** Compresses blocks of the written data on a worker pool, each block becomes a gzip member of its own.
+ *
+ * Concatenated gzip members are a valid gzip stream (RFC 1952) that is read by gzip/tar like a single member. The members are
+ * written in order and the number of blocks in flight is limited, hence memory is bounded by roughly two blocks per thread. */
+class ParallelGzipOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int maxBlocksInFlight;
+    private final int level;
+
+    private final Deque<Future<byte[]>> compressedBlocks = new ArrayDeque<>();
+    private byte[] block;
+    private int blockLength = 0;
+    private boolean anyBlockSubmitted = false;
+    private boolean closed = false;
+
+    ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int blockSize, int parallelism) {
+        this(out, executor, blockSize, parallelism, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /** @param level the deflate compression level (0-9 or -1 for the default) */
+    ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int blockSize, int parallelism, int level) {
+        this.out = out;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.maxBlocksInFlight = parallelism * 2;
+        this.level = level;
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int chunkLength = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, chunkLength);
+            blockLength += chunkLength;
+            off += chunkLength;
+            len -= chunkLength;
+            if (blockLength == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /** Writes the blocks compressed so far, a partially filled block is kept to not degrade the compression. */
+    @Override
+    public void flush() throws IOException {
+        while (!compressedBlocks.isEmpty() && compressedBlocks.peek().isDone()) {
+            writeCompressedBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (blockLength > 0 || !anyBlockSubmitted) {
+                submitBlock();
+            }
+            while (!compressedBlocks.isEmpty()) {
+                writeCompressedBlock();
+            }
+        } finally {
+            for (Future<byte[]> compressedBlock : compressedBlocks) {
+                compressedBlock.cancel(false);
+            }
+            out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        if (compressedBlocks.size() >= maxBlocksInFlight) {
+            writeCompressedBlock();
+        }
+        byte[] blockToCompress = blockLength == blockSize ? block : Arrays.copyOf(block, blockLength);
+        compressedBlocks.add(executor.submit(() -> compress(blockToCompress)));
+        anyBlockSubmitted = true;
+        block = new byte[blockSize];
+        blockLength = 0;
+    }
+
+    private void writeCompressedBlock() throws IOException {
+        try {
+            out.write(compressedBlocks.poll().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compression of block");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not compress block: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private byte[] compress(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (GZIPOutputStream gzipOs = new GZIPOutputStream(compressed, 64 * 1024) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            gzipOs.write(data);
+        }
+        return compressed.toByteArray();
+    }
+}
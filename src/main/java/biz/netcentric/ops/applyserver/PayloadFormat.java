@@ -0,0 +1,125 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.compressors.zstandard.ZstdUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/** The supported payload formats, determined from the magic bytes at the beginning of the payload or the file extension. */
+enum PayloadFormat {
+
+    ZIP(null, "zip"),
+    TAR(null, "tar"),
+    TAR_GZ(CompressorStreamFactory.GZIP, "tar.gz", "tgz"),
+    TAR_BZ2(CompressorStreamFactory.BZIP2, "tar.bz2", "tbz2", "tbz"),
+    TAR_XZ(CompressorStreamFactory.XZ, "tar.xz", "txz"),
+    TAR_ZST(CompressorStreamFactory.ZSTANDARD, "tar.zst", "tzst");
+
+    private final String compressor;
+    private final List<String> extensions;
+
+    PayloadFormat(String compressor, String... extensions) {
+        this.compressor = compressor;
+        this.extensions = Arrays.asList(extensions);
+    }
+
+    boolean isTar() {
+        return this != ZIP;
+    }
+
+    /** @return true if archives in this format can be created for downloads */
+    boolean isDownloadable() {
+        return this == ZIP || this == TAR || this == TAR_GZ;
+    }
+
+    String getExtension() {
+        return extensions.get(0);
+    }
+
+    /** @return the decompressed tar stream (for tar formats only) */
+    InputStream openTarStream(InputStream is) throws IOException {
+        if (compressor == null) {
+            return is;
+        }
+        if (this == TAR_ZST && !ZstdUtils.isZstdCompressionAvailable()) {
+            throw new IllegalArgumentException("Format " + getExtension() + " requires zstd-jni to be on the classpath");
+        }
+        try {
+            // concatenated streams are decompressed in full (as created by parallel compressors)
+            return new CompressorStreamFactory(true).createCompressorInputStream(compressor, is);
+        } catch (CompressorException e) {
+            throw new IOException("Could not decompress " + getExtension() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** @return the format for the given extension (e.g. "tar.gz" or "zip") or null if not supported */
+    static PayloadFormat fromExtension(String extension) {
+        for (PayloadFormat format : values()) {
+            if (format.extensions.contains(extension)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /** @return the extension of the given file name (including "tar." for compressed tar files) or null if there is none */
+    static String getExtension(String filename) {
+        if (!filename.contains(".")) {
+            return null;
+        }
+        String[] bits = filename.split("\\.");
+        String extension = bits[bits.length - 1];
+        if (bits.length > 2 && bits[bits.length - 2].equals("tar")) {
+            extension = "tar." + extension;
+        }
+        return extension;
+    }
+
+    /** Detects the format from the magic bytes without consuming the stream.
+     *
+     * @return the format or null if not detectable (e.g. for an empty payload) */
+    static PayloadFormat detect(BufferedInputStream is) {
+        String compressor = null;
+        try {
+            compressor = CompressorStreamFactory.detect(is);
+        } catch (CompressorException e) {
+            // not compressed
+        }
+        if (compressor != null) {
+            for (PayloadFormat format : values()) {
+                if (StringUtils.equals(format.compressor, compressor)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+
+        try {
+            String archiver = ArchiveStreamFactory.detect(is);
+            if (ArchiveStreamFactory.ZIP.equals(archiver) || ArchiveStreamFactory.JAR.equals(archiver)) {
+                return ZIP;
+            } else if (ArchiveStreamFactory.TAR.equals(archiver)) {
+                return TAR;
+            }
+        } catch (ArchiveException e) {
+            // no archive
+        }
+        return null;
+    }
+}
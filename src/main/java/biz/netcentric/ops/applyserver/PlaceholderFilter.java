@@ -0,0 +1,373 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/** Replaces ${...} placeholders while streaming a file to disk, using memory independent of the file size.
+ *
+ * The placeholder syntax only consists of ASCII characters that never occur within a multi-byte UTF-8 sequence, hence placeholders are
+ * matched on the raw bytes (window by window, a placeholder may span windows) while the input is validated to be UTF-8 alongside. The
+ * result is exactly what matching {@link #VAR_REGEX} on the decoded file contents produces.
+ *
+ * As most files contain no placeholders at all, a file that fits into the first window and does not contain the marker "${" is written
+ * without any decoding, windows of pure ASCII skip the decoder and text between placeholders is skipped via a plain search for '$'.
+ * Content that is not valid UTF-8 is written unfiltered, it is reported as binary if the window that failed validation contains a NUL
+ * byte (valid UTF-8 is filtered even if it contains NUL bytes, as regex based filtering would). Placeholders longer than
+ * {@link #MAX_TOKEN_LENGTH} bytes are left unchanged, so a "${" followed by a long run of name characters does not have to be held in
+ * memory. */
+class PlaceholderFilter {
+
+    static final Pattern VAR_REGEX = Pattern.compile("\\$\\{([a-zA-z][a-zA-z0-9._]+)\\}");
+
+    static final int WINDOW_SIZE = 64 * 1024;
+
+    /** The maximum length of a placeholder including "${" and "}". */
+    static final int MAX_TOKEN_LENGTH = 1024;
+
+    /** Returned by {@link #filter(InputStream, FileUpdateOutputStream, Map)} for binary content. */
+    static final int BINARY = -1;
+
+    private static final int STATE_TEXT = 0;
+    private static final int STATE_DOLLAR = 1;
+    private static final int STATE_BRACE = 2;
+    private static final int STATE_NAME_FIRST_CHAR = 3;
+    private static final int STATE_NAME = 4;
+
+    private final Map<String, String> properties;
+    private final int windowSize;
+
+    private final Map<String, byte[]> replacementsByToken = new HashMap<>();
+    private final Map<String, String> propertiesUsedByToken = new HashMap<>();
+
+    PlaceholderFilter(Map<String, String> properties) {
+        this(properties, WINDOW_SIZE);
+    }
+
+    PlaceholderFilter(Map<String, String> properties, int windowSize) {
+        this.properties = properties;
+        this.windowSize = windowSize;
+    }
+
+    /** Filters the given input stream into the given file output stream (the stream is left open to be closed by the caller).
+     *
+     * @return the number of replaced variables or {@link #BINARY} if the content was written unfiltered as it is binary
+     * @throws CharacterCodingException if the input is not valid UTF-8 (and not binary) - the unfiltered input is written in this
+     *             case */
+    int filter(InputStream is, FileUpdateOutputStream fileOut, Map<String, String> propertiesUsed) throws IOException {
+        Map<String, String> propertiesUsedInFile = new TreeMap<>();
+        FilterRun run = new FilterRun(fileOut, propertiesUsedInFile);
+        run.filter(is);
+        propertiesUsed.putAll(propertiesUsedInFile);
+        return run.binary ? BINARY : run.count;
+    }
+
+    private static int indexOfDollar(byte[] b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == '$') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static boolean containsMarker(byte[] b, int len) {
+        for (int i = indexOfDollar(b, 0, len); i < len - 1; i = indexOfDollar(b, i + 1, len)) {
+            if (b[i + 1] == '{') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAscii(byte[] b, int len) {
+        // branch free to allow the loop to be vectorized
+        int accumulated = 0;
+        for (int i = 0; i < len; i++) {
+            accumulated |= b[i];
+        }
+        return accumulated >= 0;
+    }
+
+    private static boolean containsNul(byte[] b, int len) {
+        for (int i = 0; i < len; i++) {
+            if (b[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNameFirstChar(int b) {
+        return b >= 'A' && b <= 'z'; // [a-zA-z]
+    }
+
+    private static boolean isNameChar(int b) {
+        return isNameFirstChar(b) || (b >= '0' && b <= '9') || b == '.';
+    }
+
+    private byte[] getReplacement(String token, String key, Map<String, String> propertiesUsedInFile) {
+        byte[] replacement = replacementsByToken.get(token);
+        if (replacement == null) {
+            String value;
+            String propertyUsed;
+            if (this.properties.containsKey(key)) {
+                value = this.properties.get(key);
+                propertyUsed = value;
+            } else {
+                value = token;
+                String valFromSysEnv = System.getenv().get(key);
+                propertyUsed = StringUtils.isNotBlank(valFromSysEnv)
+                        ? "<left unchanged but OS Env contains value '" + valFromSysEnv + "' that may become active>"
+                        : "<left unchanged>";
+            }
+
+            // the replacement is produced the same way as done by the regex based filtering (including the quirks of
+            // appendReplacement for backslashes in values)
+            StringBuffer sb = new StringBuffer();
+            Matcher matcher = VAR_REGEX.matcher(token);
+            matcher.find();
+            matcher.appendReplacement(sb, value.replace("$", "\\$"));
+
+            replacement = sb.toString().getBytes(StandardCharsets.UTF_8);
+            replacementsByToken.put(token, replacement);
+            propertiesUsedByToken.put(token, propertyUsed);
+        }
+        propertiesUsedInFile.put(key, propertiesUsedByToken.get(token));
+        return replacement;
+    }
+
+    /** State of filtering one file. */
+    private class FilterRun {
+
+        private final FileUpdateOutputStream fileOut;
+        private final Map<String, String> propertiesUsedInFile;
+
+        private final CharsetDecoder validator = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        private final ByteBuffer validationBuffer;
+        private final CharBuffer validationChars;
+
+        private OutputStream out;
+        private long bytesWritten = 0;
+
+        private int state = STATE_TEXT;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private final List<Replacement> replacements = new ArrayList<>();
+        private int count = 0;
+        private boolean binary = false;
+
+        FilterRun(FileUpdateOutputStream fileOut, Map<String, String> propertiesUsedInFile) {
+            this.fileOut = fileOut;
+            this.propertiesUsedInFile = propertiesUsedInFile;
+            this.validationBuffer = ByteBuffer.allocate(windowSize + 8);
+            this.validationChars = CharBuffer.allocate(windowSize + 8);
+        }
+
+        void filter(InputStream is) throws IOException {
+            byte[] window = new byte[windowSize];
+            out = new BufferedOutputStream(fileOut, windowSize);
+            try {
+                int len = IOUtils.read(is, window);
+                if (len < window.length && !containsMarker(window, len)) {
+                    // the complete file is read and contains nothing to filter
+                    write(window, 0, len);
+                    return;
+                }
+                while (len > 0) {
+                    try {
+                        validate(window, len, false);
+                    } catch (CharacterCodingException e) {
+                        writeUnfiltered(window, len, is);
+                        if (containsNul(window, len)) {
+                            binary = true;
+                            return;
+                        }
+                        throw e;
+                    }
+                    scan(window, len);
+                    if (len < window.length) {
+                        break;
+                    }
+                    len = IOUtils.read(is, window);
+                }
+                try {
+                    validate(window, 0, true);
+                } catch (CharacterCodingException e) {
+                    writeUnfiltered(window, 0, is);
+                    throw e;
+                }
+                // an incomplete placeholder at the end of the file is kept as is
+                writePending();
+            } finally {
+                out.flush();
+            }
+        }
+
+        private void validate(byte[] window, int len, boolean endOfInput) throws CharacterCodingException {
+            if (!endOfInput && validationBuffer.position() == 0 && isAscii(window, len)) {
+                // ASCII is valid UTF-8 and there is no incomplete multi-byte sequence from the previous window
+                return;
+            }
+            validationBuffer.put(window, 0, len);
+            validationBuffer.flip();
+            CoderResult result;
+            do {
+                validationChars.clear();
+                result = validator.decode(validationBuffer, validationChars, endOfInput);
+                if (result.isError()) {
+                    result.throwException();
+                }
+            } while (result.isOverflow());
+            if (endOfInput) {
+                validationChars.clear();
+                validator.flush(validationChars);
+            }
+            // an incomplete multi-byte sequence at the end of the window is kept for the next window
+            validationBuffer.compact();
+        }
+
+        private void scan(byte[] window, int len) throws IOException {
+            int textStart = 0;
+            for (int i = 0; i < len; i++) {
+                if (state == STATE_TEXT) {
+                    i = indexOfDollar(window, i, len);
+                    if (i == len) {
+                        break;
+                    }
+                    write(window, textStart, i - textStart);
+                    pending.write('$');
+                    state = STATE_DOLLAR;
+                    textStart = i + 1;
+                    continue;
+                }
+
+                int b = window[i];
+                if (b == '$') {
+                    // a new placeholder candidate starts
+                    writePending();
+                    pending.write(b);
+                    state = STATE_DOLLAR;
+                } else if (state == STATE_DOLLAR && b == '{') {
+                    pending.write(b);
+                    state = STATE_BRACE;
+                } else if (state == STATE_BRACE && isNameFirstChar(b)) {
+                    pending.write(b);
+                    state = STATE_NAME_FIRST_CHAR;
+                } else if ((state == STATE_NAME_FIRST_CHAR || state == STATE_NAME) && isNameChar(b)) {
+                    pending.write(b);
+                    state = STATE_NAME;
+                    if (pending.size() == MAX_TOKEN_LENGTH) {
+                        // the closing brace would exceed the maximum length, the candidate is text
+                        writePending();
+                        state = STATE_TEXT;
+                    }
+                } else if (state == STATE_NAME && b == '}') {
+                    pending.write(b);
+                    replacePending();
+                    state = STATE_TEXT;
+                } else {
+                    // no placeholder
+                    pending.write(b);
+                    writePending();
+                    state = STATE_TEXT;
+                }
+                textStart = i + 1;
+            }
+            if (state == STATE_TEXT) {
+                write(window, textStart, len - textStart);
+            }
+        }
+
+        private void replacePending() throws IOException {
+            byte[] tokenBytes = pending.toByteArray();
+            pending.reset();
+            String token = new String(tokenBytes, StandardCharsets.US_ASCII);
+            String key = token.substring(2, token.length() - 1);
+            byte[] replacement = getReplacement(token, key, propertiesUsedInFile);
+            count++;
+            if (!Arrays.equals(replacement, tokenBytes)) {
+                replacements.add(new Replacement(bytesWritten, replacement.length, tokenBytes));
+            }
+            write(replacement, 0, replacement.length);
+        }
+
+        private void writePending() throws IOException {
+            if (pending.size() > 0) {
+                byte[] pendingBytes = pending.toByteArray();
+                pending.reset();
+                write(pendingBytes, 0, pendingBytes.length);
+            }
+        }
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytesWritten += len;
+        }
+
+        /** Ensures the original input is written. */
+        private void writeUnfiltered(byte[] window, int len, InputStream is) throws IOException {
+            if (!replacements.isEmpty()) {
+                // the replacements done so far are reverted, this is the rare case of a file with placeholders that turns out to
+                // not be UTF-8 later on
+                out.flush();
+                try (InputStream filteredIs = fileOut.restart()) {
+                    long position = 0;
+                    for (Replacement replacement : replacements) {
+                        IOUtils.copyLarge(filteredIs, out, 0, replacement.outputOffset - position);
+                        IOUtils.skipFully(filteredIs, replacement.length);
+                        out.write(replacement.original);
+                        position = replacement.outputOffset + replacement.length;
+                    }
+                    IOUtils.copyLarge(filteredIs, out);
+                }
+            }
+            // otherwise what was written so far is the original input
+            out.write(pending.toByteArray());
+            out.write(window, 0, len);
+            IOUtils.copyLarge(is, out);
+            pending.reset();
+        }
+    }
+
+    private static class Replacement {
+        private final long outputOffset;
+        private final int length;
+        private final byte[] original;
+
+        Replacement(long outputOffset, int length, byte[] original) {
+            this.outputOffset = outputOffset;
+            this.length = length;
+            this.original = original;
+        }
+    }
+}
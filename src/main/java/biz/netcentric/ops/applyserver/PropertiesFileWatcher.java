@@ -0,0 +1,68 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/** Watches the directory of the properties file and notifies about changes.
+ *
+ * Any change in the directory is reported (after changes have settled for a moment), as the file may also be replaced via rename or
+ * via a symbolic link (e.g. a Kubernetes config map). The listener is expected to check whether the properties actually changed. */
+class PropertiesFileWatcher implements Runnable {
+
+    private static final long SETTLE_TIME_IN_MS = 300;
+
+    private final Path directory;
+    private final Runnable listener;
+
+    PropertiesFileWatcher(File propertiesFile, Runnable listener) {
+        this.directory = propertiesFile.getAbsoluteFile().getParentFile().toPath();
+        this.listener = listener;
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "apply-server-properties-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            System.out.println("Watching " + directory + " for changes of properties");
+            while (true) {
+                WatchKey watchKey = watchService.take();
+                // editors and tools often write a file in several steps
+                Thread.sleep(SETTLE_TIME_IN_MS);
+                watchKey.pollEvents();
+                if (!watchKey.reset()) {
+                    System.out.println("Directory " + directory + " is no longer accessible, stopped watching properties");
+                    return;
+                }
+                try {
+                    listener.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Could not process change of properties: " + e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Could not watch properties in " + directory + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/** A separate executor (bulkhead) per route class, so e.g. slow downloads cannot starve script executions or the index page.
+ *
+ * Every executor runs a limited number of requests in parallel and queues a limited number of further requests, requests beyond
+ * that are rejected with 503. */
+@SuppressWarnings("restriction")
+class RouteExecutors {
+
+    enum Route {
+        // tails hold a thread for the duration of a run, queuing them makes no sense
+        SCRIPT(5, 20), DOWNLOAD(3, 10), TAIL(10, 0), READ(2, 50);
+
+        private final int defaultThreads;
+        private final int defaultQueueSize;
+
+        Route(int defaultThreads, int defaultQueueSize) {
+            this.defaultThreads = defaultThreads;
+            this.defaultQueueSize = defaultQueueSize;
+        }
+
+        int getDefaultThreads() {
+            return defaultThreads;
+        }
+
+        int getDefaultQueueSize() {
+            return defaultQueueSize;
+        }
+
+        String toOptionValue() {
+            return name().toLowerCase();
+        }
+
+        static Route fromOptionValue(String value) {
+            for (Route route : values()) {
+                if (route.toOptionValue().equals(value)) {
+                    return route;
+                }
+            }
+            throw new IllegalArgumentException("Invalid route '" + value + "' (valid routes are script, download, tail and read)");
+        }
+
+        static Route of(HttpExchange exchange) {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                return SCRIPT;
+            } else if (exchange.getRequestURI().getPath().startsWith("/download.")) {
+                return DOWNLOAD;
+            } else if (exchange.getRequestURI().getPath().startsWith(ApplyServerHttpHandler.RUN_URL_PREFIX)
+                    && exchange.getRequestURI().getPath().endsWith(ApplyServerHttpHandler.RUN_TAIL_URL_SUFFIX)) {
+                return TAIL;
+            } else {
+                return READ;
+            }
+        }
+    }
+
+    static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    private final Map<Route, Bulkhead> bulkheads = new EnumMap<>(Route.class);
+
+    RouteExecutors(ApplyServerConfig config) {
+        ExecutorService virtualThreadExecutor = config.isVirtualThreads() ? createVirtualThreadExecutor() : null;
+        for (Route route : Route.values()) {
+            bulkheads.put(route, new Bulkhead(route, config.getExecutorThreads(route), config.getExecutorQueueSize(route),
+                    virtualThreadExecutor));
+        }
+    }
+
+    /** @return a handler that runs the given handler on the executor of the request's route */
+    HttpHandler dispatchTo(HttpHandler handler) {
+        return exchange -> {
+            Bulkhead bulkhead = bulkheads.get(Route.of(exchange));
+            try {
+                bulkhead.execute(() -> {
+                    try {
+                        handler.handle(exchange);
+                    } catch (IOException | RuntimeException e) {
+                        System.out.println("Could not handle request " + exchange.getRequestURI() + ": " + e);
+                        exchange.close();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                sendRejection(exchange, bulkhead);
+            }
+        };
+    }
+
+    Bulkhead getBulkhead(Route route) {
+        return bulkheads.get(route);
+    }
+
+    private void sendRejection(HttpExchange exchange, Bulkhead bulkhead) throws IOException {
+        byte[] message = ("Too many " + bulkhead.route.toOptionValue() + " requests (" + bulkhead.getQueueDepth()
+                + " queued), try again later").getBytes(StandardCharsets.UTF_8);
+        try (OutputStream os = exchange.getResponseBody()) {
+            exchange.getResponseHeaders().add(HEADER_RETRY_AFTER, "1");
+            exchange.sendResponseHeaders(LimitExceededException.SERVICE_UNAVAILABLE, message.length);
+            os.write(message);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /** Uses virtual threads (available as of Java 21) via reflection, as the server is built for Java 8.
+     *
+     * @return the executor or null if virtual threads are not supported by the JVM */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            System.out.println("Requests are handled on virtual threads");
+            return executor;
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            System.out.println("Virtual threads are not supported by Java " + System.getProperty("java.version")
+                    + ", using platform threads");
+            return null;
+        }
+    }
+
+    /** Runs the requests of one route, the number of running and queued requests is bounded. */
+    static class Bulkhead {
+
+        private final Route route;
+        private final int threads;
+        private final int maxInFlight;
+        private final ExecutorService executor;
+        // only for virtual threads, platform threads are limited by the pool size
+        private final Semaphore runPermits;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicLong rejected = new AtomicLong();
+
+        Bulkhead(Route route, int threads, int queueSize, ExecutorService virtualThreadExecutor) {
+            this.route = route;
+            this.threads = threads;
+            this.maxInFlight = threads + queueSize;
+            if (virtualThreadExecutor != null) {
+                this.executor = virtualThreadExecutor;
+                this.runPermits = new Semaphore(threads);
+            } else {
+                AtomicInteger threadCount = new AtomicInteger();
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                        runnable -> new Thread(runnable, "apply-server-" + route.toOptionValue() + "-" + threadCount.incrementAndGet()));
+                pool.allowCoreThreadTimeOut(true);
+                this.executor = pool;
+                this.runPermits = null;
+            }
+        }
+
+        /** @throws RejectedExecutionException if the maximum of running and queued requests is reached */
+        void execute(Runnable task) {
+            if (inFlight.incrementAndGet() > maxInFlight) {
+                inFlight.decrementAndGet();
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException("Too many " + route.toOptionValue() + " requests");
+            }
+            try {
+                executor.execute(() -> run(task));
+            } catch (RejectedExecutionException e) {
+                inFlight.decrementAndGet();
+                rejected.incrementAndGet();
+                throw e;
+            }
+        }
+
+        private void run(Runnable task) {
+            try {
+                if (runPermits != null) {
+                    runPermits.acquireUninterruptibly();
+                }
+                active.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    active.decrementAndGet();
+                    if (runPermits != null) {
+                        runPermits.release();
+                    }
+                }
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        int getThreads() {
+            return threads;
+        }
+
+        int getActiveCount() {
+            return active.get();
+        }
+
+        /** @return the number of requests waiting to be run */
+        int getQueueDepth() {
+            return Math.max(0, inFlight.get() - active.get());
+        }
+
+        long getRejectedCount() {
+            return rejected.get();
+        }
+
+        @Override
+        public String toString() {
+            return route.toOptionValue() + " " + getActiveCount() + "/" + threads + " active, " + getQueueDepth() + " queued, "
+                    + getRejectedCount() + " rejected";
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** The results of the latest runs in a ring buffer of fixed capacity, the output of the oldest run is discarded once its slot is
+ * reused. */
+class RunHistory {
+
+    static final int CAPACITY_DEFAULT = 100;
+
+    // guarded by this
+    private final ScriptResult[] results;
+    private long added = 0;
+
+    RunHistory(int capacity) {
+        this.results = new ScriptResult[capacity];
+    }
+
+    void add(ScriptResult result) {
+        ScriptResult evicted;
+        synchronized (this) {
+            int slot = (int) (added % results.length);
+            evicted = results[slot];
+            results[slot] = result;
+            added++;
+        }
+        if (evicted != null) {
+            evicted.discardOutput();
+        }
+    }
+
+    /** @return the (latest) result of the given run or null if there is none (anymore) */
+    synchronized ScriptResult get(int runId) {
+        for (long i = added - 1; i >= 0 && i >= added - results.length; i--) {
+            ScriptResult result = results[(int) (i % results.length)];
+            if (result.getRunId() == runId) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /** @return the results, the newest first */
+    synchronized List<ScriptResult> getLatest() {
+        int count = (int) Math.min(added, results.length);
+        List<ScriptResult> latest = new ArrayList<>(count);
+        for (long i = added - 1; i >= added - count; i--) {
+            latest.add(results[(int) (i % results.length)]);
+        }
+        return latest;
+    }
+
+    synchronized int size() {
+        return (int) Math.min(added, results.length);
+    }
+}
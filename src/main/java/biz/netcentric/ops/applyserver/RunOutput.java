@@ -0,0 +1,257 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/** The output of one run. The output is kept in memory up to a threshold and spilled to a file in the given directory beyond that,
+ * so runs with a lot of output do not occupy the heap while they are kept in the history.
+ *
+ * While the run is in progress, the latest bytes are also kept in a ring buffer that any number of readers can tail (via
+ * /run/{id}/tail). The ring buffer is only allocated once tailing is enabled for a started run, so outputs of plain GET requests
+ * stay small. Writing never waits for readers: a reader that falls behind by more than the size of the ring buffer skips the
+ * overwritten bytes. */
+class RunOutput extends OutputStream implements ScriptResult.Output {
+
+    static final int TAIL_BUFFER_SIZE = 64 * 1024;
+    static final int SPILL_THRESHOLD = 64 * 1024;
+
+    // 0 until the run is registered
+    private volatile int runId;
+
+    private final File spillDir;
+    private final int spillThreshold;
+    private final int tailBufferSize;
+
+    // guarded by this
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private File spillFile;
+    private OutputStream spillStream;
+    private long size = 0;
+    // allocated by enableTail(), released once the run is finished and no reader is tailing anymore
+    private byte[] ring;
+    private int tailers = 0;
+    private boolean finished = false;
+
+    /** @param spillDir the directory for the output beyond the threshold or null to keep the output in memory */
+    RunOutput(File spillDir) {
+        this(spillDir, SPILL_THRESHOLD, TAIL_BUFFER_SIZE);
+    }
+
+    RunOutput(File spillDir, int spillThreshold, int tailBufferSize) {
+        this.spillDir = spillDir;
+        this.spillThreshold = spillThreshold;
+        this.tailBufferSize = tailBufferSize;
+    }
+
+    int getRunId() {
+        return runId;
+    }
+
+    void setRunId(int runId) {
+        this.runId = runId;
+    }
+
+    /** Starts keeping the latest bytes for readers tailing the run (including the bytes written so far). */
+    synchronized void enableTail() {
+        if (ring != null || finished) {
+            return;
+        }
+        ring = new byte[tailBufferSize];
+        if (size > 0) {
+            byte[] written = toByteArray();
+            appendToRing(0, written, 0, written.length);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (spillFile == null && spillDir != null && memory.size() + len > spillThreshold) {
+            spill();
+        }
+        if (spillFile != null) {
+            getSpillStream().write(b, off, len);
+        } else {
+            memory.write(b, off, len);
+        }
+        appendToRing(size, b, off, len);
+        size += len;
+        notifyAll();
+    }
+
+    /** @param position the position of the given bytes in the output */
+    private void appendToRing(long position, byte[] b, int off, int len) {
+        if (ring == null) {
+            return;
+        }
+        // only the last bytes fit into the ring buffer
+        int skip = Math.max(0, len - ring.length);
+        for (int copied = skip; copied < len;) {
+            int ringPos = (int) ((position + copied) % ring.length);
+            int chunk = Math.min(len - copied, ring.length - ringPos);
+            System.arraycopy(b, off + copied, ring, ringPos, chunk);
+            copied += chunk;
+        }
+    }
+
+    private void spill() throws IOException {
+        if (!spillDir.isDirectory() && !spillDir.mkdirs()) {
+            throw new IOException("Could not create directory " + spillDir);
+        }
+        spillFile = File.createTempFile("run-", ".log", spillDir);
+        getSpillStream().write(memory.toByteArray());
+        memory = null;
+    }
+
+    private OutputStream getSpillStream() throws IOException {
+        if (spillStream == null) {
+            // reopened in append mode for output written after the run was finished
+            spillStream = new FileOutputStream(spillFile, true);
+        }
+        return spillStream;
+    }
+
+    /** Marks the run as finished, tailing readers return once they have read the remaining bytes. */
+    synchronized void finish() {
+        finished = true;
+        closeSpillStream();
+        if (tailers == 0) {
+            ring = null;
+        }
+        notifyAll();
+    }
+
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /** @return the number of bytes written */
+    synchronized long size() {
+        return size;
+    }
+
+    /** @return true if the output exceeded the threshold and is kept in a file */
+    synchronized boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    /** Writes the complete output to the given stream. */
+    @Override
+    public synchronized void writeTo(OutputStream out) throws IOException {
+        if (spillFile != null) {
+            if (spillStream != null) {
+                spillStream.flush();
+            }
+            Files.copy(spillFile.toPath(), out);
+        } else {
+            memory.writeTo(out);
+        }
+    }
+
+    synchronized byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(size, Integer.MAX_VALUE));
+        try {
+            writeTo(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read output of run " + runId, e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        return new String(toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /** Deletes the spilled output (once the run was dropped from the history). */
+    @Override
+    public synchronized void delete() {
+        closeSpillStream();
+        if (spillFile != null && !spillFile.delete()) {
+            System.out.println("Could not delete output of run " + runId + ": " + spillFile);
+        }
+    }
+
+    private void closeSpillStream() {
+        if (spillStream != null) {
+            try {
+                spillStream.close();
+            } catch (IOException e) {
+                System.out.println("Could not close output of run " + runId + ": " + e);
+            }
+            spillStream = null;
+        }
+    }
+
+    /** Writes the buffered backlog and then the output as it is written to the given stream until the run has finished. */
+    void tail(OutputStream out) throws IOException, InterruptedException {
+        byte[] chunk;
+        long position;
+        synchronized (this) {
+            if (ring == null) {
+                // finished already (or never started)
+                writeTo(out);
+                return;
+            }
+            tailers++;
+            chunk = new byte[ring.length];
+            position = Math.max(0, size - ring.length);
+        }
+        try {
+            while (true) {
+                long skipped;
+                int len;
+                synchronized (this) {
+                    while (position == size && !finished) {
+                        wait();
+                    }
+                    if (position == size) {
+                        return;
+                    }
+                    long oldestBuffered = Math.max(0, size - ring.length);
+                    skipped = Math.max(0, oldestBuffered - position);
+                    position += skipped;
+                    len = (int) (size - position);
+                    for (int copied = 0; copied < len;) {
+                        int ringPos = (int) ((position + copied) % ring.length);
+                        int part = Math.min(len - copied, ring.length - ringPos);
+                        System.arraycopy(ring, ringPos, chunk, copied, part);
+                        copied += part;
+                    }
+                    position += len;
+                }
+                // written outside the lock to never block the writer
+                if (skipped > 0) {
+                    out.write(("\n[... " + skipped + " bytes skipped ...]\n").getBytes(StandardCharsets.UTF_8));
+                }
+                out.write(chunk, 0, len);
+                out.flush();
+            }
+        } finally {
+            synchronized (this) {
+                tailers--;
+                if (finished && tailers == 0) {
+                    ring = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+/** Keeps the results of runs across restarts: the output is appended to segment files, an index with a fixed-size record per run id
+ * (time, result, script and the position of the output) allows to look up runs without scanning the segments.
+ *
+ * Runs are stored in the order they finish (which is not the order of their ids, e.g. for long running jobs), hence segments are
+ * numbered by a sequence of their own. At startup, only the directory listing and the index records (not the output) are read.
+ * Whole segments are deleted as per retention by number of runs, age and total size. */
+class RunStore {
+
+    static final int MAX_RUNS_DEFAULT = 1000;
+    static final int MAX_AGE_IN_DAYS_DEFAULT = 30;
+    static final int MAX_SIZE_IN_MB_DEFAULT = 100;
+
+    private static final String INDEX_FILE = "index.bin";
+    private static final String SEGMENT_EXTENSION = ".log";
+    private static final int RUNS_PER_SEGMENT_DEFAULT = 100;
+    private static final long SEGMENT_MAX_BYTES = 8 * 1024 * 1024;
+
+    // header: run id of the first record
+    private static final int INDEX_HEADER_SIZE = 8;
+    // run id, time, result code, segment, offset, length (36 bytes), result (16 bytes), script name (76 bytes)
+    private static final int RECORD_SIZE = 128;
+    private static final int RECORD_SEGMENT_POSITION = 16;
+    private static final int RESULT_FIELD_SIZE = 16;
+    private static final int SCRIPT_FIELD_SIZE = 76;
+    // the index is rewritten once that many records before the oldest retained run can be dropped
+    private static final int INDEX_COMPACTION_THRESHOLD = 10000;
+
+    private final File dir;
+    private final int maxRuns;
+    private final long maxAgeInMs;
+    private final long maxSizeInBytes;
+    private final int runsPerSegment;
+
+    // guarded by this
+    private RandomAccessFile index;
+    private long indexBaseRunId;
+    private int lastRunId;
+    // segments by their sequence number
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment currentSegment;
+    private OutputStream currentSegmentStream;
+    private long currentSegmentSize;
+    private int currentSegmentRuns;
+
+    RunStore(File dir, int maxRuns, int maxAgeInDays, int maxSizeInMb) throws IOException {
+        this(dir, maxRuns, maxAgeInDays, maxSizeInMb, RUNS_PER_SEGMENT_DEFAULT);
+    }
+
+    RunStore(File dir, int maxRuns, int maxAgeInDays, int maxSizeInMb, int runsPerSegment) throws IOException {
+        this.dir = dir;
+        this.maxRuns = maxRuns;
+        this.maxAgeInMs = TimeUnit.DAYS.toMillis(maxAgeInDays);
+        this.maxSizeInBytes = maxSizeInMb * 1024L * 1024L;
+        this.runsPerSegment = runsPerSegment;
+        open();
+    }
+
+    private void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        File[] segmentFiles = dir.listFiles((d, name) -> name.endsWith(SEGMENT_EXTENSION));
+        for (File segmentFile : segmentFiles) {
+            String sequence = segmentFile.getName().substring(0, segmentFile.getName().length() - SEGMENT_EXTENSION.length());
+            try {
+                int segmentId = Integer.parseInt(sequence);
+                segments.put(segmentId, new Segment(segmentId, segmentFile));
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring unexpected file in run store: " + segmentFile);
+            }
+        }
+
+        index = new RandomAccessFile(new File(dir, INDEX_FILE), "rw");
+        if (index.length() < INDEX_HEADER_SIZE) {
+            indexBaseRunId = 1;
+            index.setLength(0);
+            index.writeLong(indexBaseRunId);
+        } else {
+            indexBaseRunId = index.readLong();
+        }
+        lastRunId = (int) (indexBaseRunId + (index.length() - INDEX_HEADER_SIZE) / RECORD_SIZE - 1);
+        countRunsPerSegment();
+    }
+
+    /** Reads the run ids and segments of the index records (for the retention by number of runs). */
+    private void countRunsPerSegment() throws IOException {
+        FileChannel channel = index.getChannel();
+        // a partial record at the end (e.g. after a crash) is ignored
+        long end = INDEX_HEADER_SIZE + (channel.size() - INDEX_HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+        ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * 256);
+        for (long position = INDEX_HEADER_SIZE; position < end; position += records.limit()) {
+            records.clear();
+            records.limit((int) Math.min(records.capacity(), end - position));
+            while (records.hasRemaining()) {
+                if (channel.read(records, position + records.position()) < 0) {
+                    throw new IOException("Index of run store is truncated");
+                }
+            }
+            for (int recordStart = 0; recordStart < records.limit(); recordStart += RECORD_SIZE) {
+                int runId = records.getInt(recordStart);
+                Segment segment = segments.get(records.getInt(recordStart + RECORD_SEGMENT_POSITION));
+                if (runId != 0 && segment != null) {
+                    segment.addRun(runId);
+                }
+            }
+        }
+    }
+
+    /** @return the id of the latest stored run (0 if there is none) */
+    synchronized int getLastRunId() {
+        return lastRunId;
+    }
+
+    /** Appends the output of the given (finished) result and applies the retention. */
+    synchronized void add(ScriptResult result) throws IOException {
+        if (result.getRunId() < indexBaseRunId) {
+            // finished after its records were compacted away (far beyond the retention)
+            System.out.println("Not storing run " + result.getRunId() + " as it is older than the retained runs");
+            return;
+        }
+        if (result.getRunId() <= lastRunId && get(result.getRunId()) != null) {
+            // e.g. the run was recorded as failed already
+            return;
+        }
+        if (currentSegmentStream == null || currentSegmentRuns >= runsPerSegment || currentSegmentSize >= SEGMENT_MAX_BYTES) {
+            startSegment();
+        }
+        Segment segment = currentSegment;
+        long offset = currentSegmentSize;
+        CountingOutputStream countingStream = new CountingOutputStream(currentSegmentStream);
+        result.writeScriptOutputTo(countingStream);
+        currentSegmentStream.flush();
+        currentSegmentSize += countingStream.getByteCount();
+        currentSegmentRuns++;
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putInt(result.getRunId());
+        record.putLong(result.getTime().getTime());
+        record.putInt(result.getResultCode());
+        record.putInt(segment.id);
+        record.putLong(offset);
+        record.putLong(countingStream.getByteCount());
+        putString(record, result.getResult(), RESULT_FIELD_SIZE);
+        putString(record, result.getScriptName(), SCRIPT_FIELD_SIZE);
+        // the index is written last to only reference output that is stored
+        index.seek(getRecordPosition(result.getRunId()));
+        index.write(record.array());
+        lastRunId = Math.max(lastRunId, result.getRunId());
+        segment.addRun(result.getRunId());
+
+        applyRetention();
+    }
+
+    private void startSegment() throws IOException {
+        closeSegment();
+        int segmentId = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        currentSegment = new Segment(segmentId, new File(dir, segmentId + SEGMENT_EXTENSION));
+        segments.put(segmentId, currentSegment);
+        currentSegmentStream = new BufferedOutputStream(new FileOutputStream(currentSegment.file, true));
+        currentSegmentSize = currentSegment.file.length();
+        currentSegmentRuns = 0;
+    }
+
+    private void closeSegment() throws IOException {
+        if (currentSegmentStream != null) {
+            currentSegmentStream.close();
+            currentSegmentStream = null;
+        }
+    }
+
+    /** @return the result of the given run or null if it is not stored (anymore) */
+    synchronized ScriptResult get(int runId) throws IOException {
+        long position = getRecordPosition(runId);
+        if (runId < indexBaseRunId || position + RECORD_SIZE > index.length()) {
+            return null;
+        }
+        byte[] bytes = new byte[RECORD_SIZE];
+        index.seek(position);
+        index.readFully(bytes);
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+        if (record.getInt() != runId) {
+            // no result for this run id
+            return null;
+        }
+        Date time = new Date(record.getLong());
+        int resultCode = record.getInt();
+        Segment segment = segments.get(record.getInt());
+        long offset = record.getLong();
+        long length = record.getLong();
+        String result = getString(record, RESULT_FIELD_SIZE);
+        String scriptName = getString(record, SCRIPT_FIELD_SIZE);
+        if (segment == null) {
+            // deleted as per retention
+            return null;
+        }
+        return new ScriptResult(runId, scriptName, result, resultCode, time,
+                out -> copySegmentRange(segment.file, offset, length, out));
+    }
+
+    /** @return up to the given number of stored results before the given run id, the newest first */
+    synchronized List<ScriptResult> getLatest(int beforeRunId, int maxResults) throws IOException {
+        List<ScriptResult> results = new ArrayList<>();
+        for (int runId = Math.min(beforeRunId - 1, lastRunId); runId >= indexBaseRunId && results.size() < maxResults; runId--) {
+            ScriptResult result = get(runId);
+            if (result != null) {
+                results.add(result);
+            } else if (runId < getMinRetainedRunId()) {
+                break;
+            }
+        }
+        return results;
+    }
+
+    private void copySegmentRange(File segment, long offset, long length, OutputStream out) throws IOException {
+        // the segment stream is flushed after every run
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            long transferred = 0;
+            while (transferred < length) {
+                long count = channel.transferTo(offset + transferred, length - transferred, Channels.newChannel(out));
+                if (count <= 0) {
+                    throw new IOException("Output of run in " + segment + " is truncated");
+                }
+                transferred += count;
+            }
+        }
+    }
+
+    private void applyRetention() throws IOException {
+        long totalSize = 0;
+        int totalRuns = 0;
+        for (Segment segment : segments.values()) {
+            totalSize += segment.file.length();
+            totalRuns += segment.runCount;
+        }
+        long minTime = System.currentTimeMillis() - maxAgeInMs;
+        // segments are deleted in the order the runs finished, the current segment is never deleted
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            boolean isExpired = oldest.file.lastModified() < minTime;
+            boolean exceedsCount = totalRuns - oldest.runCount >= maxRuns;
+            boolean exceedsSize = totalSize > maxSizeInBytes;
+            if (!isExpired && !exceedsCount && !exceedsSize) {
+                break;
+            }
+            totalSize -= oldest.file.length();
+            totalRuns -= oldest.runCount;
+            Files.deleteIfExists(oldest.file.toPath());
+            segments.remove(oldest.id);
+        }
+        int minRetainedRunId = getMinRetainedRunId();
+        if (minRetainedRunId != Integer.MAX_VALUE && minRetainedRunId - indexBaseRunId > INDEX_COMPACTION_THRESHOLD) {
+            compactIndex(minRetainedRunId);
+        }
+    }
+
+    /** @return the lowest run id with output in a retained segment (or Integer.MAX_VALUE if there is none) */
+    private int getMinRetainedRunId() {
+        int minRunId = Integer.MAX_VALUE;
+        for (Segment segment : segments.values()) {
+            minRunId = Math.min(minRunId, segment.minRunId);
+        }
+        return minRunId;
+    }
+
+    /** Rewrites the index without the records of deleted segments. */
+    private void compactIndex(int newBaseRunId) throws IOException {
+        File indexFile = new File(dir, INDEX_FILE);
+        File compactedFile = new File(dir, INDEX_FILE + ".tmp");
+        try (FileChannel compacted = FileChannel.open(compactedFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+            header.putLong(newBaseRunId);
+            header.flip();
+            compacted.write(header);
+            long from = getRecordPosition(newBaseRunId);
+            index.getChannel().transferTo(from, index.length() - from, compacted);
+        }
+        index.close();
+        Files.move(compactedFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = new RandomAccessFile(indexFile, "rw");
+        indexBaseRunId = newBaseRunId;
+    }
+
+    synchronized void close() throws IOException {
+        closeSegment();
+        index.close();
+    }
+
+    private long getRecordPosition(long runId) {
+        return INDEX_HEADER_SIZE + (runId - indexBaseRunId) * RECORD_SIZE;
+    }
+
+    /** A segment file with the runs stored in it. */
+    private static class Segment {
+        private final int id;
+        private final File file;
+        private int runCount = 0;
+        private int minRunId = Integer.MAX_VALUE;
+
+        private Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        private void addRun(int runId) {
+            runCount++;
+            minRunId = Math.min(minRunId, runId);
+        }
+    }
+
+    private static void putString(ByteBuffer record, String value, int fieldSize) {
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, fieldSize - 1);
+        record.put((byte) length);
+        record.put(bytes, 0, length);
+        record.position(record.position() + fieldSize - 1 - length);
+    }
+
+    private static String getString(ByteBuffer record, int fieldSize) {
+        int length = record.get() & 0xFF;
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        record.position(record.position() + fieldSize - 1 - length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
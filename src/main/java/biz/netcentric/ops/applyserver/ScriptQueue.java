@@ -0,0 +1,219 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Decides what happens to requests for a script that arrive while the script is running: they are rejected (default), queued in
+ * order of arrival or coalesced into one follow-up run that uses the payload of the newest request (all coalesced requests
+ * receive the result of that run). */
+class ScriptQueue {
+
+    static final int MAX_WAIT_DEFAULT_IN_SEC = 300;
+
+    enum Policy {
+        REJECT, QUEUE, COALESCE;
+
+        String toOptionValue() {
+            return name().toLowerCase();
+        }
+
+        static Policy fromOptionValue(String value) {
+            for (Policy policy : values()) {
+                if (policy.toOptionValue().equals(value)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("Invalid policy '" + value + "' (valid policies are reject, queue and coalesce)");
+        }
+    }
+
+    private final String scriptName;
+    private final Policy policy;
+    private final int maxWaitInSec;
+    // a semaphore with a single permit (instead of a lock), as an asynchronous job releases the permit on another thread
+    private final Semaphore lock;
+    private final LongAdder rejectedCount = new LongAdder();
+
+    // state of coalescing, guarded by this
+    private boolean isBatchRunning = false;
+    private Batch nextBatch;
+
+    ScriptQueue(String scriptName, Policy policy, int maxWaitInSec) {
+        this.scriptName = scriptName;
+        this.policy = policy;
+        this.maxWaitInSec = maxWaitInSec;
+        // fair for requests to be run in order of arrival
+        this.lock = new Semaphore(1, policy == Policy.QUEUE);
+    }
+
+    Policy getPolicy() {
+        return policy;
+    }
+
+    /** The lock held while the script runs (also used for script runs not triggered by requests). */
+    Semaphore getLock() {
+        return lock;
+    }
+
+    /** @return the number of requests rejected as the script was running (or not run within the maximum wait time) */
+    long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /** @return the number of requests waiting for the next coalesced run */
+    synchronized int getWaitingCount() {
+        return nextBatch != null ? nextBatch.tickets.size() : 0;
+    }
+
+    /** Acquires the lock for a request, waits up to the maximum wait time unless the policy is to reject.
+     *
+     * @return false if the script is running and the request is to be rejected
+     * @throws LimitExceededException if the maximum wait time has elapsed */
+    boolean acquireForRequest() throws InterruptedIOException {
+        if (policy == Policy.REJECT) {
+            boolean isAcquired = lock.tryAcquire();
+            if (!isAcquired) {
+                rejectedCount.increment();
+            }
+            return isAcquired;
+        }
+        try {
+            if (!lock.tryAcquire(maxWaitInSec, TimeUnit.SECONDS)) {
+                rejectedCount.increment();
+                throw new LimitExceededException("Script " + scriptName + " is still running after waiting " + maxWaitInSec + "s",
+                        LimitExceededException.SERVICE_UNAVAILABLE);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for script " + scriptName);
+        }
+    }
+
+    /** Joins the batch of requests to be run next (for policy coalesce), waits until the batch is started.
+     *
+     * @return the ticket that tells whether the request runs the script for the batch
+     * @throws LimitExceededException if the batch was not started within the maximum wait time */
+    synchronized Ticket join() throws InterruptedIOException {
+        if (!isBatchRunning) {
+            isBatchRunning = true;
+            Batch batch = new Batch();
+            return batch.startWith(new Ticket(batch));
+        }
+        if (nextBatch == null) {
+            nextBatch = new Batch();
+        }
+        Ticket ticket = new Ticket(nextBatch);
+        nextBatch.tickets.add(ticket);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(maxWaitInSec);
+        try {
+            while (!ticket.batch.isStarted) {
+                long remainingMs = deadline - System.currentTimeMillis();
+                if (remainingMs <= 0) {
+                    leaveUnstartedBatch(ticket);
+                    rejectedCount.increment();
+                    throw new LimitExceededException("Script " + scriptName + " is still running after waiting " + maxWaitInSec + "s",
+                            LimitExceededException.SERVICE_UNAVAILABLE);
+                }
+                wait(remainingMs);
+            }
+        } catch (InterruptedException e) {
+            leaveUnstartedBatch(ticket);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for script " + scriptName);
+        }
+        return ticket;
+    }
+
+    private void leaveUnstartedBatch(Ticket ticket) {
+        ticket.batch.tickets.remove(ticket);
+        if (ticket.batch.tickets.isEmpty() && nextBatch == ticket.batch) {
+            nextBatch = null;
+        }
+    }
+
+    private synchronized void finish(Batch batch, ScriptResult result) {
+        batch.result.complete(result);
+        if (nextBatch != null) {
+            Batch batchToStart = nextBatch;
+            nextBatch = null;
+            // the newest request runs the script with its payload
+            batchToStart.startWith(batchToStart.tickets.get(batchToStart.tickets.size() - 1));
+            notifyAll();
+        } else {
+            isBatchRunning = false;
+        }
+    }
+
+    /** Requests that are covered by one script run. */
+    private static class Batch {
+        private final List<Ticket> tickets = new ArrayList<>();
+        private final CompletableFuture<ScriptResult> result = new CompletableFuture<>();
+        private boolean isStarted = false;
+
+        private Ticket startWith(Ticket leader) {
+            if (!tickets.contains(leader)) {
+                tickets.add(leader);
+            }
+            leader.isLeader = true;
+            isStarted = true;
+            return leader;
+        }
+    }
+
+    /** The place of one request in a batch. */
+    class Ticket {
+        private final Batch batch;
+        // guarded by the queue
+        private boolean isLeader = false;
+
+        private Ticket(Batch batch) {
+            this.batch = batch;
+        }
+
+        /** @return true if the request runs the script for the batch and has to call {@link #complete(ScriptResult)} */
+        boolean isLeader() {
+            synchronized (ScriptQueue.this) {
+                return isLeader;
+            }
+        }
+
+        /** @return the number of other requests covered by the run */
+        int getCoalescedCount() {
+            synchronized (ScriptQueue.this) {
+                return batch.tickets.size() - 1;
+            }
+        }
+
+        /** Publishes the result of the run to the other requests of the batch and starts the next batch. */
+        void complete(ScriptResult result) {
+            finish(batch, result);
+        }
+
+        /** @return the result of the run by the leader of the batch */
+        ScriptResult awaitResult() throws InterruptedIOException {
+            try {
+                return batch.result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for script " + scriptName);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Unexpected failure of coalesced run", e.getCause());
+            }
+        }
+    }
+}
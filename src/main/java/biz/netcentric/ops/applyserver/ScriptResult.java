@@ -8,24 +8,52 @@
  */
 package biz.netcentric.ops.applyserver;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 
 class ScriptResult {
 
+    /** The output of a run, may be kept outside of the heap. */
+    interface Output {
+        void writeTo(OutputStream out) throws IOException;
+
+        /** Releases the resources once the result is dropped from the history. */
+        default void delete() {
+        }
+    }
+
+    private final int runId;
     private final String scriptName;
     private final String result;
     private final int resultCode;
     private final Date time;
-    private final String scriptOutput;
+    private final Output output;
+
+    public ScriptResult(int runId, String scriptName, String result, int resultCode, String scriptOutput) {
+        this(runId, scriptName, result, resultCode, new Date(), out -> out.write(scriptOutput.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public ScriptResult(String scriptName, String result, int resultCode, RunOutput runOutput) {
+        this(runOutput.getRunId(), scriptName, result, resultCode, new Date(), runOutput);
+    }
 
-    public ScriptResult(String scriptName, String result, int resultCode, String scriptOutput) {
+    public ScriptResult(int runId, String scriptName, String result, int resultCode, Date time, Output output) {
+        this.runId = runId;
         this.scriptName = scriptName;
         this.result = result;
         this.resultCode = resultCode;
-        this.time = new Date();
-        this.scriptOutput = scriptOutput;
+        this.time = time;
+        this.output = output;
     }
 
+	public int getRunId() {
+		return runId;
+	}
+
 	public String getScriptName() {
 		return scriptName;
 	}
@@ -43,9 +71,28 @@ class ScriptResult {
 	}
 
 	public String getScriptOutput() {
-		return scriptOutput;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			output.writeTo(bytes);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not read output of run " + runId, e);
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/** Streams the output (output kept outside of the heap is not loaded into memory). */
+	public void writeScriptOutputTo(OutputStream out) throws IOException {
+		output.writeTo(out);
+	}
+
+	/** @return the result without the output as JSON object (for /runs) */
+	public String toJson() {
+		return "{\"id\": " + runId + ", \"time\": " + Json.quote(time.toInstant().toString()) + ", \"script\": " + Json.quote(scriptName)
+				+ ", \"status\": " + Json.quote(result) + ", \"code\": " + resultCode + "}";
+	}
+
+	/** Deletes the spilled output once the result is dropped from the history. */
+	public void discardOutput() {
+		output.delete();
 	}
-    
-    
-    
-}
\ No newline at end of file
+}
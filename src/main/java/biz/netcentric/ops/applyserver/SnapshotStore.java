@@ -0,0 +1,180 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+
+/** Snapshots of the destination for incremental downloads: an index of path, size, modification time and SHA-256 of every file that
+ * is persisted in the state dir under a token (the hash of the index).
+ *
+ * Only files with changed size or modification time are hashed again when a snapshot is created, the hashes of all other files are
+ * taken from the latest snapshot. */
+class SnapshotStore {
+
+    private static final String SNAPSHOT_DIR = "snapshots";
+    private static final String SNAPSHOT_SUFFIX = ".tsv";
+    private static final Pattern TOKEN_REGEX = Pattern.compile("[0-9a-f]{64}");
+    private static final int MAX_SNAPSHOTS = 10;
+
+    static final Snapshot EMPTY = new Snapshot("", Collections.emptyMap());
+
+    private final ZipInflater zipInflater;
+    private final String destination;
+    private final Pattern excludePattern;
+    private final File excludedDir;
+    private final File snapshotDir;
+
+    private Snapshot latest;
+
+    SnapshotStore(ZipInflater zipInflater, String destination, Pattern excludePattern, File stateDir) {
+        this.zipInflater = zipInflater;
+        this.destination = destination;
+        this.excludePattern = excludePattern;
+        this.excludedDir = stateDir;
+        this.snapshotDir = new File(stateDir, SNAPSHOT_DIR);
+    }
+
+    /** Indexes the current files of the destination and persists the index.
+     *
+     * @return the snapshot of the current files */
+    synchronized Snapshot createSnapshot() throws IOException {
+        if (latest == null) {
+            latest = loadLatestSnapshot();
+        }
+        long startTime = System.currentTimeMillis();
+        Map<String, IndexEntry> entries = zipInflater.index(destination, excludePattern, excludedDir, latest.entries);
+        String indexText = toText(entries);
+        String token = SourceCache.toHex(SourceCache.newSha256().digest(indexText.getBytes(StandardCharsets.UTF_8)));
+
+        File snapshotFile = getSnapshotFile(token);
+        if (snapshotFile.exists()) {
+            // keeps it from being pruned
+            snapshotFile.setLastModified(System.currentTimeMillis());
+        } else {
+            Files.createDirectories(snapshotDir.toPath());
+            FileUpdateOutputStream snapshotOut = new FileUpdateOutputStream(snapshotFile, -1);
+            try {
+                snapshotOut.write(indexText.getBytes(StandardCharsets.UTF_8));
+                snapshotOut.close();
+            } finally {
+                snapshotOut.abort();
+            }
+            pruneSnapshots();
+        }
+        latest = new Snapshot(token, entries);
+        System.out.println("Created snapshot of " + entries.size() + " files in " + (System.currentTimeMillis() - startTime) + "ms");
+        return latest;
+    }
+
+    /** @return the snapshot for the given token or null if it is unknown (e.g. pruned in the meantime)
+     * @throws IllegalArgumentException for a malformed token */
+    synchronized Snapshot getSnapshot(String token) throws IOException {
+        if (!TOKEN_REGEX.matcher(token).matches()) {
+            throw new IllegalArgumentException("Invalid snapshot token '" + token + "'");
+        }
+        if (latest != null && latest.token.equals(token)) {
+            return latest;
+        }
+        File snapshotFile = getSnapshotFile(token);
+        return snapshotFile.isFile() ? new Snapshot(token, readEntries(snapshotFile)) : null;
+    }
+
+    private Snapshot loadLatestSnapshot() throws IOException {
+        File[] snapshotFiles = listSnapshotFiles();
+        if (snapshotFiles.length == 0) {
+            return EMPTY;
+        }
+        File latestFile = snapshotFiles[snapshotFiles.length - 1];
+        return new Snapshot(latestFile.getName().replace(SNAPSHOT_SUFFIX, ""), readEntries(latestFile));
+    }
+
+    private void pruneSnapshots() {
+        File[] snapshotFiles = listSnapshotFiles();
+        for (int i = 0; i < snapshotFiles.length - MAX_SNAPSHOTS; i++) {
+            FileUtils.deleteQuietly(snapshotFiles[i]);
+        }
+    }
+
+    /** @return the snapshot files, oldest first */
+    private File[] listSnapshotFiles() {
+        File[] snapshotFiles = snapshotDir.listFiles((dir, name) -> name.endsWith(SNAPSHOT_SUFFIX));
+        if (snapshotFiles == null) {
+            return new File[0];
+        }
+        Arrays.sort(snapshotFiles, Comparator.comparingLong(File::lastModified));
+        return snapshotFiles;
+    }
+
+    private File getSnapshotFile(String token) {
+        return new File(snapshotDir, token + SNAPSHOT_SUFFIX);
+    }
+
+    private static Map<String, IndexEntry> readEntries(File snapshotFile) throws IOException {
+        Map<String, IndexEntry> entries = new TreeMap<>();
+        for (String line : FileUtils.readLines(snapshotFile, StandardCharsets.UTF_8)) {
+            String[] columns = line.split("\t");
+            if (columns.length == 4) {
+                entries.put(columns[0], new IndexEntry(Long.parseLong(columns[1]), Long.parseLong(columns[2]), columns[3]));
+            }
+        }
+        return Collections.unmodifiableMap(entries);
+    }
+
+    private static String toText(Map<String, IndexEntry> entries) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, IndexEntry> entry : entries.entrySet()) {
+            IndexEntry indexEntry = entry.getValue();
+            sb.append(entry.getKey()).append('\t').append(indexEntry.size).append('\t').append(indexEntry.lastModified).append('\t')
+                    .append(indexEntry.sha256).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** The indexed files of the destination at one point in time. */
+    static class Snapshot {
+        private final String token;
+        private final Map<String, IndexEntry> entries;
+
+        Snapshot(String token, Map<String, IndexEntry> entries) {
+            this.token = token;
+            this.entries = entries;
+        }
+
+        String getToken() {
+            return token;
+        }
+
+        Map<String, IndexEntry> getEntries() {
+            return entries;
+        }
+    }
+
+    static class IndexEntry {
+        final long size;
+        final long lastModified;
+        final String sha256;
+
+        IndexEntry(long size, long lastModified, String sha256) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.sha256 = sha256;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.LineIterator;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.lang3.StringUtils;
+
+/** Keeps the unfiltered files of the uploaded payloads together with a manifest (path, size and SHA-256 of every file).
+ *
+ * A client can compare its files with the manifest to only send changed and added files plus a list of deletions (a delta upload).
+ * Full uploads replace the cached payload, delta uploads are applied on top of it. If an upload fails half way, the manifest is
+ * invalidated and a full upload is required before the next delta upload. */
+class SourceCache {
+
+    /** Entry of a delta upload that lists the paths to delete (one path per line). */
+    static final String DELETIONS_ENTRY_NAME = ".apply-deletions";
+
+    private static final String SOURCE_DIR = "source";
+    private static final String MANIFEST_FILE = "manifest.tsv";
+
+    private final File sourceDir;
+    private final File manifestFile;
+
+    // uploads for different scripts may run in parallel, but the manifest has to reflect one upload after the other
+    private final Lock updateLock = new ReentrantLock();
+
+    private Map<String, ManifestEntry> manifest;
+    private String manifestText;
+    private String etag;
+
+    // the property keys referenced by each file (built on first use)
+    private Map<String, Set<String>> propertyKeysByPath;
+
+    SourceCache(File stateDir) {
+        this.sourceDir = new File(stateDir, SOURCE_DIR);
+        this.manifestFile = new File(stateDir, MANIFEST_FILE);
+    }
+
+    /** @return the manifest as tab separated lines of path, size and SHA-256 or null if no valid manifest exists */
+    synchronized String getManifest() throws IOException {
+        loadManifest();
+        return manifestText;
+    }
+
+    /** @return the entity tag of the current manifest or null if no valid manifest exists */
+    synchronized String getETag() throws IOException {
+        loadManifest();
+        return etag;
+    }
+
+    /** @return the cached unfiltered file for the given path (may not exist) */
+    File getSourceFile(String path) {
+        return new File(sourceDir, path);
+    }
+
+    /** @return the paths of the files that reference any of the given property keys */
+    synchronized Set<String> getPathsUsingProperties(Collection<String> keys) throws IOException {
+        loadPropertyIndex();
+        Set<String> paths = new TreeSet<>();
+        for (Map.Entry<String, Set<String>> entry : propertyKeysByPath.entrySet()) {
+            if (!Collections.disjoint(entry.getValue(), keys)) {
+                paths.add(entry.getKey());
+            }
+        }
+        return paths;
+    }
+
+    /** Starts an update, to be finished via {@link Update#commit()} or {@link Update#abort()} (updates are processed one after the
+     * other).
+     *
+     * @param expectedETag if given, the update is rejected if the manifest has changed
+     * @throws IllegalArgumentException if a delta cannot be applied */
+    Update beginUpdate(boolean isDelta, String expectedETag) throws IOException {
+        updateLock.lock();
+        try {
+            String currentETag = getETag();
+            if (isDelta && currentETag == null) {
+                throw new IllegalArgumentException("Cannot apply delta as there is no valid manifest of a previous upload - a full upload"
+                        + " is required");
+            }
+            if (expectedETag != null && !expectedETag.equals(currentETag)) {
+                throw new IllegalArgumentException("Manifest has changed (ETag " + currentETag + " does not match " + expectedETag
+                        + "), fetch the manifest again to create the delta");
+            }
+            return new Update(isDelta);
+        } catch (IOException | RuntimeException e) {
+            updateLock.unlock();
+            throw e;
+        }
+    }
+
+    private void loadManifest() throws IOException {
+        if (manifest != null) {
+            return;
+        }
+        manifest = new TreeMap<>();
+        if (!manifestFile.exists()) {
+            manifestText = null;
+            etag = null;
+            return;
+        }
+        for (String line : FileUtils.readLines(manifestFile, StandardCharsets.UTF_8)) {
+            String[] columns = line.split("\t");
+            if (columns.length == 3) {
+                manifest.put(columns[0], new ManifestEntry(Long.parseLong(columns[1]), columns[2]));
+            }
+        }
+        updateManifestText();
+    }
+
+    private void loadPropertyIndex() throws IOException {
+        if (propertyKeysByPath != null) {
+            return;
+        }
+        loadManifest();
+        propertyKeysByPath = new TreeMap<>();
+        for (String path : manifest.keySet()) {
+            File sourceFile = getSourceFile(path);
+            if (Files.isSymbolicLink(sourceFile.toPath()) || !sourceFile.isFile()) {
+                continue;
+            }
+            // placeholders never span lines
+            Set<String> keys = new TreeSet<>();
+            try (LineIterator lineIterator = FileUtils.lineIterator(sourceFile, StandardCharsets.UTF_8.name())) {
+                while (lineIterator.hasNext()) {
+                    Matcher matcher = PlaceholderFilter.VAR_REGEX.matcher(lineIterator.nextLine());
+                    while (matcher.find()) {
+                        keys.add(matcher.group(1));
+                    }
+                }
+            }
+            if (!keys.isEmpty()) {
+                propertyKeysByPath.put(path, keys);
+            }
+        }
+    }
+
+    private void updateManifestText() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, ManifestEntry> entry : manifest.entrySet()) {
+            sb.append(entry.getKey()).append('\t').append(entry.getValue().size).append('\t').append(entry.getValue().sha256)
+                    .append('\n');
+        }
+        manifestText = sb.toString();
+        etag = "\"" + toHex(newSha256().digest(manifestText.getBytes(StandardCharsets.UTF_8))) + "\"";
+    }
+
+    private synchronized void saveManifest() throws IOException {
+        updateManifestText();
+        FileUpdateOutputStream manifestOut = new FileUpdateOutputStream(manifestFile, -1);
+        try {
+            manifestOut.write(manifestText.getBytes(StandardCharsets.UTF_8));
+            manifestOut.close();
+        } finally {
+            manifestOut.abort();
+        }
+    }
+
+    private synchronized void invalidateManifest() {
+        FileUtils.deleteQuietly(manifestFile);
+        manifest = null;
+        propertyKeysByPath = null;
+    }
+
+    /** @return the path as used in the manifest (e.g. without leading "./") or null if it points outside of the destination */
+    private static String normalize(String path) {
+        Path normalizedPath = Paths.get(path).normalize();
+        if (normalizedPath.isAbsolute() || normalizedPath.startsWith("..")) {
+            return null;
+        }
+        return normalizedPath.toString();
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /** One upload to be recorded in the cache, entries may be recorded concurrently. */
+    class Update {
+
+        private final boolean isDelta;
+        private final Map<String, ManifestEntry> receivedEntries = Collections.synchronizedMap(new TreeMap<>());
+        private final Map<String, Set<String>> receivedPropertyKeys = Collections.synchronizedMap(new TreeMap<>());
+        private final List<String> deletions = Collections.synchronizedList(new ArrayList<>());
+        private boolean finished = false;
+
+        private Update(boolean isDelta) {
+            this.isDelta = isDelta;
+        }
+
+        boolean isDelta() {
+            return isDelta;
+        }
+
+        /** Records the given deletions (from the {@link SourceCache#DELETIONS_ENTRY_NAME} entry of a delta upload).
+         *
+         * @throws IllegalArgumentException if a path points outside of the destination */
+        void addDeletions(List<String> paths) {
+            for (String path : paths) {
+                if (StringUtils.isBlank(path)) {
+                    continue;
+                }
+                String normalizedPath = normalize(path.trim());
+                if (normalizedPath == null) {
+                    throw new IllegalArgumentException("Invalid path to delete: " + path);
+                }
+                deletions.add(normalizedPath);
+            }
+        }
+
+        private void checkPath(String entryName) {
+            if (normalize(entryName) == null) {
+                throw new IllegalArgumentException("Invalid path in payload: " + entryName);
+            }
+        }
+
+        List<String> getDeletions() {
+            return deletions;
+        }
+
+        /** Starts recording a file, the returned recording has to be committed once its stream was fully read. */
+        EntryRecording record(String entryName) throws IOException {
+            checkPath(entryName);
+            File sourceFile = getSourceFile(entryName);
+            Files.createDirectories(sourceFile.getParentFile().toPath());
+            // a link from a previous upload must not be written through
+            if (Files.isSymbolicLink(sourceFile.toPath())) {
+                Files.delete(sourceFile.toPath());
+            }
+            return new EntryRecording(entryName, new FileUpdateOutputStream(sourceFile, -1));
+        }
+
+        void recordSymlink(String entryName, String linkTarget) throws IOException {
+            checkPath(entryName);
+            Path sourceLink = getSourceFile(entryName).toPath();
+            Files.createDirectories(sourceLink.getParent());
+            Files.deleteIfExists(sourceLink);
+            Files.createSymbolicLink(sourceLink, Paths.get(linkTarget));
+            byte[] linkTargetBytes = linkTarget.getBytes(StandardCharsets.ISO_8859_1);
+            receivedEntries.put(normalize(entryName), new ManifestEntry(linkTargetBytes.length, toHex(newSha256().digest(linkTargetBytes))));
+        }
+
+        /** Applies deletions, removes files not contained in a full upload and saves the manifest. */
+        void commit() throws IOException {
+            try {
+                synchronized (SourceCache.this) {
+                    loadManifest();
+                    if (!isDelta) {
+                        for (String path : manifest.keySet()) {
+                            if (!receivedEntries.containsKey(path)) {
+                                FileUtils.deleteQuietly(getSourceFile(path));
+                            }
+                        }
+                        manifest.clear();
+                    }
+                    for (String path : deletions) {
+                        FileUtils.deleteQuietly(getSourceFile(path));
+                        manifest.remove(path);
+                    }
+                    manifest.putAll(receivedEntries);
+                    saveManifest();
+
+                    if (propertyKeysByPath != null) {
+                        if (!isDelta) {
+                            propertyKeysByPath.clear();
+                        }
+                        propertyKeysByPath.keySet().removeAll(deletions);
+                        propertyKeysByPath.keySet().removeAll(receivedEntries.keySet());
+                        propertyKeysByPath.putAll(receivedPropertyKeys);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                invalidateManifest();
+                throw e;
+            } finally {
+                finished = true;
+                updateLock.unlock();
+            }
+        }
+
+        /** Invalidates the manifest as the cache may only be partially updated, no-op after {@link #commit()}. */
+        void abort() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            try {
+                if (!receivedEntries.isEmpty()) {
+                    invalidateManifest();
+                }
+            } finally {
+                updateLock.unlock();
+            }
+        }
+
+        /** Copies the unfiltered content of one file to the cache while it is read. */
+        class EntryRecording {
+            private final String entryName;
+            private final FileUpdateOutputStream sourceOut;
+            private final CountingOutputStream countingOut;
+            private final MessageDigest digest = newSha256();
+            private InputStream recordingIs;
+
+            private EntryRecording(String entryName, FileUpdateOutputStream sourceOut) {
+                this.entryName = entryName;
+                this.sourceOut = sourceOut;
+                this.countingOut = new CountingOutputStream(sourceOut);
+            }
+
+            InputStream wrap(InputStream is) {
+                recordingIs = new DigestInputStream(new TeeInputStream(is, countingOut), digest);
+                return recordingIs;
+            }
+
+            /** @param propertyKeys the property keys referenced by the file */
+            void commit(Set<String> propertyKeys) throws IOException {
+                // make sure the cached file is complete even if not all of the stream was consumed
+                IOUtils.skip(recordingIs, Long.MAX_VALUE);
+                sourceOut.close();
+                String path = normalize(entryName);
+                receivedEntries.put(path, new ManifestEntry(countingOut.getByteCount(), toHex(digest.digest())));
+                if (!propertyKeys.isEmpty()) {
+                    receivedPropertyKeys.put(path, new TreeSet<>(propertyKeys));
+                }
+            }
+
+            void abort() {
+                sourceOut.abort();
+            }
+        }
+    }
+
+    private static class ManifestEntry {
+        private final long size;
+        private final String sha256;
+
+        ManifestEntry(long size, String sha256) {
+            this.size = size;
+            this.sha256 = sha256;
+        }
+    }
+}
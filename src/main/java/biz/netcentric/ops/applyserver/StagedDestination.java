@@ -0,0 +1,205 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+
+/** Extracts uploads into a staging directory that is switched live afterwards.
+ *
+ * The destination is a symbolic link to the live release in the sibling directory {@code <destination>.releases}. A staging release
+ * starts as a copy of the live release that uses hard links for files - this is safe as extracted files are always replaced via rename
+ * and never written in place. Activating a release replaces the destination link with a single rename, independent of the payload
+ * size. */
+class StagedDestination {
+
+    static final String RELEASES_DIR_SUFFIX = ".releases";
+
+    private static final String RELEASE_PREFIX = "release-";
+    private static final String RELEASE_DATE_FORMAT = "yyyyMMdd-HHmmss-SSS";
+
+    private final Path destination;
+    private final Path releasesDir;
+    private final ExecutorService syncExecutor;
+
+    // uploads for different scripts may run in parallel, but every staging release has to start from the latest live release
+    private final Lock stagingLock = new ReentrantLock();
+    // the directories (and copied files) of the staging release, guarded by the staging lock
+    private FileSyncBatch stagingSyncBatch;
+
+    /** @param syncExecutor the executor to sync the staging release and the switch of the destination link to disk, null to not sync
+     *            them */
+    StagedDestination(String destination, ExecutorService syncExecutor) {
+        this.syncExecutor = syncExecutor;
+        this.destination = new File(destination).getAbsoluteFile().toPath();
+        this.releasesDir = this.destination.resolveSibling(this.destination.getFileName() + RELEASES_DIR_SUFFIX);
+    }
+
+    /** Creates a new staging release from the live release, to be followed by {@link #activate(File, PrintWriter)} or
+     * {@link #discard(File, PrintWriter)} (the staging lock is held until then). */
+    File createStaging(PrintWriter resultLogWriter) throws IOException {
+        stagingLock.lock();
+        try {
+            initReleases(resultLogWriter);
+
+            Path liveRelease = destination.toRealPath();
+            String releaseName = RELEASE_PREFIX + new SimpleDateFormat(RELEASE_DATE_FORMAT).format(new Date());
+            Path stagingRelease = releasesDir.resolve(releaseName);
+            for (int i = 2; Files.exists(stagingRelease, LinkOption.NOFOLLOW_LINKS); i++) {
+                stagingRelease = releasesDir.resolve(releaseName + "-" + i);
+            }
+
+            long startTime = System.currentTimeMillis();
+            stagingSyncBatch = syncExecutor != null ? new FileSyncBatch() : null;
+            int linkedFiles;
+            try {
+                linkedFiles = cloneTree(liveRelease, stagingRelease, stagingSyncBatch);
+            } catch (IOException e) {
+                FileUtils.deleteQuietly(stagingRelease.toFile());
+                throw e;
+            }
+            resultLogWriter.println("Staging to " + stagingRelease + " (linked " + linkedFiles + " files from live release in "
+                    + (System.currentTimeMillis() - startTime) + "ms)");
+            return stagingRelease.toFile();
+        } catch (IOException | RuntimeException e) {
+            stagingLock.unlock();
+            throw e;
+        }
+    }
+
+    /** Switches the destination to the given staging release and removes outdated releases. */
+    void activate(File stagingRelease, PrintWriter resultLogWriter) throws IOException {
+        try {
+            if (stagingSyncBatch != null) {
+                // the release has to be on disk before the link to it, extracted files are synced by the extraction already
+                stagingSyncBatch.addDirectory(releasesDir);
+                stagingSyncBatch.sync(syncExecutor, resultLogWriter);
+            }
+            Path previousRelease = destination.toRealPath();
+            Path tempLink = destination.resolveSibling("." + destination.getFileName() + ".link.tmp");
+            Files.deleteIfExists(tempLink);
+            Files.createSymbolicLink(tempLink, stagingRelease.toPath());
+            // rename(2) replaces the existing link atomically, the destination is always either the old or the new release
+            Files.move(tempLink, destination, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (syncExecutor != null) {
+                FileSyncBatch.syncDirectory(destination.getParent());
+            }
+            resultLogWriter.println("Activated release " + stagingRelease.getName());
+
+            // the previous release is kept to allow a manual rollback
+            deleteOutdatedReleases(Arrays.asList(stagingRelease.getName(), previousRelease.getFileName().toString()),
+                    resultLogWriter);
+        } finally {
+            stagingSyncBatch = null;
+            stagingLock.unlock();
+        }
+    }
+
+    /** Removes the given staging release, the live release stays untouched. */
+    void discard(File stagingRelease, PrintWriter resultLogWriter) {
+        try {
+            FileUtils.deleteQuietly(stagingRelease);
+            resultLogWriter.println("Discarded staging release " + stagingRelease.getName() + ", live release is unchanged");
+        } finally {
+            stagingSyncBatch = null;
+            stagingLock.unlock();
+        }
+    }
+
+    /** Turns the destination into a link to a release (once when staging is used for the first time). */
+    private void initReleases(PrintWriter resultLogWriter) throws IOException {
+        if (Files.isSymbolicLink(destination)) {
+            return;
+        }
+        Files.createDirectories(releasesDir);
+        Path initialRelease = releasesDir.resolve(RELEASE_PREFIX + "initial");
+        if (Files.isDirectory(destination)) {
+            try {
+                Files.move(destination, initialRelease, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                throw new IOException("Releases directory " + releasesDir + " has to be on the same file system as the destination "
+                        + destination, e);
+            }
+        } else {
+            Files.createDirectories(initialRelease);
+        }
+        Files.createSymbolicLink(destination, initialRelease);
+        resultLogWriter.println("Moved destination to " + initialRelease + " for staged extraction");
+    }
+
+    /** @param syncBatch collects the created directories and copied files to be synced to disk, may be null */
+    private int cloneTree(Path source, Path target, FileSyncBatch syncBatch) throws IOException {
+        int[] linkedFiles = new int[1];
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path targetDir = target.resolve(source.relativize(dir));
+                Files.copy(dir, targetDir, StandardCopyOption.COPY_ATTRIBUTES);
+                if (syncBatch != null) {
+                    syncBatch.addDirectory(targetDir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path targetFile = target.resolve(source.relativize(file));
+                if (attrs.isSymbolicLink()) {
+                    Files.createSymbolicLink(targetFile, Files.readSymbolicLink(file));
+                } else {
+                    try {
+                        Files.createLink(targetFile, file);
+                        linkedFiles[0]++;
+                    } catch (UnsupportedOperationException | IOException e) {
+                        Files.copy(file, targetFile, StandardCopyOption.COPY_ATTRIBUTES);
+                        if (syncBatch != null) {
+                            syncBatch.addFile(targetFile);
+                        }
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return linkedFiles[0];
+    }
+
+    private void deleteOutdatedReleases(List<String> releasesToKeep, PrintWriter resultLogWriter) throws IOException {
+        List<Path> outdatedReleases;
+        try (Stream<Path> releases = Files.list(releasesDir)) {
+            outdatedReleases = releases
+                    .filter(release -> release.getFileName().toString().startsWith(RELEASE_PREFIX))
+                    .filter(release -> !releasesToKeep.contains(release.getFileName().toString()))
+                    .collect(Collectors.toList());
+        }
+        for (Path outdatedRelease : outdatedReleases) {
+            FileUtils.deleteQuietly(outdatedRelease.toFile());
+            resultLogWriter.println("Removed outdated release " + outdatedRelease.getFileName());
+        }
+    }
+}
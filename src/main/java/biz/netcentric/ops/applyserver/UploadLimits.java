@@ -0,0 +1,110 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.ProxyInputStream;
+
+/** Limits for uploads to protect the host from oversized or malicious archives (e.g. zip bombs).
+ *
+ * The limits are checked on the bytes actually read (sizes declared in archive headers may be forged), a value of 0 disables the
+ * respective limit. */
+class UploadLimits {
+
+    static final UploadLimits UNLIMITED = new UploadLimits(0, 0, 0, 0);
+
+    // small payloads are always accepted, the ratio of e.g. a file consisting of spaces may be high
+    private static final long MIN_BYTES_FOR_COMPRESSION_RATIO = 1024 * 1024;
+
+    private final long maxBodySize;
+    private final long maxEntrySize;
+    private final int maxEntryCount;
+    private final int maxCompressionRatio;
+
+    UploadLimits(long maxBodySize, long maxEntrySize, int maxEntryCount, int maxCompressionRatio) {
+        this.maxBodySize = maxBodySize;
+        this.maxEntrySize = maxEntrySize;
+        this.maxEntryCount = maxEntryCount;
+        this.maxCompressionRatio = maxCompressionRatio;
+    }
+
+    /** Fails fast for a request that announces a body that is too large.
+     *
+     * @param contentLength the value of the Content-Length header or -1 if unknown (e.g. chunked transfer encoding) */
+    void checkContentLength(long contentLength) {
+        if (maxBodySize > 0 && contentLength > maxBodySize) {
+            throw new LimitExceededException("Request body of " + FileUtils.byteCountToDisplaySize(contentLength)
+                    + " exceeds the maximum of " + FileUtils.byteCountToDisplaySize(maxBodySize));
+        }
+    }
+
+    /** @return the tracking of one upload */
+    Upload startUpload() {
+        return new Upload();
+    }
+
+    /** Tracks the bytes and entries of one upload (entries may be read by several extraction workers). */
+    class Upload {
+
+        private final AtomicLong bodyBytes = new AtomicLong();
+        private final AtomicLong entryBytes = new AtomicLong();
+        private final AtomicInteger entryCount = new AtomicInteger();
+
+        /** @return the request body that fails once more than the maximum body size is read */
+        InputStream guardBody(InputStream bodyIs) {
+            return new ProxyInputStream(bodyIs) {
+                @Override
+                protected void afterRead(int n) {
+                    if (n > 0 && bodyBytes.addAndGet(n) > maxBodySize && maxBodySize > 0) {
+                        throw new LimitExceededException(
+                                "Request body exceeds the maximum of " + FileUtils.byteCountToDisplaySize(maxBodySize));
+                    }
+                }
+            };
+        }
+
+        /** @return the bytes of the request body read so far */
+        long getBodyBytes() {
+            return bodyBytes.get();
+        }
+
+        /** Counts the entry and returns its content stream that fails once the entry or the upload as a whole exceeds the limits. */
+        InputStream guardEntry(String entryName, InputStream entryIs) {
+            if (maxEntryCount > 0 && entryCount.incrementAndGet() > maxEntryCount) {
+                throw new LimitExceededException("Upload contains more than " + maxEntryCount + " entries");
+            }
+            return new ProxyInputStream(entryIs) {
+                private long bytes = 0;
+
+                @Override
+                protected void afterRead(int n) {
+                    if (n <= 0) {
+                        return;
+                    }
+                    bytes += n;
+                    if (maxEntrySize > 0 && bytes > maxEntrySize) {
+                        throw new LimitExceededException("Entry " + entryName + " exceeds the maximum size of "
+                                + FileUtils.byteCountToDisplaySize(maxEntrySize));
+                    }
+                    long totalEntryBytes = entryBytes.addAndGet(n);
+                    if (maxCompressionRatio > 0 && totalEntryBytes > MIN_BYTES_FOR_COMPRESSION_RATIO
+                            && totalEntryBytes > (long) maxCompressionRatio * bodyBytes.get()) {
+                        throw new LimitExceededException("Upload exceeds the maximum compression ratio of " + maxCompressionRatio
+                                + " (" + FileUtils.byteCountToDisplaySize(totalEntryBytes) + " extracted from "
+                                + FileUtils.byteCountToDisplaySize(bodyBytes.get()) + ")");
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipEightByteInteger;
+import org.apache.commons.compress.archivers.zip.ZipLong;
+import org.apache.commons.compress.archivers.zip.ZipShort;
+
+/** Input stream to be passed to {@link ZipArchiveInputStream} that allows to read the central directory of the zip once the stream
+ * ends.
+ *
+ * The local file headers as read by {@link ZipArchiveInputStream} do not carry the unix mode (and hence the symlink flag) of an entry,
+ * this information is only available in the central directory at the end of the archive. Instead of copying the whole archive to a
+ * temp file to be able to use ZipFile, this stream only records what is read while the zip stream looks for the next entry (for the
+ * last call this is the complete central directory). */
+class ZipCentralDirectoryRecorder extends FilterInputStream {
+
+    private static final long EOCD_SIG = 0x06054b50L;
+    private static final long ZIP64_EOCD_SIG = 0x06064b50L;
+    private static final long ZIP64_EOCD_LOCATOR_SIG = 0x07064b50L;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int EOCD_MIN_LENGTH = 22;
+    private static final int ZIP64_EOCD_LOCATOR_LENGTH = 20;
+    private static final int ZIP64_EOCD_MIN_LENGTH = 56;
+    private static final int CFH_MIN_LENGTH = 46;
+
+    private static final int PLATFORM_UNIX = 3;
+
+    // ZipArchiveInputStream reads ahead with a buffer of 512 bytes, what was read before looking for the next entry but not yet
+    // consumed by it is retained in this look-behind buffer
+    private static final int LOOK_BEHIND_SIZE = 8 * 1024;
+    private static final int MAX_RECORDING_SIZE = 64 * 1024 * 1024;
+
+    private final byte[] lookBehind = new byte[LOOK_BEHIND_SIZE];
+    private int lookBehindPos = 0;
+    private boolean lookBehindFull = false;
+    private boolean lookBehindUsed = false;
+
+    private final ByteArrayOutputStream recording = new ByteArrayOutputStream();
+    private boolean isRecording = false;
+    private boolean recordingOverflow = false;
+
+    ZipCentralDirectoryRecorder(InputStream in) {
+        super(in);
+    }
+
+    /** To be called before the next entry is requested from the zip stream. */
+    void startRecording() {
+        isRecording = true;
+    }
+
+    /** To be called once the zip stream returned an entry (the recorded local file header is moved to the look-behind buffer). */
+    void stopRecording() {
+        byte[] recorded = recording.toByteArray();
+        recording.reset();
+        isRecording = false;
+        addToLookBehind(recorded, 0, recorded.length);
+    }
+
+    /** @return true as long as everything consumed from the underlying stream is still available in the recording. */
+    boolean isReplayable() {
+        return !lookBehindUsed && !recordingOverflow;
+    }
+
+    /** @return a stream that returns the full archive again (as long as {@link #isReplayable()} returns true). */
+    InputStream getReplayStream() {
+        if (!isReplayable()) {
+            throw new IllegalStateException("Zip stream has been consumed already and cannot be replayed");
+        }
+        return new SequenceInputStream(new ByteArrayInputStream(recording.toByteArray()), in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            record(new byte[] { (byte) b }, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, len);
+        if (count > 0) {
+            record(b, off, count);
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped bytes need to be recorded as well
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        int count = read(buffer, 0, buffer.length);
+        return Math.max(count, 0);
+    }
+
+    private void record(byte[] b, int off, int len) {
+        if (isRecording) {
+            if (recording.size() + len > MAX_RECORDING_SIZE) {
+                recordingOverflow = true;
+                return;
+            }
+            recording.write(b, off, len);
+        } else {
+            addToLookBehind(b, off, len);
+        }
+    }
+
+    private void addToLookBehind(byte[] b, int off, int len) {
+        if (len == 0) {
+            return;
+        }
+        lookBehindUsed = true;
+        if (len >= LOOK_BEHIND_SIZE) {
+            System.arraycopy(b, off + len - LOOK_BEHIND_SIZE, lookBehind, 0, LOOK_BEHIND_SIZE);
+            lookBehindPos = 0;
+            lookBehindFull = true;
+            return;
+        }
+        int firstChunk = Math.min(len, LOOK_BEHIND_SIZE - lookBehindPos);
+        System.arraycopy(b, off, lookBehind, lookBehindPos, firstChunk);
+        System.arraycopy(b, off + firstChunk, lookBehind, 0, len - firstChunk);
+        int newPos = lookBehindPos + len;
+        if (newPos >= LOOK_BEHIND_SIZE) {
+            lookBehindFull = true;
+        }
+        lookBehindPos = newPos % LOOK_BEHIND_SIZE;
+    }
+
+    private byte[] getCapturedBytes() {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream(LOOK_BEHIND_SIZE + recording.size());
+        if (lookBehindFull) {
+            captured.write(lookBehind, lookBehindPos, LOOK_BEHIND_SIZE - lookBehindPos);
+        }
+        captured.write(lookBehind, 0, lookBehindPos);
+        byte[] recorded = recording.toByteArray();
+        captured.write(recorded, 0, recorded.length);
+        return captured.toByteArray();
+    }
+
+    /** Parses the central directory from the recorded bytes. Only to be called after the zip stream returned no further entries.
+     *
+     * @return the central directory entries by name (only name and external attributes/unix mode are populated) or null if the central
+     *         directory could not be found in the recorded bytes */
+    Map<String, ZipArchiveEntry> readCentralDirectory() {
+        if (recordingOverflow) {
+            return null;
+        }
+        byte[] data = getCapturedBytes();
+
+        int eocdPos = findEndOfCentralDirectory(data);
+        if (eocdPos < 0) {
+            return null;
+        }
+        long centralDirectorySize = ZipLong.getValue(data, eocdPos + 12);
+        int centralDirectoryEnd = eocdPos;
+
+        if (centralDirectorySize == ZIP64_MAGIC) {
+            int locatorPos = eocdPos - ZIP64_EOCD_LOCATOR_LENGTH;
+            if (locatorPos < 0 || ZipLong.getValue(data, locatorPos) != ZIP64_EOCD_LOCATOR_SIG) {
+                return null;
+            }
+            int zip64EocdPos = locatorPos - ZIP64_EOCD_MIN_LENGTH;
+            while (zip64EocdPos >= 0 && ZipLong.getValue(data, zip64EocdPos) != ZIP64_EOCD_SIG) {
+                zip64EocdPos--;
+            }
+            if (zip64EocdPos < 0) {
+                return null;
+            }
+            centralDirectorySize = ZipEightByteInteger.getLongValue(data, zip64EocdPos + 40);
+            centralDirectoryEnd = zip64EocdPos;
+        }
+
+        long centralDirectoryStart = centralDirectoryEnd - centralDirectorySize;
+        if (centralDirectoryStart < 0) {
+            return null;
+        }
+
+        Map<String, ZipArchiveEntry> entries = new HashMap<>();
+        int pos = (int) centralDirectoryStart;
+        while (pos + CFH_MIN_LENGTH <= centralDirectoryEnd && new ZipLong(data, pos).equals(ZipLong.CFH_SIG)) {
+            int versionMadeBy = ZipShort.getValue(data, pos + 4);
+            int nameLength = ZipShort.getValue(data, pos + 28);
+            int extraLength = ZipShort.getValue(data, pos + 30);
+            int commentLength = ZipShort.getValue(data, pos + 32);
+            long externalAttributes = ZipLong.getValue(data, pos + 38);
+
+            // ZipArchiveInputStream decodes names as UTF-8 by default, hence the same is done here
+            String name = new String(data, pos + CFH_MIN_LENGTH, nameLength, StandardCharsets.UTF_8);
+            ZipArchiveEntry entry = new ZipArchiveEntry(name);
+            if (((versionMadeBy >> 8) & 0x0F) == PLATFORM_UNIX) {
+                entry.setUnixMode((int) ((externalAttributes >> 16) & 0xFFFF));
+            }
+            entries.put(name, entry);
+
+            pos += CFH_MIN_LENGTH + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private int findEndOfCentralDirectory(byte[] data) {
+        for (int pos = data.length - EOCD_MIN_LENGTH; pos >= 0; pos--) {
+            if (ZipLong.getValue(data, pos) == EOCD_SIG) {
+                int commentLength = ZipShort.getValue(data, pos + 20);
+                if (pos + EOCD_MIN_LENGTH + commentLength <= data.length) {
+                    return pos;
+                }
+            }
+        }
+        return -1;
+    }
+
+}
@@ -9,180 +9,530 @@
 package biz.netcentric.ops.applyserver;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
-import java.nio.ByteBuffer;
+import java.io.SequenceInputStream;
 import java.nio.charset.CharacterCodingException;
-import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Pattern;
+import java.util.zip.ZipException;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 
 public class ZipDeflater {
-    static final Pattern VAR_REGEX = Pattern.compile("\\$\\{([a-zA-z][a-zA-z0-9._]+)\\}");
+
+    // entries up to a quarter of this size are read into memory to be filtered/written by the extraction workers, larger entries are
+    // streamed directly from the archive by the request thread
+    static final int MAX_BUFFERED_BYTES_DEFAULT = 32 * 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
 
     private final String destination;
     private final boolean isFiltering;
     private final Pattern excludeFromFilteringRegex;
     private final Map<String, String> properties;
 
+    private final int extractionThreads;
+    private final ExecutorService extractionExecutor;
+
+    private final Semaphore bufferedBytesBudget;
+    private final int maxBufferedBytes;
+    private final Durability durability;
+    private SourceCache.Update sourceCacheUpdate;
+    private UploadLimits.Upload upload = UploadLimits.UNLIMITED.startUpload();
+    private Metrics.UploadTimings uploadTimings = new Metrics.UploadTimings();
+    private FileSyncBatch syncBatch;
+
     public ZipDeflater(String destination, boolean isFiltering, Pattern excludeFromFilteringRegex, Map<String, String> properties) {
+        this(destination, isFiltering, excludeFromFilteringRegex, properties, MAX_BUFFERED_BYTES_DEFAULT, Durability.NONE);
+    }
+
+    /** @param maxBufferedBytes the bytes that may be buffered in memory for extraction, shared by all uploads (and all deflaters
+     *            derived from this one)
+     * @param durability when written files are synced to disk, for {@link Durability#BATCH} see {@link #withSyncBatch()} */
+    public ZipDeflater(String destination, boolean isFiltering, Pattern excludeFromFilteringRegex, Map<String, String> properties,
+            int maxBufferedBytes, Durability durability) {
         this.destination = destination;
         this.isFiltering = isFiltering;
         this.excludeFromFilteringRegex = excludeFromFilteringRegex;
         this.properties = properties;
+        this.extractionThreads = Runtime.getRuntime().availableProcessors();
+        this.extractionExecutor = Executors.newFixedThreadPool(extractionThreads, runnable -> {
+            Thread thread = new Thread(runnable, "apply-server-extraction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.bufferedBytesBudget = new Semaphore(maxBufferedBytes);
+        this.durability = durability;
+    }
+
+    private ZipDeflater(ZipDeflater zipDeflater, String destination) {
+        this.destination = destination;
+        this.isFiltering = zipDeflater.isFiltering;
+        this.excludeFromFilteringRegex = zipDeflater.excludeFromFilteringRegex;
+        this.properties = zipDeflater.properties;
+        this.extractionThreads = zipDeflater.extractionThreads;
+        this.extractionExecutor = zipDeflater.extractionExecutor;
+        this.maxBufferedBytes = zipDeflater.maxBufferedBytes;
+        this.bufferedBytesBudget = zipDeflater.bufferedBytesBudget;
+        this.durability = zipDeflater.durability;
+        this.sourceCacheUpdate = zipDeflater.sourceCacheUpdate;
+        this.upload = zipDeflater.upload;
+        this.uploadTimings = zipDeflater.uploadTimings;
+        this.syncBatch = zipDeflater.syncBatch;
+    }
+
+    /** @return a deflater with the same settings (and workers) that extracts to the given destination */
+    ZipDeflater withDestination(String destination) {
+        return new ZipDeflater(this, destination);
+    }
+
+    /** @return a deflater with the same settings (and workers) that also records the unfiltered files in the source cache */
+    ZipDeflater withSourceCacheUpdate(SourceCache.Update sourceCacheUpdate) {
+        ZipDeflater zipDeflater = new ZipDeflater(this, destination);
+        zipDeflater.sourceCacheUpdate = sourceCacheUpdate;
+        return zipDeflater;
+    }
+
+    /** @return a deflater with the same settings (and workers) that enforces the limits of the given upload */
+    ZipDeflater withUpload(UploadLimits.Upload upload) {
+        ZipDeflater zipDeflater = new ZipDeflater(this, destination);
+        zipDeflater.upload = upload;
+        return zipDeflater;
+    }
+
+    /** @return a deflater with the same settings (and workers) that records the time spent in the phases of an upload */
+    ZipDeflater withUploadTimings(Metrics.UploadTimings uploadTimings) {
+        ZipDeflater zipDeflater = new ZipDeflater(this, destination);
+        zipDeflater.uploadTimings = uploadTimings;
+        return zipDeflater;
+    }
+
+    /** @return a deflater with the same settings (and workers) that collects the written files to be synced via
+     *         {@link #syncWrittenFiles(PrintWriter)} (only for {@link Durability#BATCH}) */
+    ZipDeflater withSyncBatch() {
+        ZipDeflater zipDeflater = new ZipDeflater(this, destination);
+        zipDeflater.syncBatch = durability == Durability.BATCH ? new FileSyncBatch() : null;
+        return zipDeflater;
+    }
+
+    Durability getDurability() {
+        return durability;
+    }
+
+    /** @return the executor of the extraction workers (also used to sync files to disk) */
+    ExecutorService getExtractionExecutor() {
+        return extractionExecutor;
+    }
+
+    /** Syncs the files written so far to disk (if collected via {@link #withSyncBatch()}). */
+    void syncWrittenFiles(PrintWriter resultLogWriter) throws IOException {
+        if (syncBatch != null) {
+            syncBatch.sync(extractionExecutor, resultLogWriter);
+        }
+    }
+
+    /** Filters a file again from its unfiltered source (e.g. after properties have changed).
+     *
+     * @return true if the file was written, false if the content did not change */
+    boolean refilter(String path, File sourceFile, PrintWriter resultLogWriter, Map<String, String> propertiesUsed)
+            throws IOException {
+        try (InputStream sourceIs = new FileInputStream(sourceFile)) {
+            return processFile(path, sourceIs, -1, resultLogWriter, propertiesUsed, false, null);
+        }
+    }
+
+    /** Deletes a file from the destination (for deletions of delta uploads).
+     *
+     * @throws IllegalArgumentException if the path is a directory */
+    void delete(String path, PrintWriter resultLogWriter) throws IOException {
+        checkDeletable(path);
+        Path curPath = new File(destination, path).toPath();
+        if (Files.deleteIfExists(curPath)) {
+            syncDirectoryOf(curPath);
+            resultLogWriter.println("Deleted " + path);
+        } else {
+            resultLogWriter.println("Could not delete " + path + " (does not exist)");
+        }
+    }
+
+    private void checkDeletable(String path) {
+        Path curPath = new File(destination, path).toPath();
+        if (!path.isEmpty() && Files.isDirectory(curPath, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IllegalArgumentException("Cannot delete directory " + path + ", " + SourceCache.DELETIONS_ENTRY_NAME
+                    + " may only list files");
+        }
     }
 
     int extractZip(InputStream is, PrintWriter resultLogWriter, Map<String, String> propertiesUsed) throws IOException {
 
-        // Using ZipArchiveInputStream does not make all properties accessible => Use of tmp file and ZipFile works
-        // see https://commons.apache.org/proper/commons-compress/apidocs/org/apache/commons/compress/archivers/zip/ZipArchiveEntry.html#getExternalAttributes--
+        // The zip is extracted while it is being received, the unix mode (needed for symlinks) is only available in the central
+        // directory at the end of the archive and is applied once the stream has been fully read.
+        ZipCentralDirectoryRecorder recordingIs = new ZipCentralDirectoryRecorder(is);
+        List<String> extractedEntryNames = new ArrayList<>();
+        ExtractionPipeline pipeline = createPipeline(resultLogWriter, propertiesUsed);
+        Set<Path> createdDirectories = ConcurrentHashMap.newKeySet();
+        int count;
+        try (ZipArchiveInputStream zipIs = new ZipArchiveInputStream(recordingIs, StandardCharsets.UTF_8.name(), true, true)) {
+            ZipArchiveEntry entry;
+            while (true) {
+                recordingIs.startRecording();
+                try {
+                    entry = zipIs.getNextZipEntry();
+                } catch (ZipException e) {
+                    if (extractedEntryNames.isEmpty() && recordingIs.isReplayable()) {
+                        // e.g. self-extracting archives with a prefix are only readable via random access
+                        return extractZipViaTempFile(recordingIs.getReplayStream(), resultLogWriter, propertiesUsed,
+                                "archive is not streamable: " + e.getMessage());
+                    }
+                    throw e;
+                }
+                if (entry == null) {
+                    break;
+                }
+                if (!zipIs.canReadEntryData(entry) && extractedEntryNames.isEmpty() && recordingIs.isReplayable()) {
+                    return extractZipViaTempFile(recordingIs.getReplayStream(), resultLogWriter, propertiesUsed,
+                            "entry " + entry.getName() + " is not streamable");
+                }
+                recordingIs.stopRecording();
+
+                if (entry.isDirectory()) {
+                    continue;
+                }
+
+                String entryName = entry.getName();
+                Path entryPath = new File(destination, entryName).toPath();
+                if (Files.isSymbolicLink(entryPath)) {
+                    // whether the entry itself is a symbolic link is only known at the end of the stream - never write through
+                    // a link that exists from a previous extraction
+                    Files.delete(entryPath);
+                }
+                extractEntry(pipeline, entryName, entry.getSize(), uploadTimings.timeReads(zipIs), createdDirectories);
+                extractedEntryNames.add(entryName);
+            }
+            count = pipeline.finish();
+        } catch (IOException | RuntimeException e) {
+            pipeline.cancel();
+            throw e;
+        }
+
+        Map<String, ZipArchiveEntry> centralDirectory = recordingIs.readCentralDirectory();
+        if (centralDirectory == null) {
+            resultLogWriter.println("Could not read central directory of zip, symbolic links are extracted as regular files");
+            logSummary(resultLogWriter, count, pipeline.getUnchangedCount());
+            return count;
+        }
+        for (String entryName : extractedEntryNames) {
+            ZipArchiveEntry centralDirectoryEntry = centralDirectory.get(entryName);
+            if (centralDirectoryEntry != null && centralDirectoryEntry.isUnixSymlink()) {
+                File curfile = new File(destination, entryName);
+                byte[] linkTarget = FileUtils.readFileToByteArray(curfile);
+                createSymlink(entryName, new ByteArrayInputStream(linkTarget), resultLogWriter, curfile);
+            }
+        }
+
+        logSummary(resultLogWriter, count, pipeline.getUnchangedCount());
+        return count;
+    }
+
+    private int extractZipViaTempFile(InputStream is, PrintWriter resultLogWriter, Map<String, String> propertiesUsed, String reason)
+            throws IOException {
+
+        resultLogWriter.println("Using temp file to extract zip (" + reason + ")");
+
+        // ZipFile needs random access and hence a file
         File tempZipFile = File.createTempFile("applyserver-", "-temp.zip");
         FileUtils.copyInputStreamToFile(is, tempZipFile);
 
-        int count = 0;
+        ExtractionPipeline pipeline = createPipeline(resultLogWriter, propertiesUsed);
+        Set<Path> createdDirectories = ConcurrentHashMap.newKeySet();
         try (ZipFile zipFile = new ZipFile(tempZipFile)) {
             
             Enumeration<? extends ZipArchiveEntry> entries = zipFile.getEntries();
-            ZipArchiveEntry entry;
             while (entries.hasMoreElements()) {
-               entry = entries.nextElement();
-               if (entry.isDirectory()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
                     continue;
                 }
 
                 String entryName = entry.getName();
-                processFile(entryName, zipFile.getInputStream(entry), resultLogWriter, propertiesUsed, entry.isUnixSymlink());
-                count++;
+                if (isDeletionsEntry(entryName)) {
+                    pipeline.runUncounted(entryName, (entryLogWriter, entryPropertiesUsed) -> receiveDeletions(
+                            upload.guardEntry(entryName, zipFile.getInputStream(entry)), entryLogWriter));
+                } else if (entry.isUnixSymlink()) {
+                    pipeline.runExclusively(entryName,
+                            (entryLogWriter, entryPropertiesUsed) -> processFile(entryName,
+                                    upload.guardEntry(entryName, uploadTimings.timeReads(zipFile.getInputStream(entry))), -1,
+                                    entryLogWriter, entryPropertiesUsed, true, createdDirectories));
+                } else {
+                    // the entry is read by the worker via the central directory
+                    pipeline.submit(entryName, 0,
+                            (entryLogWriter, entryPropertiesUsed) -> processFile(entryName,
+                                    upload.guardEntry(entryName, uploadTimings.timeReads(zipFile.getInputStream(entry))), entry.getSize(),
+                                    entryLogWriter,
+                                    entryPropertiesUsed, false, createdDirectories));
+                }
             }
+            int count = pipeline.finish();
+            logSummary(resultLogWriter, count, pipeline.getUnchangedCount());
+            return count;
+        } catch (IOException | RuntimeException e) {
+            pipeline.cancel();
+            throw e;
+        } finally {
+            FileUtils.deleteQuietly(tempZipFile);
         }
-        
-        FileUtils.deleteQuietly(tempZipFile);
-
-        return count;
     }
 
     int extractTar(InputStream is, PrintWriter resultLogWriter, Map<String, String> propertiesUsed) throws IOException {
-        int count = 0;
-        try (TarArchiveInputStream fin = new TarArchiveInputStream(is)) {
+        ExtractionPipeline pipeline = createPipeline(resultLogWriter, propertiesUsed);
+        Set<Path> createdDirectories = ConcurrentHashMap.newKeySet();
+        try (TarArchiveInputStream fin = new TarArchiveInputStream(uploadTimings.timeReads(is))) {
             TarArchiveEntry entry;
             while ((entry = fin.getNextTarEntry()) != null) {
                 if (entry.isDirectory()) {
                     continue;
                 }
                 String entryName = entry.getName();
-                
-                InputStream relevantEntryInputStream = fin;
-                
-                boolean symbolicLink = entry.isSymbolicLink();
-                if(symbolicLink) {
-                    relevantEntryInputStream = new ByteArrayInputStream(entry.getLinkName().getBytes(StandardCharsets.ISO_8859_1));
+
+                if (entry.isSymbolicLink()) {
+                    InputStream linkNameIs = upload.guardEntry(entryName,
+                            new ByteArrayInputStream(entry.getLinkName().getBytes(StandardCharsets.ISO_8859_1)));
+                    pipeline.runExclusively(entryName,
+                            (entryLogWriter, entryPropertiesUsed) -> processFile(entryName, linkNameIs, -1, entryLogWriter,
+                                    entryPropertiesUsed, true, createdDirectories));
+                } else {
+                    extractEntry(pipeline, entryName, entry.getSize(), fin, createdDirectories);
                 }
+            }
+            int count = pipeline.finish();
+            logSummary(resultLogWriter, count, pipeline.getUnchangedCount());
+            return count;
+        } catch (IOException | RuntimeException e) {
+            pipeline.cancel();
+            throw e;
+        }
+    }
 
-                processFile(entryName, relevantEntryInputStream, resultLogWriter, propertiesUsed, symbolicLink);
-                count++;
+    private ExtractionPipeline createPipeline(PrintWriter resultLogWriter, Map<String, String> propertiesUsed) {
+        return new ExtractionPipeline(extractionExecutor, extractionThreads, bufferedBytesBudget, maxBufferedBytes, resultLogWriter,
+                propertiesUsed);
+    }
+
+    /** Hands the entry over to the extraction workers if it is small enough to be buffered, otherwise the entry is extracted directly
+     * from the archive stream. */
+    private void extractEntry(ExtractionPipeline pipeline, String entryName, long size, InputStream archiveIs,
+            Set<Path> createdDirectories) throws IOException {
+        InputStream entryIs = upload.guardEntry(entryName, archiveIs);
+        if (isDeletionsEntry(entryName)) {
+            pipeline.runUncounted(entryName, (entryLogWriter, entryPropertiesUsed) -> receiveDeletions(entryIs, entryLogWriter));
+            return;
+        }
+        if (size >= 0 && !pipeline.isBufferable(size)) {
+            pipeline.runInline(entryName,
+                    (entryLogWriter, entryPropertiesUsed) -> processFile(entryName, entryIs, size, entryLogWriter,
+                            entryPropertiesUsed, false, createdDirectories));
+            return;
+        }
+
+        byte[] content;
+        if (size >= 0) {
+            pipeline.reserveBufferedBytes((int) size);
+            try {
+                content = IOUtils.toByteArray(entryIs, size);
+            } catch (IOException | RuntimeException e) {
+                pipeline.releaseBufferedBytes((int) size);
+                throw e;
+            }
+        } else {
+            // size is not known upfront (zip entries with data descriptor), the maximum is reserved while reading
+            int reservedBytes = pipeline.getMaxBufferableSize() + 1;
+            pipeline.reserveBufferedBytes(reservedBytes);
+            ByteArrayOutputStream contentOs = new ByteArrayOutputStream();
+            try {
+                IOUtils.copyLarge(entryIs, contentOs, 0, reservedBytes);
+            } catch (IOException | RuntimeException e) {
+                pipeline.releaseBufferedBytes(reservedBytes);
+                throw e;
+            }
+            if (!pipeline.isBufferable(contentOs.size())) {
+                InputStream fullEntryIs = new SequenceInputStream(new ByteArrayInputStream(contentOs.toByteArray()), entryIs);
+                pipeline.releaseBufferedBytes(reservedBytes);
+                pipeline.runInline(entryName,
+                        (entryLogWriter, entryPropertiesUsed) -> processFile(entryName, fullEntryIs, -1, entryLogWriter,
+                                entryPropertiesUsed, false, createdDirectories));
+                return;
             }
+            content = contentOs.toByteArray();
+            pipeline.releaseBufferedBytes(reservedBytes - content.length);
         }
-        return count;
+        pipeline.submit(entryName, content.length,
+                (entryLogWriter, entryPropertiesUsed) -> processFile(entryName, new ByteArrayInputStream(content), content.length,
+                        entryLogWriter, entryPropertiesUsed, false, createdDirectories));
     }
 
-    private void processFile(String entryName, InputStream fileContentsIs, PrintWriter resultLogWriter, Map<String, String> propertiesUsed, boolean isSymlink)
-            throws IOException {
+    private boolean isDeletionsEntry(String entryName) {
+        return sourceCacheUpdate != null && sourceCacheUpdate.isDelta() && entryName.equals(SourceCache.DELETIONS_ENTRY_NAME);
+    }
+
+    /** Records the list of deletions of a delta upload, it is processed by the thread reading the archive, hence directories are
+     * rejected before any of the following entries is submitted (preceding entries may still be extracted by the workers).
+     *
+     * @return false as no file is written */
+    private boolean receiveDeletions(InputStream deletionsIs, PrintWriter resultLogWriter) throws IOException {
+        List<String> deletions = IOUtils.readLines(deletionsIs, StandardCharsets.UTF_8);
+        sourceCacheUpdate.addDeletions(deletions);
+        for (String path : deletions) {
+            checkDeletable(path.trim());
+        }
+        resultLogWriter.println("Received list of " + deletions.size() + " files to delete");
+        return false;
+    }
+
+    private void logSummary(PrintWriter resultLogWriter, int count, int unchangedCount) {
+        resultLogWriter.println((count - unchangedCount) + " files written, " + unchangedCount + " unchanged");
+    }
+
+    /** @return true if the file was written, false if it was left untouched as the content did not change */
+    private boolean processFile(String entryName, InputStream fileContentsIs, long size, PrintWriter resultLogWriter,
+            Map<String, String> propertiesUsed, boolean isSymlink, Set<Path> createdDirectories) throws IOException {
         File curfile = new File(destination, entryName);
         
         if(isSymlink) {
-            createSymlink(entryName, fileContentsIs, resultLogWriter, curfile);
-            return;
+            return createSymlink(entryName, fileContentsIs, resultLogWriter, curfile);
         }
 
-        File parent = curfile.getParentFile();
-        if (!parent.exists()) {
-            parent.mkdirs();
-        }
+        ApplyEvents.Entry entryEvent = ApplyEvents.beginEntry(entryName);
+        createParentDirectories(curfile, createdDirectories);
 
-        byte[] fileContentByteArray = IOUtils.toByteArray(fileContentsIs);
-
-        boolean fileWritten = false;
+        String logMessage;
+        boolean isFiltered = false;
+        int variablesReplaced = 0;
         boolean excludeFileFromFiltering = excludeFromFilteringRegex.matcher(entryName).find();
-        if (isFiltering && !excludeFileFromFiltering) {
-            try {
-                String fileContents = StandardCharsets.UTF_8.newDecoder()
-                        .onMalformedInput(CodingErrorAction.REPORT)
-                        .onUnmappableCharacter(CodingErrorAction.REPORT)
-                        .decode(ByteBuffer.wrap(fileContentByteArray))
-                        .toString();
-                String fileContentsFiltered = filterFileContents(fileContents, entryName, resultLogWriter, propertiesUsed);
-                FileUtils.write(curfile, fileContentsFiltered, StandardCharsets.UTF_8);
-                fileWritten = true;
-            } catch (CharacterCodingException e) {
-                resultLogWriter.println("Could not filter file " + entryName + ", using original (" + e.getMessage() + ")");
+        FileUpdateOutputStream fileOut = null;
+        SourceCache.Update.EntryRecording sourceRecording = null;
+        try {
+            if (sourceCacheUpdate != null) {
+                sourceRecording = sourceCacheUpdate.record(entryName);
+                fileContentsIs = sourceRecording.wrap(fileContentsIs);
             }
+            if (isFiltering && !excludeFileFromFiltering) {
+                fileOut = new FileUpdateOutputStream(curfile, -1, durability == Durability.STRICT);
+                long filteringStartTime = System.nanoTime();
+                try {
+                    int count = new PlaceholderFilter(properties).filter(fileContentsIs, fileOut, propertiesUsed);
+                    if (count == PlaceholderFilter.BINARY) {
+                        logMessage = "binary, not filtered";
+                    } else {
+                        logMessage = count > 0 ? "replaced " + count + " variables" : "no variables found";
+                        isFiltered = true;
+                        variablesReplaced = count;
+                    }
+                } catch (CharacterCodingException e) {
+                    // the filter has written the original contents already
+                    resultLogWriter.println("Could not filter file " + entryName + ", using original (" + e.getMessage() + ")");
+                    logMessage = "not filtered";
+                } finally {
+                    uploadTimings.addFilteringNanos(System.nanoTime() - filteringStartTime);
+                }
+            } else {
+                fileOut = new FileUpdateOutputStream(curfile, size, durability == Durability.STRICT);
+                // streamed in chunks, independent of the file size
+                IOUtils.copyLarge(fileContentsIs, fileOut, new byte[COPY_BUFFER_SIZE]);
+                logMessage = "not filtered";
+            }
+            fileOut.close();
+            if (sourceRecording != null) {
+                sourceRecording.commit(propertiesUsed.keySet());
+            }
+        } finally {
+            if (fileOut != null) {
+                fileOut.abort();
+            }
+            if (sourceRecording != null) {
+                sourceRecording.abort();
+            }
+        }
+
+        boolean changed = fileOut.isChanged();
+        if (changed && syncBatch != null) {
+            syncBatch.addFile(fileOut.getPath());
         }
+        entryEvent.end(fileOut.getSize(), isFiltered, variablesReplaced, changed);
+        resultLogWriter.println("Extracted " + StringUtils.rightPad(entryName, 50) + " (" + logMessage + (changed ? "" : ", unchanged") + ")");
+        return changed;
+    }
 
-        if (!fileWritten) {
-            resultLogWriter.println("Extracted " + StringUtils.rightPad(entryName, 50) + " (not filtered)");
-            FileUtils.writeByteArrayToFile(curfile, fileContentByteArray);
+    /** @param createdDirectories the directories created by the current extraction (to avoid checking them for every file) or null */
+    private void createParentDirectories(File file, Set<Path> createdDirectories) throws IOException {
+        Path parentDir = file.getParentFile().toPath();
+        if (createdDirectories != null && createdDirectories.contains(parentDir)) {
+            return;
+        }
+        // entries are extracted in parallel, createDirectories copes with concurrent creation of the same directory
+        Files.createDirectories(parentDir);
+        if (createdDirectories != null) {
+            createdDirectories.add(parentDir);
         }
+    }
 
+    /** Makes a change of the entries of the directory of the given path durable (as configured). */
+    private void syncDirectoryOf(Path path) {
+        Path directory = path.toAbsolutePath().getParent();
+        if (durability == Durability.STRICT) {
+            FileSyncBatch.syncDirectory(directory);
+        } else if (syncBatch != null) {
+            syncBatch.addDirectory(directory);
+        }
     }
 
-    private void createSymlink(String entryName, InputStream fileContentsIs, PrintWriter resultLogWriter, File curfile) {
+    private boolean createSymlink(String entryName, InputStream fileContentsIs, PrintWriter resultLogWriter, File curfile) {
+        String linkTarget = null;
         Path symlinkTarget = null;
+        boolean isPreviousFileDeleted = false;
         try {
-            symlinkTarget = new File(IOUtils.toString(fileContentsIs, StandardCharsets.ISO_8859_1)).toPath();
-            if(curfile.exists()) {
-                curfile.delete(); // createSymbolicLink requires the file to not exist
+            linkTarget = IOUtils.toString(fileContentsIs, StandardCharsets.ISO_8859_1);
+            symlinkTarget = new File(linkTarget).toPath();
+            if (sourceCacheUpdate != null) {
+                sourceCacheUpdate.recordSymlink(entryName, linkTarget);
+            }
+            Path symlinkPath = curfile.toPath();
+            if (Files.isSymbolicLink(symlinkPath) && Files.readSymbolicLink(symlinkPath).equals(symlinkTarget)) {
+                resultLogWriter.println("Symbolic link " + entryName + " -> " + symlinkTarget + " is unchanged");
+                return false;
             }
-            Files.createSymbolicLink(curfile.toPath(), symlinkTarget);
+            isPreviousFileDeleted = Files.deleteIfExists(symlinkPath); // createSymbolicLink requires the file to not exist
+            Files.createSymbolicLink(symlinkPath, symlinkTarget);
+            syncDirectoryOf(symlinkPath);
             resultLogWriter.println("Created symbolic link " + entryName + " -> "+symlinkTarget);
+            return true;
         } catch (Exception e) {
             resultLogWriter.println("Could not create symbolic link " + entryName + " -> "+symlinkTarget +": " + e.getMessage() + " ("+e.getClass()+")");
+            // the destination only changed if the previous file was deleted already
+            return isPreviousFileDeleted;
         }
     }
-
-    private String filterFileContents(String fileContents, String entryName, PrintWriter resultLogWriter,
-            Map<String, String> propertiesUsed) {
-
-        StringBuffer sb = new StringBuffer();
-        int count = 0;
-        Matcher matcher = VAR_REGEX.matcher(fileContents);
-        while (matcher.find()) {
-            String key = matcher.group(1);
-            String value;
-            if (this.properties.containsKey(key)) {
-                value = this.properties.get(key);
-                propertiesUsed.put(key, value);
-            } else {
-                value = matcher.group(0);
-                String valFromSysEnv = System.getenv().get(key);
-                propertiesUsed.put(key, 
-                        StringUtils.isNotBlank(valFromSysEnv) ? 
-                                "<left unchanged but OS Env contains value '"+valFromSysEnv+"' that may become active>" : 
-                                "<left unchanged>");
-            }
-
-            value = value.replace("$", "\\$"); // ensure remaining variables are not treated as back reference
-            matcher.appendReplacement(sb, value);
-            count++;
-        }
-        matcher.appendTail(sb);
-        resultLogWriter
-                .println("Extracted " + StringUtils.rightPad(entryName, 50)
-                        + (count > 0 ? " (replaced " + count + " variables)" : " (no variables found)"));
-        return sb.toString();
-    }
 }
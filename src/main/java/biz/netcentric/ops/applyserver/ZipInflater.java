@@ -14,57 +14,267 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
 
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipParameters;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 
 class ZipInflater {
 
-    void createTarGz(String pathToCompress, OutputStream out, Pattern excludePattern) throws FileNotFoundException, IOException {
-        TarArchiveOutputStream tarOutputStream = null;
+    /** Uses the default compression level of the format. */
+    static final int DEFAULT_LEVEL = -1;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final int compressionBlockSize;
+    private final int compressionThreads;
+    private final ExecutorService compressionExecutor;
+
+    ZipInflater(int compressionBlockSize, int compressionThreads) {
+        this.compressionBlockSize = compressionBlockSize;
+        this.compressionThreads = compressionThreads;
+        this.compressionExecutor = compressionThreads > 1 ? Executors.newFixedThreadPool(compressionThreads, runnable -> {
+            Thread thread = new Thread(runnable, "apply-server-compression");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /** @param excludedDir a directory that is never included (e.g. the state dir if located within the destination) */
+    void createTarGz(String pathToCompress, OutputStream out, Pattern excludePattern, File excludedDir)
+            throws FileNotFoundException, IOException {
+        createArchive(pathToCompress, out, PayloadFormat.TAR_GZ, DEFAULT_LEVEL, excludePattern, excludedDir, DownloadSelection.ALL);
+    }
+
+    /** Streams the selected files as archive to the given output stream (nothing is buffered beyond the compression blocks).
+     *
+     * @param format one of tar, tar.gz or zip
+     * @param level the compression level 0-9 (0 creates stored entries for zip) or {@link #DEFAULT_LEVEL}
+     * @param excludedDir a directory that is never included (e.g. the state dir if located within the destination) */
+    void createArchive(String pathToCompress, OutputStream out, PayloadFormat format, int level, Pattern excludePattern,
+            File excludedDir, DownloadSelection selection) throws FileNotFoundException, IOException {
+        ArchiveOutputStream archiveOutputStream = createArchiveOutputStream(new BufferedOutputStream(out, COPY_BUFFER_SIZE), format,
+                level);
         try {
-            tarOutputStream = new TarArchiveOutputStream(new GzipCompressorOutputStream(new BufferedOutputStream(out)));
-            addFileToTarGz(tarOutputStream, pathToCompress, "", true, excludePattern);
-            tarOutputStream.finish();
+            ArchiveOutputStream archiveOs = archiveOutputStream;
+            boolean isStoredZip = format == PayloadFormat.ZIP && level == 0;
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            if (selection.getDeletions() != null) {
+                // first, so the deletions are known before the files are processed
+                byte[] deletions = (String.join("\n", selection.getDeletions()) + "\n").getBytes(StandardCharsets.UTF_8);
+                putEntry(archiveOs, format, SourceCache.DELETIONS_ENTRY_NAME, deletions, isStoredZip);
+            }
+            walk(new File(pathToCompress).getAbsoluteFile(), excludePattern, excludedDir.getAbsoluteFile(), selection, (file, entryName) -> {
+                ArchiveEntry entry = archiveOs.createArchiveEntry(file, entryName);
+                long size = file.isFile() ? file.length() : 0;
+                if (isStoredZip) {
+                    // the output is not seekable, hence size and checksum of stored entries have to be known upfront
+                    ZipArchiveEntry zipEntry = (ZipArchiveEntry) entry;
+                    zipEntry.setSize(size);
+                    zipEntry.setCrc(file.isFile() ? crc32(file, buffer) : 0);
+                }
+                archiveOs.putArchiveEntry(entry);
+                if (file.isFile()) {
+                    try (FileInputStream in = new FileInputStream(file)) {
+                        IOUtils.copyLarge(in, archiveOs, 0, size, buffer);
+                    }
+                }
+                archiveOs.closeArchiveEntry();
+            });
+            archiveOutputStream.finish();
         } finally {
-            tarOutputStream.close();
+            archiveOutputStream.close();
         }
     }
 
-    private void addFileToTarGz(TarArchiveOutputStream tarOutputStream, String pathToAdd, String tarBasePath, boolean isRoot,
-            Pattern excludePattern)
+    private void putEntry(ArchiveOutputStream archiveOs, PayloadFormat format, String entryName, byte[] content, boolean isStoredZip)
             throws IOException {
+        ArchiveEntry entry;
+        if (format == PayloadFormat.ZIP) {
+            ZipArchiveEntry zipEntry = new ZipArchiveEntry(entryName);
+            zipEntry.setSize(content.length);
+            if (isStoredZip) {
+                CRC32 crc = new CRC32();
+                crc.update(content);
+                zipEntry.setCrc(crc.getValue());
+            }
+            entry = zipEntry;
+        } else {
+            TarArchiveEntry tarEntry = new TarArchiveEntry(entryName);
+            tarEntry.setSize(content.length);
+            entry = tarEntry;
+        }
+        archiveOs.putArchiveEntry(entry);
+        archiveOs.write(content);
+        archiveOs.closeArchiveEntry();
+    }
 
-        File fileToAdd = new File(pathToAdd);
+    /** Calculates a fingerprint of the files that {@link #createTarGz(String, OutputStream, Pattern, File)} would include, based on
+     * path, size and modification time (no file contents are read). */
+    String fingerprint(String pathToCompress, Pattern excludePattern, File excludedDir) throws IOException {
+        MessageDigest digest = SourceCache.newSha256();
+        walk(new File(pathToCompress).getAbsoluteFile(), excludePattern, excludedDir.getAbsoluteFile(), DownloadSelection.ALL,
+                (file, entryName) -> {
+                    String line = entryName + "\t" + (file.isFile() ? file.length() + "\t" + file.lastModified() : "") + "\n";
+                    digest.update(line.getBytes(StandardCharsets.UTF_8));
+                });
+        return SourceCache.toHex(digest.digest());
+    }
 
-        String entryName = !isRoot ? tarBasePath + fileToAdd.getName() : "";
-        if (excludePattern != null && excludePattern.matcher(entryName).find()) {
-            return;
+    /** Indexes the files that {@link #createTarGz(String, OutputStream, Pattern, File)} would include, files with unchanged size and
+     * modification time are not read again but take the hash from the previous index.
+     *
+     * @return the index by entry name */
+    Map<String, SnapshotStore.IndexEntry> index(String pathToCompress, Pattern excludePattern, File excludedDir,
+            Map<String, SnapshotStore.IndexEntry> previousIndex) throws IOException {
+        Map<String, SnapshotStore.IndexEntry> index = new TreeMap<>();
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        walk(new File(pathToCompress).getAbsoluteFile(), excludePattern, excludedDir.getAbsoluteFile(), DownloadSelection.ALL,
+                (file, entryName) -> {
+                    if (!file.isFile()) {
+                        return;
+                    }
+                    long size = file.length();
+                    long lastModified = file.lastModified();
+                    SnapshotStore.IndexEntry previousEntry = previousIndex.get(entryName);
+                    if (previousEntry != null && previousEntry.size == size && previousEntry.lastModified == lastModified) {
+                        index.put(entryName, previousEntry);
+                    } else {
+                        index.put(entryName, new SnapshotStore.IndexEntry(size, lastModified, sha256(file, buffer)));
+                    }
+                });
+        return Collections.unmodifiableMap(index);
+    }
+
+    /** Checks the parameters of a download before the response is started.
+     *
+     * @throws IllegalArgumentException if no archive can be created for the given format and level */
+    static void checkFormatAndLevel(PayloadFormat format, int level) {
+        if (!format.isDownloadable()) {
+            throw new IllegalArgumentException("Format " + format.getExtension() + " is not supported for downloads");
         }
-        if (fileToAdd.isFile()) {
-            TarArchiveEntry tarEntry = new TarArchiveEntry(fileToAdd, entryName);
-            tarOutputStream.putArchiveEntry(tarEntry);
-            FileInputStream in = new FileInputStream(fileToAdd);
-            IOUtils.copy(in, tarOutputStream);
-            in.close();
-            tarOutputStream.closeArchiveEntry();
-        } else {
-            if (!isRoot) {
-                TarArchiveEntry tarEntry = new TarArchiveEntry(fileToAdd, entryName);
-                tarOutputStream.putArchiveEntry(tarEntry);
-                tarOutputStream.closeArchiveEntry();
+        if (level != DEFAULT_LEVEL && (level < 0 || level > 9)) {
+            throw new IllegalArgumentException("Invalid compression level " + level + " (expected 0-9)");
+        }
+        if (format == PayloadFormat.TAR && level != DEFAULT_LEVEL) {
+            throw new IllegalArgumentException("A compression level is not applicable for format tar");
+        }
+    }
+
+    private ArchiveOutputStream createArchiveOutputStream(OutputStream out, PayloadFormat format, int level) throws IOException {
+        checkFormatAndLevel(format, level);
+        switch (format) {
+        case TAR:
+            return new TarArchiveOutputStream(out);
+        case TAR_GZ:
+            return new TarArchiveOutputStream(createGzipOutputStream(out, level));
+        case ZIP:
+            ZipArchiveOutputStream zipOs = new ZipArchiveOutputStream(out);
+            if (level == 0) {
+                zipOs.setMethod(ZipEntry.STORED);
+            } else {
+                zipOs.setLevel(level);
+            }
+            return zipOs;
+        default:
+            throw new IllegalArgumentException("Format " + format.getExtension() + " is not supported for downloads");
+        }
+    }
+
+    private OutputStream createGzipOutputStream(OutputStream out, int level) throws IOException {
+        if (compressionExecutor == null) {
+            GzipParameters parameters = new GzipParameters();
+            parameters.setCompressionLevel(level);
+            return new GzipCompressorOutputStream(out, parameters);
+        }
+        return new ParallelGzipOutputStream(out, compressionExecutor, compressionBlockSize, compressionThreads, level);
+    }
+
+    private static long crc32(File file, byte[] buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileInputStream in = new FileInputStream(file)) {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, len);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static String sha256(File file, byte[] buffer) throws IOException {
+        MessageDigest digest = SourceCache.newSha256();
+        try (FileInputStream in = new FileInputStream(file)) {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
             }
+        }
+        return SourceCache.toHex(digest.digest());
+    }
+
+    /** Visits the selected files and directories in archive order, the root itself is not visited. */
+    private void walk(File root, Pattern excludePattern, File excludedDir, DownloadSelection selection, EntryVisitor visitor)
+            throws IOException {
+        File selectionRoot = selection.getSubPath().isEmpty() ? root : new File(root, selection.getSubPath());
+        if (selectionRoot != root && !selectionRoot.exists()) {
+            throw new FileNotFoundException("Path '" + selection.getSubPath() + "' does not exist in destination");
+        }
+        if (selectionRoot.toPath().startsWith(excludedDir.toPath())) {
+            return;
+        }
+        walk(selectionRoot, selection.getSubPath(), true, excludePattern, excludedDir, selection, visitor);
+    }
+
+    private void walk(File fileToAdd, String entryName, boolean isRoot, Pattern excludePattern, File excludedDir,
+            DownloadSelection selection, EntryVisitor visitor) throws IOException {
+
+        if (fileToAdd.equals(excludedDir)) {
+            return;
+        }
+
+        if (excludePattern != null && !entryName.isEmpty() && excludePattern.matcher(entryName).find()) {
+            return;
+        }
+        // checked before listing, so excluded directories are pruned as a whole
+        if (!isRoot && selection.isExcluded(entryName)) {
+            return;
+        }
+        boolean isFile = fileToAdd.isFile();
+        if (!isRoot && selection.isIncluded(entryName, !isFile)) {
+            visitor.visit(fileToAdd, entryName);
+        }
+        if (!isFile) {
             File[] children = fileToAdd.listFiles();
             if (children != null) {
+                // sorted for a stable order (and fingerprint)
+                Arrays.sort(children);
+                String childBasePath = StringUtils.isNotEmpty(entryName) ? entryName + "/" : "";
                 for (File child : children) {
-                    addFileToTarGz(tarOutputStream, child.getAbsolutePath(), StringUtils.isNotEmpty(entryName) ? entryName + "/" : "",
-                            false, excludePattern);
+                    walk(child, childBasePath + child.getName(), false, excludePattern, excludedDir, selection, visitor);
                 }
             }
         }
     }
-}
\ No newline at end of file
+
+    private interface EntryVisitor {
+        void visit(File file, String entryName) throws IOException;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class ApplyEventsTest {
+
+    private File tempDir;
+
+    @Before
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("apply-server-test").toFile();
+    }
+
+    @After
+    public void teardown() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testEntryEventsAreRecorded() throws IOException {
+        ByteArrayOutputStream tarBytes = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tarOs = new TarArchiveOutputStream(tarBytes)) {
+            addTarEntry(tarOs, "test.conf", "prop=${testProp1}");
+            addTarEntry(tarOs, "run.sh", "echo ${testProp1}");
+        }
+        Map<String, String> properties = new HashMap<>();
+        properties.put("testProp1", "val1");
+        ZipDeflater zipDeflater = new ZipDeflater(tempDir.getAbsolutePath(), true,
+                ApplyServerConfig.EXCLUDE_FROM_FILTERING_REGEX_DEFAULT, properties);
+
+        Path recordingFile = new File(tempDir, "apply.jfr").toPath();
+        try (Recording recording = new Recording()) {
+            recording.enable("biz.netcentric.ops.applyserver.Entry");
+            recording.start();
+            zipDeflater.extractTar(new ByteArrayInputStream(tarBytes.toByteArray()), new PrintWriter(new StringWriter()),
+                    new TreeMap<>());
+            recording.stop();
+            recording.dump(recordingFile);
+        }
+
+        Map<String, RecordedEvent> eventsByEntry = RecordingFile.readAllEvents(recordingFile).stream()
+                .filter(event -> event.getEventType().getName().equals("biz.netcentric.ops.applyserver.Entry"))
+                .collect(Collectors.toMap(event -> event.getString("entryName"), event -> event));
+        assertEquals(2, eventsByEntry.size());
+        RecordedEvent confEvent = eventsByEntry.get("test.conf");
+        assertTrue(confEvent.getBoolean("filtered"));
+        assertEquals(1, confEvent.getInt("variablesReplaced"));
+        assertEquals("prop=val1".length(), confEvent.getLong("bytes"));
+        assertTrue(confEvent.getBoolean("changed"));
+        assertFalse(eventsByEntry.get("run.sh").getBoolean("filtered"));
+    }
+
+    private static void addTarEntry(TarArchiveOutputStream tarOs, String name, String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(bytes.length);
+        tarOs.putArchiveEntry(entry);
+        tarOs.write(bytes);
+        tarOs.closeArchiveEntry();
+    }
+}
@@ -28,6 +28,18 @@ public class ApplyServerConfigTest {
         assertTrue(applyServerConfig.isValid());
         assertEquals("/test", applyServerConfig.getDestination());
         assertEquals(3000, applyServerConfig.getServerPort());
+        // runs are only persisted (to the state dir within the destination) on request
+        assertFalse(applyServerConfig.isPersistRuns());
+        assertTrue(new ApplyServerConfig("-d /test -p 3000 -rr days=7".split(" ")).isPersistRuns());
+    }
+
+    @Test
+    public void testWatchedPropertiesOutsideOfStagedDestination() {
+        assertTrue(new ApplyServerConfig("-d /test -p 3000 -se -wp -P /etc/app.properties".split(" ")).isValid());
+        // the release directory the properties are watched in is replaced by uploads
+        assertFalse(new ApplyServerConfig("-d /test -p 3000 -se -wp -P app.properties".split(" ")).isValid());
+        assertFalse(new ApplyServerConfig("-d /test -p 3000 -se -wp -P /test/conf/app.properties".split(" ")).isValid());
+        assertTrue(new ApplyServerConfig("-d /test -p 3000 -wp -P app.properties".split(" ")).isValid());
     }
 
 }
@@ -9,14 +9,19 @@
 package biz.netcentric.ops.applyserver;
 
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
@@ -24,10 +29,22 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -173,4 +190,496 @@ public class ApplyServerHttpHandlerTest {
 
     }
 
+    @Test
+    public void testPostWithStagedExtraction() throws IOException, URISyntaxException {
+        File destination = new File(tempDir, "destination");
+        File applyScriptFile = new File(destination, "_apply.sh");
+        FileUtils.writeStringToFile(applyScriptFile, "cat testFile.conf", StandardCharsets.UTF_8.name());
+        applyServerHttpHandler = new ApplyServerHttpHandler(
+                new ApplyServerConfig(("-d " + destination.getAbsolutePath() + " -p 3000 -se -dur batch").split(" ")), properties);
+
+        when(exchange.getRequestMethod()).thenReturn("POST");
+        String testPayloadFilename = "/test-payload.tar.gz";
+        when(exchange.getRequestBody()).thenReturn(getClass().getResourceAsStream(testPayloadFilename));
+        when(exchange.getRequestURI()).thenReturn(new URI(testPayloadFilename));
+
+        applyServerHttpHandler.handle(exchange);
+
+        verify(exchange, times(1)).sendResponseHeaders(eq(200), anyLong());
+        assertTrue(Files.isSymbolicLink(destination.toPath()));
+        String responseText = out.toString(StandardCharsets.UTF_8.name());
+        assertThat(responseText, containsString("testProp1=val1"));
+        // the extracted files and the cloned tree of the staging release are synced
+        assertEquals(2, StringUtils.countMatches(responseText, "directories to disk in "));
+        File liveRelease = destination.toPath().toRealPath().toFile();
+        assertTrue(new File(liveRelease, "_apply.sh").exists());
+
+        // a broken payload leaves the live release untouched
+        when(exchange.getRequestBody()).thenReturn(new ByteArrayInputStream("not a tar.gz".getBytes(StandardCharsets.UTF_8)));
+        applyServerHttpHandler.handle(exchange);
+
+        verify(exchange, times(1)).sendResponseHeaders(eq(400), anyLong());
+        assertEquals(liveRelease, destination.toPath().toRealPath().toFile());
+        assertEquals(2, new File(tempDir, "destination" + StagedDestination.RELEASES_DIR_SUFFIX).list().length);
+    }
+
+    @Test
+    public void testDeltaUpload() throws IOException, URISyntaxException {
+        FileUtils.writeStringToFile(new File(tempDir, "_apply.sh"), "echo", StandardCharsets.UTF_8.name());
+        applyServerHttpHandler = new ApplyServerHttpHandler(
+                new ApplyServerConfig(("-d " + tempDir.getAbsolutePath() + " -p 3000 -ks").split(" ")), properties);
+
+        when(exchange.getRequestMethod()).thenReturn("POST");
+        when(exchange.getRequestBody()).thenReturn(getClass().getResourceAsStream("/test-payload.tar.gz"));
+        when(exchange.getRequestURI()).thenReturn(new URI("/test-payload.tar.gz"));
+        applyServerHttpHandler.handle(exchange);
+
+        String manifest = getManifest();
+        assertThat(manifest, containsString("testFile.conf\t72\t"));
+        String etag = responseHeaders.getFirst(ApplyServerHttpHandler.HEADER_ETAG);
+
+        // delta with an added file and a deleted file
+        ByteArrayOutputStream tarBytes = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tarOs = new TarArchiveOutputStream(tarBytes)) {
+            addTarEntry(tarOs, "newFile.conf", "prop=${testProp1}");
+            addTarEntry(tarOs, SourceCache.DELETIONS_ENTRY_NAME, "testFile.conf\n");
+        }
+        when(exchange.getRequestMethod()).thenReturn("POST");
+        when(exchange.getRequestBody()).thenReturn(new ByteArrayInputStream(tarBytes.toByteArray()));
+        when(exchange.getRequestURI()).thenReturn(new URI("/delta.tar?delta"));
+        requestHeaders.add(ApplyServerHttpHandler.HEADER_IF_MATCH, etag);
+        applyServerHttpHandler.handle(exchange);
+
+        verify(exchange, times(3)).sendResponseHeaders(eq(200), anyLong());
+        // the list of deletions is not counted as file
+        assertThat(out.toString(StandardCharsets.UTF_8.name()), containsString("1 files written, 0 unchanged"));
+        assertFalse(new File(tempDir, "testFile.conf").exists());
+        assertEquals("prop=val1", FileUtils.readFileToString(new File(tempDir, "newFile.conf"), StandardCharsets.UTF_8));
+        manifest = getManifest();
+        assertThat(manifest, containsString("newFile.conf\t17\t"));
+        assertThat(manifest, containsString("._testFile.conf\t223\t"));
+        assertFalse(("\n" + manifest).contains("\ntestFile.conf\t"));
+
+        // the manifest has changed in the meantime
+        when(exchange.getRequestMethod()).thenReturn("POST");
+        when(exchange.getRequestBody()).thenReturn(new ByteArrayInputStream(tarBytes.toByteArray()));
+        when(exchange.getRequestURI()).thenReturn(new URI("/delta.tar?delta"));
+        applyServerHttpHandler.handle(exchange);
+        verify(exchange, times(1)).sendResponseHeaders(eq(400), anyLong());
+
+        // directories cannot be deleted
+        FileUtils.writeStringToFile(new File(tempDir, "conf/test.conf"), "prop=value", StandardCharsets.UTF_8.name());
+        tarBytes.reset();
+        try (TarArchiveOutputStream tarOs = new TarArchiveOutputStream(tarBytes)) {
+            addTarEntry(tarOs, SourceCache.DELETIONS_ENTRY_NAME, "conf\n");
+            addTarEntry(tarOs, "otherFile.conf", "prop=${testProp1}");
+        }
+        when(exchange.getRequestBody()).thenReturn(new ByteArrayInputStream(tarBytes.toByteArray()));
+        requestHeaders.clear();
+        out.reset();
+        applyServerHttpHandler.handle(exchange);
+        verify(exchange, times(2)).sendResponseHeaders(eq(400), anyLong());
+        assertThat(out.toString(StandardCharsets.UTF_8.name()), containsString("Cannot delete directory conf"));
+        assertTrue(new File(tempDir, "conf/test.conf").exists());
+        assertFalse(new File(tempDir, "otherFile.conf").exists());
+    }
+
+    @Test
+    public void testPostWithFormatDetectedFromPayload() throws Exception {
+        FileUtils.writeStringToFile(new File(tempDir, "_apply.sh"), "echo", StandardCharsets.UTF_8.name());
+        String[] compressors = new String[] { CompressorStreamFactory.BZIP2, CompressorStreamFactory.XZ,
+                CompressorStreamFactory.ZSTANDARD };
+        for (String compressor : compressors) {
+            ByteArrayOutputStream compressedTarBytes = new ByteArrayOutputStream();
+            try (TarArchiveOutputStream tarOs = new TarArchiveOutputStream(
+                    new CompressorStreamFactory().createCompressorOutputStream(compressor, compressedTarBytes))) {
+                addTarEntry(tarOs, compressor + ".conf", "prop=${testProp1}");
+            }
+
+            when(exchange.getRequestMethod()).thenReturn("POST");
+            when(exchange.getRequestBody()).thenReturn(new ByteArrayInputStream(compressedTarBytes.toByteArray()));
+            // the extension is only used if the format cannot be detected
+            when(exchange.getRequestURI()).thenReturn(new URI("/payload.tar.gz"));
+            applyServerHttpHandler.handle(exchange);
+
+            assertEquals(compressor, "prop=val1", FileUtils.readFileToString(new File(tempDir, compressor + ".conf"), StandardCharsets.UTF_8));
+        }
+        verify(exchange, times(compressors.length)).sendResponseHeaders(eq(200), anyLong());
+    }
+
+    @Test
+    public void testPropertiesChange() throws IOException, URISyntaxException {
+        FileUtils.writeStringToFile(new File(tempDir, "_apply.sh"), "echo", StandardCharsets.UTF_8.name());
+        FileUtils.writeStringToFile(new File(tempDir, "reload.sh"), "echo 'reloaded'", StandardCharsets.UTF_8.name());
+        applyServerHttpHandler = new ApplyServerHttpHandler(
+                new ApplyServerConfig(("-d " + tempDir.getAbsolutePath() + " -p 3000 -P test.properties -wp -pc reload.sh").split(" ")),
+                properties);
+
+        when(exchange.getRequestMethod()).thenReturn("POST");
+        when(exchange.getRequestBody()).thenReturn(getClass().getResourceAsStream("/test-payload.tar.gz"));
+        when(exchange.getRequestURI()).thenReturn(new URI("/test-payload.tar.gz"));
+        applyServerHttpHandler.handle(exchange);
+        File confFile = new File(tempDir, "testFile.conf");
+        assertThat(FileUtils.readFileToString(confFile, StandardCharsets.UTF_8), containsString("testProp2=val2"));
+
+        properties.put("testProp2", "changed");
+        applyServerHttpHandler.handlePropertiesChange(Collections.singleton("testProp2"));
+
+        String configFileContents = FileUtils.readFileToString(confFile, StandardCharsets.UTF_8);
+        assertThat(configFileContents, containsString("testProp1=val1"));
+        assertThat(configFileContents, containsString("testProp2=changed"));
+
+        when(exchange.getRequestMethod()).thenReturn("GET");
+        when(exchange.getRequestURI()).thenReturn(new URI("/run/2"));
+        out.reset();
+        applyServerHttpHandler.handle(exchange);
+        assertThat(out.toString(StandardCharsets.UTF_8.name()), containsString("reloaded"));
+    }
+
+    @Test
+    public void testPostWithBatchDurability() throws IOException, URISyntaxException {
+        FileUtils.writeStringToFile(new File(tempDir, "_apply.sh"), "echo", StandardCharsets.UTF_8.name());
+        applyServerHttpHandler = new ApplyServerHttpHandler(
+                new ApplyServerConfig(("-d " + tempDir.getAbsolutePath() + " -p 3000 -dur batch").split(" ")), properties);
+
+        when(exchange.getRequestMethod()).thenReturn("POST");
+        when(exchange.getRequestBody()).thenReturn(getClass().getResourceAsStream("/test-payload.tar.gz"));
+        when(exchange.getRequestURI()).thenReturn(new URI("/test-payload.tar.gz"));
+        applyServerHttpHandler.handle(exchange);
+
+        verify(exchange, times(1)).sendResponseHeaders(eq(200), anyLong());
+        String responseText = out.toString(StandardCharsets.UTF_8.name());
+        assertThat(responseText, containsString("directories to disk in "));
+        assertThat(responseText, containsString("(durability batch)"));
+    }
+
+    @Test
+    public void testDownloadIsCachedWithConditionalAndRangeRequests() throws IOException, URISyntaxException {
+        File confFile = new File(tempDir, "conf/test.conf");
+        FileUtils.writeStringToFile(confFile, "prop=value", StandardCharsets.UTF_8);
+        when(exchange.getRequestMethod()).thenReturn("GET");
+        when(exchange.getRequestURI()).thenReturn(new URI("/download.tar.gz"));
+
+        applyServerHttpHandler.handle(exchange);
+        byte[] archive = out.toByteArray();
+        String eTag = responseHeaders.getFirst(ApplyServerHttpHandler.HEADER_ETAG);
+        verify(exchange, times(1)).sendResponseHeaders(200, archive.length);
+
+        requestHeaders.set(ApplyServerHttpHandler.HEADER_IF_NONE_MATCH, eTag);
+        applyServerHttpHandler.handle(exchange);
+        verify(exchange, times(1)).sendResponseHeaders(304, -1);
+
+        requestHeaders.clear();
+        requestHeaders.set(ApplyServerHttpHandler.HEADER_RANGE, "bytes=10-");
+        out.reset();
+        applyServerHttpHandler.handle(exchange);
+        verify(exchange, times(1)).sendResponseHeaders(206, archive.length - 10);
+        assertEquals(archive.length - 10, out.size());
+        assertEquals(archive[10], out.toByteArray()[0]);
+
+        // the archive is built again once files change
+        FileUtils.writeStringToFile(confFile, "prop=changed value", StandardCharsets.UTF_8);
+        requestHeaders.clear();
+        requestHeaders.set(ApplyServerHttpHandler.HEADER_IF_NONE_MATCH, eTag);
+        responseHeaders.clear();
+        applyServerHttpHandler.handle(exchange);
+        verify(exchange, times(1)).sendResponseHeaders(304, -1);
+        String changedETag = responseHeaders.getFirst(ApplyServerHttpHandler.HEADER_ETAG);
+        assertFalse(eTag.equals(changedETag));
+
+        // a rewrite with the same size and modification time is only noticed via invalidate(), but must get a new ETag
+        long lastModified = confFile.lastModified();
+        FileUtils.writeStringToFile(confFile, "prop=changed VALUE", StandardCharsets.UTF_8);
+        assertTrue(confFile.setLastModified(lastModified));
+        applyServerHttpHandler.downloadCache.invalidate();
+        requestHeaders.clear();
+        requestHeaders.set(ApplyServerHttpHandler.HEADER_IF_NONE_MATCH, changedETag);
+        responseHeaders.clear();
+        applyServerHttpHandler.handle(exchange);
+        verify(exchange, times(1)).sendResponseHeaders(304, -1);
+        assertFalse(changedETag.equals(responseHeaders.getFirst(ApplyServerHttpHandler.HEADER_ETAG)));
+    }
+
+    @Test
+    public void testSelectiveDownloadInOtherFormats() throws IOException, URISyntaxException {
+        FileUtils.writeStringToFile(new File(tempDir, "conf/test.conf"), "prop=value", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(new File(tempDir, "conf/test.xml"), "<xml/>", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(new File(tempDir, "conf/sub/app.txt"), "log", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(new File(tempDir, "other.conf"), "other", StandardCharsets.UTF_8);
+        when(exchange.getRequestMethod()).thenReturn("GET");
+
+        // stored zip entries require the checksum upfront
+        when(exchange.getRequestURI()).thenReturn(new URI("/download.zip?path=conf&exclude=conf/sub&level=0"));
+        applyServerHttpHandler.handle(exchange);
+        verify(exchange, times(1)).sendResponseHeaders(200, 0);
+        List<String> zipEntries = new ArrayList<>();
+        try (ZipArchiveInputStream zipIs = new ZipArchiveInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ArchiveEntry entry;
+            while ((entry = zipIs.getNextEntry()) != null) {
+                zipEntries.add(entry.getName());
+                if (entry.getName().equals("conf/test.conf")) {
+                    assertEquals("prop=value", IOUtils.toString(zipIs, StandardCharsets.UTF_8));
+                }
+            }
+        }
+        assertEquals(Arrays.asList("conf/test.conf", "conf/test.xml"), zipEntries);
+
+        out.reset();
+        when(exchange.getRequestURI()).thenReturn(new URI("/download.tar.gz?format=tar&include=**.%7Bconf,txt%7D"));
+        applyServerHttpHandler.handle(exchange);
+        assertEquals(Arrays.asList("conf/sub/app.txt", "conf/test.conf", "other.conf"), getTarEntryNames(out.toByteArray()));
+
+        out.reset();
+        when(exchange.getRequestURI()).thenReturn(new URI("/download.tar.gz?path=../etc"));
+        applyServerHttpHandler.handle(exchange);
+        verify(exchange, times(1)).sendResponseHeaders(eq(400), anyLong());
+
+        // invalid parameters are rejected before the response is started
+        String[] invalidDownloads = { "/download.tar.xz", "/download.tar.bz2?path=conf", "/download.zip?level=12",
+                "/download.tar.gz?format=tar&level=5" };
+        for (String invalidDownload : invalidDownloads) {
+            when(exchange.getRequestURI()).thenReturn(new URI(invalidDownload));
+            applyServerHttpHandler.handle(exchange);
+        }
+        verify(exchange, times(1 + invalidDownloads.length)).sendResponseHeaders(eq(400), anyLong());
+        verify(exchange, times(2)).sendResponseHeaders(200, 0);
+    }
+
+    @Test
+    public void testIncrementalDownload() throws IOException, URISyntaxException {
+        FileUtils.writeStringToFile(new File(tempDir, "conf/deleted.conf"), "deleted", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(new File(tempDir, "conf/changed.conf"), "before", StandardCharsets.UTF_8);
+        File touchedFile = new File(tempDir, "conf/touched.conf");
+        FileUtils.writeStringToFile(touchedFile, "same", StandardCharsets.UTF_8);
+        when(exchange.getRequestMethod()).thenReturn("GET");
+
+        when(exchange.getRequestURI()).thenReturn(new URI("/download.tar?since="));
+        applyServerHttpHandler.handle(exchange);
+        assertEquals(Arrays.asList(SourceCache.DELETIONS_ENTRY_NAME, "conf/changed.conf", "conf/deleted.conf", "conf/touched.conf"),
+                getTarEntryNames(out.toByteArray()));
+        String token = responseHeaders.getFirst(ApplyServerHttpHandler.HEADER_SNAPSHOT_TOKEN);
+
+        FileUtils.deleteQuietly(new File(tempDir, "conf/deleted.conf"));
+        FileUtils.writeStringToFile(new File(tempDir, "conf/changed.conf"), "after", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(new File(tempDir, "conf/added.conf"), "added", StandardCharsets.UTF_8);
+        // only rehashed, but not downloaded again
+        touchedFile.setLastModified(touchedFile.lastModified() - 10000);
+
+        out.reset();
+        responseHeaders.clear();
+        when(exchange.getRequestURI()).thenReturn(new URI("/download.tar?since=" + token));
+        applyServerHttpHandler.handle(exchange);
+        assertEquals(Arrays.asList(SourceCache.DELETIONS_ENTRY_NAME, "conf/added.conf", "conf/changed.conf"),
+                getTarEntryNames(out.toByteArray()));
+        try (TarArchiveInputStream tarIs = new TarArchiveInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            tarIs.getNextEntry();
+            assertEquals("conf/deleted.conf\n", IOUtils.toString(tarIs, StandardCharsets.UTF_8));
+        }
+        assertFalse(token.equals(responseHeaders.getFirst(ApplyServerHttpHandler.HEADER_SNAPSHOT_TOKEN)));
+
+        when(exchange.getRequestURI()).thenReturn(new URI("/download.tar?since=" + StringUtils.repeat('0', 64)));
+        applyServerHttpHandler.handle(exchange);
+        verify(exchange, times(1)).sendResponseHeaders(eq(410), anyLong());
+    }
+
+    @Test
+    public void testAsyncPostWithJobStatus() throws IOException, URISyntaxException {
+        FileUtils.writeStringToFile(new File(tempDir, "_apply.sh"), "sleep 1\necho async output", StandardCharsets.UTF_8.name());
+        applyServerHttpHandler = new ApplyServerHttpHandler(
+                new ApplyServerConfig(("-d " + tempDir.getAbsolutePath() + " -p 3000 -du").split(" ")), properties);
+        when(exchange.getRequestMethod()).thenReturn("POST");
+        when(exchange.getRequestURI()).thenReturn(new URI("/?async"));
+
+        applyServerHttpHandler.handle(exchange);
+        verify(exchange, times(1)).sendResponseHeaders(eq(202), anyLong());
+        String jobUrl = responseHeaders.getFirst(ApplyServerHttpHandler.HEADER_LOCATION);
+        assertThat(jobUrl, containsString(ApplyServerHttpHandler.JOBS_URL_PREFIX));
+
+        // the script is locked while the job is running
+        out.reset();
+        applyServerHttpHandler.handle(exchange);
+        verify(exchange, times(1)).sendResponseHeaders(eq(400), anyLong());
+
+        out.reset();
+        when(exchange.getRequestMethod()).thenReturn("GET");
+        when(exchange.getRequestURI()).thenReturn(new URI(jobUrl + "?wait=30"));
+        applyServerHttpHandler.handle(exchange);
+        // the response is sent once the job has finished
+        verify(exchange, timeout(30000).times(3)).close();
+        String json = out.toString(StandardCharsets.UTF_8.name());
+        assertThat(json, containsString("\"status\": \"succeeded\", \"exitCode\": 0"));
+        assertThat(json, containsString("async output"));
+
+        when(exchange.getRequestURI()).thenReturn(new URI(ApplyServerHttpHandler.JOBS_URL_PREFIX + "unknown"));
+        applyServerHttpHandler.handle(exchange);
+        verify(exchange, times(1)).sendResponseHeaders(eq(404), anyLong());
+    }
+
+    @Test
+    public void testTailOfRunningScript() throws IOException, URISyntaxException {
+        FileUtils.writeStringToFile(new File(tempDir, "_apply.sh"), "echo before\nsleep 1\necho after", StandardCharsets.UTF_8.name());
+        applyServerHttpHandler = new ApplyServerHttpHandler(
+                new ApplyServerConfig(("-d " + tempDir.getAbsolutePath() + " -p 3000 -du").split(" ")), properties);
+        when(exchange.getRequestMethod()).thenReturn("POST");
+        when(exchange.getRequestURI()).thenReturn(new URI("/?async"));
+        applyServerHttpHandler.handle(exchange);
+        String runId = responseHeaders.getFirst(ApplyServerHttpHandler.HEADER_RUN_ID);
+
+        // the tail is streamed until the run has finished
+        out.reset();
+        when(exchange.getRequestMethod()).thenReturn("GET");
+        when(exchange.getRequestURI()).thenReturn(new URI(ApplyServerHttpHandler.RUN_URL_PREFIX + runId + "/tail"));
+        applyServerHttpHandler.handle(exchange);
+        verify(exchange, times(1)).sendResponseHeaders(200, 0);
+        String tail = out.toString(StandardCharsets.UTF_8.name());
+        assertThat(tail, containsString("Processing request /"));
+        assertThat(tail, containsString("before\nafter"));
+
+        // finished runs are sent as a whole
+        out.reset();
+        applyServerHttpHandler.handle(exchange);
+        verify(exchange, times(2)).sendResponseHeaders(200, 0);
+        assertThat(out.toString(StandardCharsets.UTF_8.name()), containsString("before\nafter"));
+
+        when(exchange.getRequestURI()).thenReturn(new URI(ApplyServerHttpHandler.RUN_URL_PREFIX + "99/tail"));
+        applyServerHttpHandler.handle(exchange);
+        verify(exchange, times(1)).sendResponseHeaders(eq(404), anyLong());
+    }
+
+    @Test
+    public void testPagedRunsFromHistoryAndStore() throws IOException, URISyntaxException {
+        File applyScript = new File(tempDir, "_apply.sh");
+        FileUtils.writeStringToFile(applyScript, "exit 0", StandardCharsets.UTF_8.name());
+        applyServerHttpHandler = new ApplyServerHttpHandler(
+                new ApplyServerConfig(("-d " + tempDir.getAbsolutePath() + " -p 3000 -du -hs 2 -rr runs=1000").split(" ")), properties);
+        when(exchange.getRequestMethod()).thenReturn("POST");
+        for (int i = 0; i < 3; i++) {
+            if (i == 2) {
+                FileUtils.writeStringToFile(applyScript, "exit 1", StandardCharsets.UTF_8.name());
+            }
+            applyServerHttpHandler.handle(exchange);
+        }
+
+        when(exchange.getRequestMethod()).thenReturn("GET");
+        out.reset();
+        when(exchange.getRequestURI()).thenReturn(new URI(ApplyServerHttpHandler.RUNS_URL + "?limit=2"));
+        applyServerHttpHandler.handle(exchange);
+        String runs = out.toString(StandardCharsets.UTF_8.name());
+        assertThat(runs, containsString("\"hasMore\": true"));
+        assertThat(runs, containsString("{\"id\": 3, "));
+        assertThat(runs, containsString("\"status\": \"failed\", \"code\": 500}"));
+        assertThat(runs, containsString("{\"id\": 2, "));
+
+        // run 1 is only kept in the store (history size 2)
+        out.reset();
+        when(exchange.getRequestURI()).thenReturn(new URI(ApplyServerHttpHandler.RUNS_URL + "?offset=2&limit=2"));
+        applyServerHttpHandler.handle(exchange);
+        runs = out.toString(StandardCharsets.UTF_8.name());
+        assertThat(runs, containsString("\"hasMore\": false"));
+        assertThat(runs, containsString("{\"id\": 1, "));
+
+        // after a restart, the runs are read from the store
+        applyServerHttpHandler = new ApplyServerHttpHandler(
+                new ApplyServerConfig(("-d " + tempDir.getAbsolutePath() + " -p 3000 -du -hs 2 -rr runs=1000").split(" ")), properties);
+        out.reset();
+        when(exchange.getRequestURI()).thenReturn(new URI(ApplyServerHttpHandler.RUNS_URL + "?status=success&script=_apply.sh"));
+        applyServerHttpHandler.handle(exchange);
+        runs = out.toString(StandardCharsets.UTF_8.name());
+        assertThat(runs, containsString("{\"id\": 2, "));
+        assertThat(runs, containsString("{\"id\": 1, "));
+        assertThat(runs, not(containsString("{\"id\": 3, ")));
+
+        out.reset();
+        when(exchange.getRequestURI()).thenReturn(new URI("/?limit=1"));
+        applyServerHttpHandler.handle(exchange);
+        String indexPage = out.toString(StandardCharsets.UTF_8.name());
+        assertThat(indexPage, containsString("href=\"/run/3\""));
+        assertThat(indexPage, not(containsString("href=\"/run/2\"")));
+        assertThat(indexPage, containsString("href=\"/?offset=1&limit=1\""));
+    }
+
+    @Test
+    public void testMetrics() throws IOException, URISyntaxException {
+        FileUtils.writeStringToFile(new File(tempDir, "_apply.sh"), "echo", StandardCharsets.UTF_8.name());
+        when(exchange.getRequestMethod()).thenReturn("POST");
+        when(exchange.getRequestBody()).thenReturn(getClass().getResourceAsStream("/test-payload.tar.gz"));
+        when(exchange.getRequestURI()).thenReturn(new URI("/test-payload.tar.gz"));
+        applyServerHttpHandler.handle(exchange);
+
+        out.reset();
+        when(exchange.getRequestMethod()).thenReturn("GET");
+        when(exchange.getRequestURI()).thenReturn(new URI("/metrics"));
+        applyServerHttpHandler.handle(exchange);
+        verify(responseHeaders, times(1)).add(ApplyServerHttpHandler.HEADER_CONTENT_TYPE, Metrics.CONTENT_TYPE);
+        String metrics = out.toString(StandardCharsets.UTF_8.name());
+        assertThat(metrics, containsString("apply_server_upload_bytes_count 1\n"));
+        assertThat(metrics, containsString("apply_server_script_duration_seconds_count{script=\"_apply.sh\"} 1\n"));
+        assertThat(metrics, containsString("apply_server_results_total{script=\"_apply.sh\",code=\"200\"} 1\n"));
+        assertThat(metrics, containsString("apply_server_executor_queue_depth{route=\"script\"} 0\n"));
+        assertThat(metrics, containsString("apply_server_lock_rejections_total{script=\"_apply.sh\"} 0\n"));
+        assertThat(metrics, containsString("apply_server_active_runs 0\n"));
+    }
+
+    @Test
+    public void testPostExceedingLimits() throws Exception {
+        FileUtils.writeStringToFile(new File(tempDir, "_apply.sh"), "echo", StandardCharsets.UTF_8.name());
+        applyServerHttpHandler = new ApplyServerHttpHandler(
+                new ApplyServerConfig(("-d " + tempDir.getAbsolutePath() + " -p 3000 -mc 2 -mr 50").split(" ")), properties);
+        when(exchange.getRequestMethod()).thenReturn("POST");
+        when(exchange.getRequestURI()).thenReturn(new URI("/payload.tar.gz"));
+
+        ByteArrayOutputStream tooManyEntries = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tarOs = new TarArchiveOutputStream(tooManyEntries)) {
+            for (int i = 0; i < 3; i++) {
+                addTarEntry(tarOs, "file" + i + ".conf", "content");
+            }
+        }
+        when(exchange.getRequestBody()).thenReturn(new ByteArrayInputStream(tooManyEntries.toByteArray()));
+        applyServerHttpHandler.handle(exchange);
+        assertThat(out.toString(StandardCharsets.UTF_8.name()), containsString("more than 2 entries"));
+
+        // 5MB of zeros compress to a few KB
+        ByteArrayOutputStream zipBomb = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tarOs = new TarArchiveOutputStream(
+                new CompressorStreamFactory().createCompressorOutputStream(CompressorStreamFactory.GZIP, zipBomb))) {
+            addTarEntry(tarOs, "zeros.conf", StringUtils.repeat('0', 5 * 1024 * 1024));
+        }
+        out.reset();
+        when(exchange.getRequestBody()).thenReturn(new ByteArrayInputStream(zipBomb.toByteArray()));
+        applyServerHttpHandler.handle(exchange);
+        assertThat(out.toString(StandardCharsets.UTF_8.name()), containsString("maximum compression ratio of 50"));
+
+        verify(exchange, times(2)).sendResponseHeaders(eq(LimitExceededException.PAYLOAD_TOO_LARGE), anyLong());
+        assertFalse(new File(tempDir, "file2.conf").exists());
+    }
+
+    private List<String> getTarEntryNames(byte[] tar) throws IOException {
+        List<String> entryNames = new ArrayList<>();
+        try (TarArchiveInputStream tarIs = new TarArchiveInputStream(new ByteArrayInputStream(tar))) {
+            ArchiveEntry entry;
+            while ((entry = tarIs.getNextEntry()) != null) {
+                entryNames.add(entry.getName());
+            }
+        }
+        return entryNames;
+    }
+
+    private String getManifest() throws IOException, URISyntaxException {
+        when(exchange.getRequestMethod()).thenReturn("GET");
+        when(exchange.getRequestURI()).thenReturn(new URI("/manifest"));
+        out.reset();
+        applyServerHttpHandler.handle(exchange);
+        String manifest = out.toString(StandardCharsets.UTF_8.name());
+        out.reset();
+        return manifest;
+    }
+
+    private void addTarEntry(TarArchiveOutputStream tarOs, String name, String content) throws IOException {
+        byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(contentBytes.length);
+        tarOs.putArchiveEntry(entry);
+        tarOs.write(contentBytes);
+        tarOs.closeArchiveEntry();
+    }
 }
@@ -0,0 +1,61 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Test;
+
+public class MetricsTest {
+
+    @Test
+    public void testExpositionFormat() throws IOException {
+        Metrics metrics = new Metrics();
+        metrics.register("active_runs", "gauge", "Runs in progress", () -> Collections.singletonMap("", 2));
+
+        Metrics.UploadTimings uploadTimings = new Metrics.UploadTimings();
+        IOUtils.toByteArray(uploadTimings.timeReads(new ByteArrayInputStream(new byte[100])));
+        metrics.observeUpload(2000, TimeUnit.MILLISECONDS.toNanos(30), uploadTimings);
+        metrics.observeUpload(500, TimeUnit.MILLISECONDS.toNanos(200), uploadTimings);
+        metrics.observeScript("_apply.sh", TimeUnit.SECONDS.toNanos(3));
+        metrics.countResult("_apply.sh", 200);
+        metrics.countResult("_apply.sh", 200);
+        metrics.countResult("say \"hi\"", 500);
+        metrics.countDownloadBytes(new NullOutputStream()).write(new byte[42]);
+
+        StringWriter out = new StringWriter();
+        metrics.writeTo(new PrintWriter(out));
+        String exposition = out.toString();
+
+        // buckets are cumulative
+        assertThat(exposition, containsString("# TYPE apply_server_upload_bytes histogram\n"));
+        assertThat(exposition, containsString("apply_server_upload_bytes_bucket{le=\"1024\"} 1\n"));
+        assertThat(exposition, containsString("apply_server_upload_bytes_bucket{le=\"16384\"} 2\n"));
+        assertThat(exposition, containsString("apply_server_upload_bytes_bucket{le=\"+Inf\"} 2\n"));
+        assertThat(exposition, containsString("apply_server_upload_bytes_sum 2500\n"));
+        assertThat(exposition, containsString("apply_server_extraction_seconds_bucket{le=\"0.05\"} 1\n"));
+        assertThat(exposition, containsString("apply_server_extraction_seconds_count 2\n"));
+        assertThat(exposition, containsString("apply_server_script_duration_seconds_bucket{script=\"_apply.sh\",le=\"2.5\"} 0\n"));
+        assertThat(exposition, containsString("apply_server_script_duration_seconds_bucket{script=\"_apply.sh\",le=\"5\"} 1\n"));
+        assertThat(exposition, containsString("apply_server_results_total{script=\"_apply.sh\",code=\"200\"} 2\n"));
+        assertThat(exposition, containsString("apply_server_results_total{script=\"say \\\"hi\\\"\",code=\"500\"} 1\n"));
+        assertThat(exposition, containsString("apply_server_download_bytes_total 42\n"));
+        assertThat(exposition, containsString("# TYPE apply_server_active_runs gauge\napply_server_active_runs 2\n"));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelGzipOutputStreamTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup() {
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void teardown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testBlocksAreDecompressedInOrder() throws IOException {
+        byte[] data = new byte[1000 * 1000 + 17];
+        Random random = new Random(42);
+        for (int i = 0; i < data.length; i++) {
+            // compressible, but different for every block
+            data[i] = (byte) ('a' + random.nextInt(4));
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gzipOs = new ParallelGzipOutputStream(compressed, executor, 64 * 1024, 3)) {
+            // uneven chunks to cover writes across block boundaries
+            for (int pos = 0; pos < data.length; pos += 10007) {
+                gzipOs.write(data, pos, Math.min(10007, data.length - pos));
+            }
+            gzipOs.write('!');
+        }
+
+        byte[] expected = new byte[data.length + 1];
+        System.arraycopy(data, 0, expected, 0, data.length);
+        expected[data.length] = '!';
+        assertArrayEquals(expected, decompress(compressed.toByteArray()));
+    }
+
+    @Test
+    public void testEmptyStreamIsValidGzip() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(compressed, executor, 1024, 3).close();
+        assertEquals(0, decompress(compressed.toByteArray()).length);
+    }
+
+    private byte[] decompress(byte[] compressed) throws IOException {
+        try (GzipCompressorInputStream gzipIs = new GzipCompressorInputStream(new ByteArrayInputStream(compressed), true)) {
+            return IOUtils.toByteArray(gzipIs);
+        }
+    }
+}
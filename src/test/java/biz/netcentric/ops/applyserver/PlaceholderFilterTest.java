@@ -0,0 +1,204 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PlaceholderFilterTest {
+
+    private File tempDir;
+    private File targetFile;
+    private Map<String, String> properties;
+
+    @Before
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("apply-server-test").toFile();
+        targetFile = new File(tempDir, "test.conf");
+        properties = new HashMap<String, String>();
+        properties.put("prop1", "val1");
+        properties.put("prop.two", "value with $ and ${prop1}");
+        properties.put("umlaut", "äöü");
+    }
+
+    @After
+    public void teardown() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testSameResultAsRegexFiltering() throws IOException {
+        String[] contents = new String[] {
+                "",
+                "no placeholders",
+                "a=${prop1}",
+                "${prop1}${prop.two}${unknown.prop}",
+                "$${prop1}} ${{prop1} ${p} ${1prop} ${prop1 ${prop1",
+                "ä ${umlaut} € ${prop1}$",
+                "ends with ${"
+        };
+        for (String content : contents) {
+            for (int windowSize : new int[] { 1, 2, 3, 7, PlaceholderFilter.WINDOW_SIZE }) {
+                assertSameAsRegexFiltering(content, windowSize);
+            }
+        }
+    }
+
+    @Test
+    public void testSameResultAsRegexFilteringForRandomContent() throws IOException {
+        Random random = new Random(42);
+        String alphabet = "${}ab.1_ \nä";
+        String[] snippets = new String[] { "${prop1}", "${prop.two}", "${umlaut}", "${unknown}" };
+        for (int i = 0; i < 200; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(200);
+            for (int j = 0; j < length; j++) {
+                if (random.nextInt(10) == 0) {
+                    sb.append(snippets[random.nextInt(snippets.length)]);
+                } else {
+                    sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+            }
+            assertSameAsRegexFiltering(sb.toString(), 1 + random.nextInt(16));
+        }
+    }
+
+    @Test
+    public void testTooLongPlaceholderIsLeftUnchanged() throws IOException {
+        String maxLengthName = StringUtils.repeat('a', PlaceholderFilter.MAX_TOKEN_LENGTH - 3);
+        properties.put(maxLengthName, "max");
+        properties.put(maxLengthName + "a", "too long");
+        String content = "${" + maxLengthName + "} ${" + maxLengthName + "a} ${prop1}";
+
+        for (int windowSize : new int[] { 7, PlaceholderFilter.WINDOW_SIZE }) {
+            Map<String, String> propertiesUsed = new TreeMap<>();
+            filter(new PlaceholderFilter(properties, windowSize), content.getBytes(StandardCharsets.UTF_8), propertiesUsed);
+
+            assertEquals("max ${" + maxLengthName + "a} val1", FileUtils.readFileToString(targetFile, StandardCharsets.UTF_8));
+            assertEquals(2, propertiesUsed.size());
+        }
+    }
+
+    @Test
+    public void testInvalidUtf8KeepsOriginal() throws IOException {
+        ByteArrayOutputStream original = new ByteArrayOutputStream();
+        original.write("a=${prop1} b=${prop.two}\n".getBytes(StandardCharsets.UTF_8));
+        original.write(new byte[] { (byte) 0xC3, (byte) 0x28 }); // invalid 2 byte sequence
+        original.write(" c=${prop1}".getBytes(StandardCharsets.UTF_8));
+
+        for (int windowSize : new int[] { 4, PlaceholderFilter.WINDOW_SIZE }) {
+            Map<String, String> propertiesUsed = new TreeMap<>();
+            try {
+                filter(new PlaceholderFilter(properties, windowSize), original.toByteArray(), propertiesUsed);
+                fail("Expected CharacterCodingException");
+            } catch (CharacterCodingException e) {
+                assertArrayEquals(original.toByteArray(), FileUtils.readFileToByteArray(targetFile));
+                assertTrue(propertiesUsed.isEmpty());
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryContentKeepsOriginal() throws IOException {
+        ByteArrayOutputStream original = new ByteArrayOutputStream();
+        original.write("a=${prop1}".getBytes(StandardCharsets.UTF_8));
+        original.write(new byte[] { 0, (byte) 0xFF, 0, 0 });
+        original.write("b=${prop.two}".getBytes(StandardCharsets.UTF_8));
+
+        for (int windowSize : new int[] { 4, PlaceholderFilter.WINDOW_SIZE }) {
+            Map<String, String> propertiesUsed = new TreeMap<>();
+            FileUpdateOutputStream fileOut = new FileUpdateOutputStream(targetFile, -1);
+            int count;
+            try {
+                count = new PlaceholderFilter(properties, windowSize).filter(new ByteArrayInputStream(original.toByteArray()),
+                        fileOut, propertiesUsed);
+            } finally {
+                fileOut.close();
+            }
+            assertEquals(PlaceholderFilter.BINARY, count);
+            assertArrayEquals(original.toByteArray(), FileUtils.readFileToByteArray(targetFile));
+            assertTrue(propertiesUsed.isEmpty());
+        }
+
+        // valid UTF-8 is filtered despite a NUL byte, no matter in which window it is
+        for (int windowSize : new int[] { 4, PlaceholderFilter.WINDOW_SIZE }) {
+            assertSameAsRegexFiltering("a=${prop1}\0b=${prop.two}", windowSize);
+        }
+    }
+
+    @Test
+    public void testSameResultAsRegexFilteringForLargeContent() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append(i % 1000 == 0 ? "key=${prop1} ä\n" : "plain ascii line\n");
+        }
+        assertSameAsRegexFiltering(sb.toString(), PlaceholderFilter.WINDOW_SIZE);
+        assertSameAsRegexFiltering(sb.toString().replace("${", "$"), PlaceholderFilter.WINDOW_SIZE);
+    }
+
+    private void assertSameAsRegexFiltering(String content, int windowSize) throws IOException {
+        Map<String, String> expectedPropertiesUsed = new TreeMap<>();
+        String expected = filterWithRegex(content, expectedPropertiesUsed);
+
+        Map<String, String> propertiesUsed = new TreeMap<>();
+        filter(new PlaceholderFilter(properties, windowSize), content.getBytes(StandardCharsets.UTF_8), propertiesUsed);
+
+        assertEquals("Window size " + windowSize, expected, FileUtils.readFileToString(targetFile, StandardCharsets.UTF_8));
+        assertEquals(expectedPropertiesUsed, propertiesUsed);
+    }
+
+    private void filter(PlaceholderFilter filter, byte[] content, Map<String, String> propertiesUsed) throws IOException {
+        FileUpdateOutputStream fileOut = new FileUpdateOutputStream(targetFile, -1);
+        try {
+            filter.filter(new ByteArrayInputStream(content), fileOut, propertiesUsed);
+        } finally {
+            fileOut.close();
+        }
+    }
+
+    private String filterWithRegex(String fileContents, Map<String, String> propertiesUsed) {
+        StringBuffer sb = new StringBuffer();
+        Matcher matcher = PlaceholderFilter.VAR_REGEX.matcher(fileContents);
+        while (matcher.find()) {
+            String key = matcher.group(1);
+            String value;
+            if (properties.containsKey(key)) {
+                value = properties.get(key);
+                propertiesUsed.put(key, value);
+            } else {
+                value = matcher.group(0);
+                propertiesUsed.put(key, "<left unchanged>");
+            }
+            matcher.appendReplacement(sb, value.replace("$", "\\$"));
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+}
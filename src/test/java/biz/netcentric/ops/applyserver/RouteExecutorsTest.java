@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+public class RouteExecutorsTest {
+
+    @Test
+    public void testRequestsBeyondQueueAreRejected() throws Exception {
+        ApplyServerConfig config = new ApplyServerConfig("-d . -p 3000 -ex download=1:1".split(" "));
+        RouteExecutors routeExecutors = new RouteExecutors(config);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        HttpHandler handler = routeExecutors.dispatchTo(exchange -> {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        HttpExchange running = createExchange("GET", "/download.tar.gz");
+        HttpExchange queued = createExchange("GET", "/download.zip");
+        HttpExchange rejected = createExchange("GET", "/download.tar.gz");
+        HttpExchange otherRoute = createExchange("GET", "/");
+        handler.handle(running);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        handler.handle(queued);
+        handler.handle(rejected);
+        handler.handle(otherRoute);
+
+        RouteExecutors.Bulkhead downloads = routeExecutors.getBulkhead(RouteExecutors.Route.DOWNLOAD);
+        assertEquals(1, downloads.getActiveCount());
+        assertEquals(1, downloads.getQueueDepth());
+        assertEquals(1, downloads.getRejectedCount());
+        verify(rejected).sendResponseHeaders(eq(503), anyLong());
+        verify(queued, never()).sendResponseHeaders(eq(503), anyLong());
+        verify(otherRoute, never()).sendResponseHeaders(eq(503), anyLong());
+        release.countDown();
+    }
+
+    private HttpExchange createExchange(String method, String path) throws Exception {
+        HttpExchange exchange = mock(HttpExchange.class);
+        when(exchange.getRequestMethod()).thenReturn(method);
+        when(exchange.getRequestURI()).thenReturn(new URI(path));
+        when(exchange.getResponseHeaders()).thenReturn(new Headers());
+        when(exchange.getResponseBody()).thenReturn(new ByteArrayOutputStream());
+        return exchange;
+    }
+}
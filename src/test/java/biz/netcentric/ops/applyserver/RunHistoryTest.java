@@ -0,0 +1,34 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class RunHistoryTest {
+
+    @Test
+    public void testOldestRunsAreEvicted() {
+        RunHistory runHistory = new RunHistory(3);
+        for (int runId = 1; runId <= 5; runId++) {
+            runHistory.add(new ScriptResult(runId, "_apply.sh", "success", 200, "output " + runId));
+        }
+
+        assertEquals(3, runHistory.size());
+        assertNull(runHistory.get(2));
+        assertEquals("output 3", runHistory.get(3).getScriptOutput());
+        List<ScriptResult> latest = runHistory.getLatest();
+        assertEquals(5, latest.get(0).getRunId());
+        assertEquals(3, latest.get(2).getRunId());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class RunOutputTest {
+
+    @Test
+    public void testTailersReceiveBacklogAndLiveOutput() throws Exception {
+        RunOutput runOutput = new RunOutput(null, 1024, 8);
+        runOutput.write("0123".getBytes(StandardCharsets.UTF_8));
+        // the output written before is part of the backlog
+        runOutput.enableTail();
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<String> tailer1 = executor.submit(() -> tail(runOutput, new ByteArrayOutputStream()));
+            Future<String> tailer2 = executor.submit(() -> tail(runOutput, new ByteArrayOutputStream()));
+            runOutput.write('4');
+            runOutput.write("567".getBytes(StandardCharsets.UTF_8));
+            runOutput.finish();
+
+            assertEquals("01234567", tailer1.get(10, TimeUnit.SECONDS));
+            assertEquals("01234567", tailer2.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSlowTailerSkipsOverwrittenOutput() throws Exception {
+        RunOutput runOutput = new RunOutput(null, 1024, 8);
+        runOutput.enableTail();
+        runOutput.write("0123".getBytes(StandardCharsets.UTF_8));
+
+        CountDownLatch isWriting = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream slowOut = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                super.write(b, off, len);
+                isWriting.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<String> tailer = executor.submit(() -> tail(runOutput, slowOut));
+            assertTrue(isWriting.await(10, TimeUnit.SECONDS));
+            // the writer is not blocked by the slow tailer
+            runOutput.write("456789abcdef".getBytes(StandardCharsets.UTF_8));
+            runOutput.finish();
+            release.countDown();
+
+            assertEquals("0123\n[... 4 bytes skipped ...]\n89abcdef", tailer.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        // the complete output is kept, tailing a finished run returns all of it
+        assertEquals("0123456789abcdef", runOutput.toString());
+        assertEquals("0123456789abcdef", tail(runOutput, new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void testOutputBeyondThresholdIsSpilledToFile() throws Exception {
+        File spillDir = Files.createTempDirectory("apply-server-runs").toFile();
+        try {
+            RunOutput runOutput = new RunOutput(spillDir, 4, 8);
+            runOutput.write("0123".getBytes(StandardCharsets.UTF_8));
+            assertFalse(runOutput.isSpilled());
+            runOutput.write("456789".getBytes(StandardCharsets.UTF_8));
+            assertTrue(runOutput.isSpilled());
+            runOutput.finish();
+            assertEquals(10, runOutput.size());
+            assertEquals("0123456789", runOutput.toString());
+            assertEquals(1, spillDir.list().length);
+
+            runOutput.delete();
+            assertEquals(0, spillDir.list().length);
+        } finally {
+            FileUtils.deleteDirectory(spillDir);
+        }
+    }
+
+    private String tail(RunOutput runOutput, ByteArrayOutputStream out) throws Exception {
+        runOutput.tail(out);
+        return out.toString(StandardCharsets.UTF_8.name());
+    }
+}
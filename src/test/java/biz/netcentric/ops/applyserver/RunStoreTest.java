@@ -0,0 +1,112 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RunStoreTest {
+
+    File dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("apply-server-run-store").toFile();
+    }
+
+    @After
+    public void teardown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testRunsAreKeptAcrossRestarts() throws IOException {
+        RunStore runStore = new RunStore(dir, 100, 30, 100, 2);
+        runStore.add(new ScriptResult(1, "_apply.sh", "success", 200, "output 1"));
+        runStore.add(new ScriptResult(2, "reload.sh", "failed", 500, "output 2"));
+        // no result for run 3 (e.g. still running)
+        runStore.add(new ScriptResult(4, "_apply.sh", "success", 200, "output 4"));
+        runStore.close();
+
+        runStore = new RunStore(dir, 100, 30, 100, 2);
+        assertEquals(4, runStore.getLastRunId());
+        ScriptResult result = runStore.get(2);
+        assertEquals("reload.sh", result.getScriptName());
+        assertEquals("failed", result.getResult());
+        assertEquals(500, result.getResultCode());
+        assertEquals("output 2", result.getScriptOutput());
+        assertNull(runStore.get(3));
+        assertNull(runStore.get(5));
+
+        runStore.add(new ScriptResult(5, "_apply.sh", "success", 200, "output 5"));
+        List<ScriptResult> latest = runStore.getLatest(6, 3);
+        assertEquals(3, latest.size());
+        assertEquals("output 5", latest.get(0).getScriptOutput());
+        assertEquals("output 4", latest.get(1).getScriptOutput());
+        assertEquals("output 2", latest.get(2).getScriptOutput());
+        runStore.close();
+    }
+
+    @Test
+    public void testRunsFinishingOutOfOrder() throws IOException {
+        RunStore runStore = new RunStore(dir, 100, 30, 100, 2);
+        // run 1 (e.g. an asynchronous job) finishes after the newer runs and starts a new segment
+        for (int runId : new int[] { 2, 3, 4, 5, 1 }) {
+            runStore.add(new ScriptResult(runId, "_apply.sh", "success", 200, "output " + runId));
+        }
+        assertEquals("output 1", runStore.get(1).getScriptOutput());
+        assertEquals("output 4", runStore.get(4).getScriptOutput());
+        runStore.add(new ScriptResult(6, "_apply.sh", "success", 200, "output 6"));
+        runStore.close();
+
+        runStore = new RunStore(dir, 100, 30, 100, 2);
+        assertEquals(6, runStore.getLastRunId());
+        for (int runId = 1; runId <= 6; runId++) {
+            assertEquals("output " + runId, runStore.get(runId).getScriptOutput());
+        }
+        runStore.close();
+
+        // the segment with runs 2 and 3 finished first and is deleted first
+        runStore = new RunStore(dir, 3, 30, 100, 2);
+        runStore.add(new ScriptResult(7, "_apply.sh", "success", 200, "output 7"));
+        assertNull(runStore.get(2));
+        assertNull(runStore.get(5));
+        assertEquals("output 1", runStore.get(1).getScriptOutput());
+        assertEquals("output 7", runStore.get(7).getScriptOutput());
+        runStore.close();
+    }
+
+    @Test
+    public void testRetentionByCountDeletesWholeSegments() throws IOException {
+        RunStore runStore = new RunStore(dir, 4, 30, 100, 2);
+        for (int runId = 1; runId <= 7; runId++) {
+            runStore.add(new ScriptResult(runId, "_apply.sh", "success", 200, "output " + runId));
+        }
+
+        // segments of two runs each, the segment with runs 1 and 2 is beyond the latest four runs
+        assertNull(runStore.get(1));
+        assertNull(runStore.get(2));
+        assertNotNull(runStore.get(3));
+        assertEquals("output 7", runStore.get(7).getScriptOutput());
+        // the segment with runs 3 and 4 is kept until run 8 is stored
+        assertEquals(5, runStore.getLatest(8, 10).size());
+        runStore.close();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ScriptQueueTest {
+
+    @Test
+    public void testRejectAndQueue() throws Exception {
+        ScriptQueue rejectingQueue = new ScriptQueue("_apply.sh", ScriptQueue.Policy.REJECT, 1);
+        assertTrue(rejectingQueue.acquireForRequest());
+        assertFalse(rejectingQueue.acquireForRequest());
+
+        ScriptQueue queue = new ScriptQueue("_apply.sh", ScriptQueue.Policy.QUEUE, 1);
+        assertTrue(queue.acquireForRequest());
+        try {
+            queue.acquireForRequest();
+            fail("Expected the maximum wait to be exceeded");
+        } catch (LimitExceededException e) {
+            assertEquals(LimitExceededException.SERVICE_UNAVAILABLE, e.getResponseCode());
+        }
+        queue.getLock().release();
+        assertTrue(queue.acquireForRequest());
+    }
+
+    @Test
+    public void testWaitingRequestsAreCoalescedIntoOneRun() throws Exception {
+        ScriptQueue queue = new ScriptQueue("_apply.sh", ScriptQueue.Policy.COALESCE, 30);
+        ScriptQueue.Ticket running = queue.join();
+        assertTrue(running.isLeader());
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            List<Future<ScriptQueue.Ticket>> waiting = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                waiting.add(executor.submit(queue::join));
+                // wait for the request to join to have a defined order
+                while (queue.getWaitingCount() < i + 1) {
+                    Thread.sleep(10);
+                }
+            }
+
+            running.complete(new ScriptResult(1, "_apply.sh", "success", 200, "first run"));
+            List<ScriptQueue.Ticket> tickets = new ArrayList<>();
+            for (Future<ScriptQueue.Ticket> future : waiting) {
+                tickets.add(future.get(10, TimeUnit.SECONDS));
+            }
+            // the newest request runs the script for all waiting requests
+            assertFalse(tickets.get(0).isLeader());
+            assertFalse(tickets.get(1).isLeader());
+            assertTrue(tickets.get(2).isLeader());
+            assertEquals(2, tickets.get(2).getCoalescedCount());
+
+            ScriptResult followUpResult = new ScriptResult(2, "_apply.sh", "failed", 500, "follow-up run");
+            tickets.get(2).complete(followUpResult);
+            assertSame(followUpResult, tickets.get(0).awaitResult());
+            assertSame(followUpResult, tickets.get(1).awaitResult());
+
+            // no run is pending anymore
+            assertTrue(queue.join().isLeader());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * (C) Copyright 2019 Netcentric, a Cognizant Digital Business.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package biz.netcentric.ops.applyserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ZipDeflaterTest {
+
+    private File tempDir;
+    private Map<String, String> properties;
+
+    private StringWriter resultLog;
+    private PrintWriter resultLogWriter;
+
+    @Before
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("apply-server-test").toFile();
+        properties = new HashMap<String, String>();
+        properties.put("testProp1", "val1");
+
+        resultLog = new StringWriter();
+        resultLogWriter = new PrintWriter(resultLog);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testExtractZipWhileStreaming() throws IOException {
+        ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+        // writing to a non-seekable stream uses data descriptors like most streaming zip tools do
+        try (ZipArchiveOutputStream zipOs = new ZipArchiveOutputStream(zipBytes)) {
+            addZipEntry(zipOs, "conf/test.conf", "prop=${testProp1}", UnixStat.FILE_FLAG | 0644);
+            addZipEntry(zipOs, "conf/link.conf", "test.conf", UnixStat.LINK_FLAG | 0777);
+            addZipEntry(zipOs, "bin/run.sh", "echo ${testProp1}", UnixStat.FILE_FLAG | 0755);
+        }
+
+        Map<String, String> propertiesUsed = new TreeMap<>();
+        int count = createZipDeflater().extractZip(new ByteArrayInputStream(zipBytes.toByteArray()), resultLogWriter, propertiesUsed);
+
+        assertEquals(3, count);
+        assertEquals("prop=val1", FileUtils.readFileToString(new File(tempDir, "conf/test.conf"), StandardCharsets.UTF_8));
+        assertEquals("echo ${testProp1}", FileUtils.readFileToString(new File(tempDir, "bin/run.sh"), StandardCharsets.UTF_8));
+        assertTrue(Files.isSymbolicLink(new File(tempDir, "conf/link.conf").toPath()));
+        assertEquals("test.conf", Files.readSymbolicLink(new File(tempDir, "conf/link.conf").toPath()).toString());
+        assertEquals("val1", propertiesUsed.get("testProp1"));
+        assertFalse(resultLog.toString().contains("temp file"));
+    }
+
+    @Test
+    public void testExtractTarLogsInArchiveOrder() throws IOException {
+        int entryCount = 500;
+        ByteArrayOutputStream tarBytes = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tarOs = new TarArchiveOutputStream(tarBytes)) {
+            for (int i = 0; i < entryCount; i++) {
+                byte[] content = ("file" + i + "=${testProp1}").getBytes(StandardCharsets.UTF_8);
+                TarArchiveEntry entry = new TarArchiveEntry("dir" + (i % 7) + "/file" + i + ".conf");
+                entry.setSize(content.length);
+                tarOs.putArchiveEntry(entry);
+                tarOs.write(content);
+                tarOs.closeArchiveEntry();
+            }
+        }
+
+        int count = createZipDeflater().extractTar(new ByteArrayInputStream(tarBytes.toByteArray()), resultLogWriter,
+                new TreeMap<String, String>());
+        resultLogWriter.flush();
+
+        assertEquals(entryCount, count);
+        String[] logLines = resultLog.toString().split("\n");
+        assertEquals(entryCount + 1, logLines.length);
+        assertEquals(entryCount + " files written, 0 unchanged", logLines[entryCount]);
+        for (int i = 0; i < entryCount; i++) {
+            assertTrue(logLines[i], logLines[i].startsWith("Extracted dir" + (i % 7) + "/file" + i + ".conf "));
+            assertEquals("file" + i + "=val1",
+                    FileUtils.readFileToString(new File(tempDir, "dir" + (i % 7) + "/file" + i + ".conf"), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testUnchangedFilesAreNotRewritten() throws IOException {
+        File unchangedFile = new File(tempDir, "conf/unchanged.conf");
+        File changedFile = new File(tempDir, "conf/changed.conf");
+        File truncatedFile = new File(tempDir, "conf/truncated.conf");
+        FileUtils.writeStringToFile(unchangedFile, "prop=val1", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(changedFile, "prop=val0", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(truncatedFile, "prop=val1\nmore", StandardCharsets.UTF_8);
+        long oldModified = System.currentTimeMillis() - 60000;
+        for (File file : new File[] { unchangedFile, changedFile, truncatedFile }) {
+            assertTrue(file.setLastModified(oldModified));
+        }
+
+        ByteArrayOutputStream tarBytes = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tarOs = new TarArchiveOutputStream(tarBytes)) {
+            for (String name : new String[] { "conf/unchanged.conf", "conf/changed.conf", "conf/truncated.conf" }) {
+                byte[] content = "prop=${testProp1}".getBytes(StandardCharsets.UTF_8);
+                TarArchiveEntry entry = new TarArchiveEntry(name);
+                entry.setSize(content.length);
+                tarOs.putArchiveEntry(entry);
+                tarOs.write(content);
+                tarOs.closeArchiveEntry();
+            }
+        }
+
+        createZipDeflater().extractTar(new ByteArrayInputStream(tarBytes.toByteArray()), resultLogWriter, new TreeMap<String, String>());
+        resultLogWriter.flush();
+
+        assertEquals(oldModified / 1000, unchangedFile.lastModified() / 1000);
+        for (File file : new File[] { unchangedFile, changedFile, truncatedFile }) {
+            assertEquals("prop=val1", FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+        }
+        assertTrue(changedFile.lastModified() > oldModified);
+        assertTrue(resultLog.toString().contains("2 files written, 1 unchanged"));
+        // no temp files left behind
+        assertEquals(3, new File(tempDir, "conf").list().length);
+    }
+
+    private ZipDeflater createZipDeflater() {
+        return new ZipDeflater(tempDir.getAbsolutePath(), true, ApplyServerConfig.EXCLUDE_FROM_FILTERING_REGEX_DEFAULT, properties);
+    }
+
+    private void addZipEntry(ZipArchiveOutputStream zipOs, String name, String content, int unixMode) throws IOException {
+        ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setUnixMode(unixMode);
+        zipOs.putArchiveEntry(entry);
+        zipOs.write(content.getBytes(StandardCharsets.UTF_8));
+        zipOs.closeArchiveEntry();
+    }
+}